@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder;
+
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.ProtectionDomain;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ConcurrentPolicyFile implies and getPermissions of a generated policy, by
+ * number of grants and extra Principal's per domain, on one thread and on as
+ * many threads as there are processors; other thread counts may be given
+ * with the -t option.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ConcurrentPolicyFileBenchmark
+{
+    private static final int DOMAINS = 64;
+
+    @Param( { "1000", "10000", "100000" } )
+    public int grants;
+
+    @Param( { "0", "4", "16" } )
+    public int principals;
+
+    private ConcurrentPolicyFile policy;
+    private ProtectionDomain[] domains;
+    private Permission[] granted;
+    private Permission[] denied;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws Exception
+    {
+        PolicyGenerator.Profile profile = new PolicyGenerator.Profile().grants( grants ).subjectPrincipals( principals );
+        PolicyGenerator.Generated generated = PolicyGenerator.generate( null, 1L, profile, DOMAINS );
+        System.setProperty( "java.security.policy", "=" + generated.getPolicy().getAbsolutePath() );
+        policy = new ConcurrentPolicyFile();
+        domains = new ProtectionDomain[ DOMAINS ];
+        granted = new Permission[ DOMAINS ];
+        denied = new Permission[ DOMAINS ];
+        for( int k = 0; k < DOMAINS; k++ )
+        {
+            PolicyGenerator.Workload workload = generated.getWorkloads().get( k );
+            domains[ k ] = workload.getDomain();
+            granted[ k ] = workload.getGranted();
+            denied[ k ] = workload.getDenied();
+        }
+    }
+
+    /**
+     * Each thread cycles through the domains.
+     */
+    @State( Scope.Thread )
+    public static class Cursor
+    {
+        private int next;
+
+        int next()
+        {
+            return next = ( next + 1 ) & ( DOMAINS - 1 );
+        }
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public boolean impliesGranted( Cursor cursor )
+    {
+        int k = cursor.next();
+        return policy.implies( domains[ k ], granted[ k ] );
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public boolean impliesDenied( Cursor cursor )
+    {
+        int k = cursor.next();
+        return policy.implies( domains[ k ], denied[ k ] );
+    }
+
+    @Benchmark
+    @Threads( Threads.MAX )
+    public boolean impliesGrantedContended( Cursor cursor )
+    {
+        int k = cursor.next();
+        return policy.implies( domains[ k ], granted[ k ] );
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public PermissionCollection getPermissions( Cursor cursor )
+    {
+        return policy.getPermissions( domains[ cursor.next() ] );
+    }
+
+    @Benchmark
+    @Threads( Threads.MAX )
+    public PermissionCollection getPermissionsContended( Cursor cursor )
+    {
+        return policy.getPermissions( domains[ cursor.next() ] );
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder.parser;
+
+import java.io.FilePermission;
+import java.net.SocketPermission;
+import java.security.Permission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PropertyPermission;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorting Permission's with PermissionComparator, as ConcurrentPolicyFile
+ * does before adding them to a PermissionCollection, by number of
+ * Permission's.  SocketPermission's are to loopback addresses, so no name
+ * is resolved.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class PermissionComparatorBenchmark
+{
+    @Param( { "10", "100", "1000" } )
+    public int permissions;
+
+    private Permission[] unsorted;
+    private PermissionComparator comparator;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        unsorted = new Permission[ permissions ];
+        for( int i = 0; i < permissions; i++ )
+        {
+            switch( i % 4 )
+            {
+            case 0:
+                unsorted[ i ] = new RuntimePermission( "getenv.VAR" + i );
+                break;
+            case 1:
+                unsorted[ i ] = new FilePermission( "/var/app" + i + "/-", "read,write" );
+                break;
+            case 2:
+                unsorted[ i ] = new PropertyPermission( "app" + i + ".*", "read" );
+                break;
+            default:
+                unsorted[ i ] = new SocketPermission( "127.0.0.1:" + ( 1024 + i ), "connect" );
+            }
+        }
+        Collections.shuffle( Arrays.asList( unsorted ), new Random( 42 ) );
+        comparator = new PermissionComparator();
+    }
+
+    @Benchmark
+    public List<Permission> sort()
+    {
+        Permission[] copy = unsorted.clone();
+        Arrays.sort( copy, comparator );
+        return Arrays.asList( copy );
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder.parser;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.hedhman.blackadder.PolicyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DefaultPolicyParser parsing a generated policy file, and its keystore, by
+ * number of grants.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class PolicyParserBenchmark
+{
+    @Param( { "1000", "10000", "100000" } )
+    public int grants;
+
+    private URL location;
+    private DefaultPolicyParser parser;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws Exception
+    {
+        PolicyGenerator.Profile profile = new PolicyGenerator.Profile().grants( grants );
+        location = PolicyGenerator.generate( null, 1L, profile, 0 ).getPolicy().toURI().toURL();
+        parser = new DefaultPolicyParser();
+    }
+
+    @Benchmark
+    public Collection<PermissionGrant> parse()
+        throws Exception
+    {
+        return parser.parse( location );
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder.parser;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * UriString normalisation of codebase URI's, with and without escapes.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class UriStringBenchmark
+{
+    @Param( { "plain", "escaped" } )
+    public String kind;
+
+    private URI[] uris;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws Exception
+    {
+        String[] plain = {
+            "file:/opt/app/lib0/app.jar",
+            "file:/opt/app/lib1/-",
+            "http://www.example.com/codebase/app.jar",
+            "https://Repo.Example.COM:8443/maven/org/hedhman/blackadder/1.0/blackadder-1.0.jar"
+        };
+        String[] escaped = {
+            "file:/opt/app%20server/lib%2D0/app.jar",
+            "file:/C:/Program%20Files/app/%7Euser/-",
+            "http://www.example.com/code%62ase/%61pp.jar",
+            "https://repo.example.com/maven/%7e%2f%3A/blackadder-1.0.jar"
+        };
+        String[] source = "plain".equals( kind ) ? plain : escaped;
+        uris = new URI[ source.length ];
+        for( int i = 0; i < source.length; i++ )
+        {
+            uris[ i ] = new URI( source[ i ] );
+        }
+    }
+
+    @Benchmark
+    public void normalise( Blackhole bh )
+        throws Exception
+    {
+        for( URI uri : uris )
+        {
+            bh.consume( UriString.normalise( uri ) );
+        }
+    }
+}
@@ -23,7 +23,7 @@
 package org.hedhman.blackadder;
 
 import java.io.File;
-import java.lang.ref.WeakReference;
+import java.io.IOException;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.AllPermission;
@@ -34,35 +34,45 @@ import java.security.PermissionCollection;
 import java.security.Permissions;
 import java.security.Policy;
 import java.security.PrivilegedAction;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
 import java.security.Security;
 import java.security.SecurityPermission;
-import java.security.UnresolvedPermission;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
+import java.util.Set;
 import org.hedhman.blackadder.expander.PropertyExpander;
 import org.hedhman.blackadder.parser.Constants;
 import org.hedhman.blackadder.parser.DefaultPolicyParser;
 import org.hedhman.blackadder.parser.PermissionComparator;
 import org.hedhman.blackadder.parser.PermissionGrant;
-import org.hedhman.blackadder.parser.PermissionGrantBuilder;
 import org.hedhman.blackadder.parser.PolicyParser;
+import org.hedhman.blackadder.parser.SubjectDomain;
 
 /**
  * <p>
  * Concurrent Policy implementation based on policy configuration files,
  * it is intended to provide concurrent implies() for greatly improved
  * throughput.  Caching limits scalability and consumes shared memory,
- * so no cache exists.
+ * so by default no cache exists.  Where the same few ProtectionDomain and
+ * Permission pairs dominate, a bounded decision cache may be enabled by
+ * setting the {@link #DECISION_CACHE_SIZE} system property to the maximum
+ * number of decisions to retain.
+ * </p><p>
+ * Policy files are loaded when the policy is constructed and when
+ * {@link #refresh()} is called.  Changes to file: locations may instead be
+ * loaded as they happen, only the files that changed are parsed again, by
+ * setting the {@link #WATCH_DEBOUNCE} system property, or calling
+ * {@link #startWatching(long)}.
+ * </p><p>
+ * Latencies of implies, getPermissions, getPermissionGrants and refresh
+ * may be published as a JMX MBean, by setting the {@link #METRICS} system
+ * property to true.  Slow implies decisions, policy loads and a sample of
+ * grant matching are recorded as Flight Recorder events, while a recording
+ * is running, on platforms that support it.
  * </p><p>
  * By default all River Policy implementations now utilise ConcurrentPolicyFile.
  * </p>
@@ -170,7 +180,7 @@ import org.hedhman.blackadder.parser.PolicyParser;
  */
 
 public class ConcurrentPolicyFile extends Policy
-    implements ScalableNestedPolicy
+    implements ScalableNestedPolicy, ScalableBatchPolicy
 {
 
     /**
@@ -183,13 +193,47 @@ public class ConcurrentPolicyFile extends Policy
      */
     private static final String POLICY_URL_PREFIX = "policy.url.";
 
+    /**
+     * System property for the maximum number of implies decisions to cache,
+     * the decision cache is disabled if absent or not positive.
+     */
+    public static final String DECISION_CACHE_SIZE = "org.hedhman.blackadder.decisionCache.size";
+
+    /**
+     * System property for the time, in milliseconds, that changes to file:
+     * policy locations must settle before they are loaded, policy files are
+     * not watched if absent or not positive.
+     *
+     * @see #startWatching(long)
+     */
+    public static final String WATCH_DEBOUNCE = "org.hedhman.blackadder.watch.debounce";
+
+    /**
+     * System property, if true, the default constructor registers a
+     * {@link PolicyMetricsMBean} with the platform MBeanServer.
+     */
+    public static final String METRICS = "org.hedhman.blackadder.metrics";
+
+    /**
+     * System property for the time, in microseconds, an implies decision
+     * must take to be recorded as a Flight Recorder event, by default 1000.
+     */
+    public static final String JFR_IMPLIES_THRESHOLD = "org.hedhman.blackadder.jfr.implies.threshold";
+
+    /**
+     * System property, one in this many evaluations of the grants implying
+     * a domain are recorded as Flight Recorder events, by default 16, none
+     * if not positive.
+     */
+    public static final String JFR_GRANT_MATCH_SAMPLING = "org.hedhman.blackadder.jfr.grantMatch.sampling";
+
     private static final Permission ALL_PERMISSION = new AllPermission();
 
     // Reference must be defensively copied before access, once published, never mutated.
-    private volatile PermissionGrant[] grantArray;
+    private volatile PolicySnapshot snapshot;
 
-    // A specific parser for a particular policy file format.
-    private final PolicyParser parser;
+    // Parses locations concurrently with a parser for a particular policy file format.
+    private final PolicyLoader loader;
 
     private static final Guard guard = new SecurityPermission( "getPolicy" );
 
@@ -204,8 +248,24 @@ public class ConcurrentPolicyFile extends Policy
 
     private final Comparator<Permission> comparator;
 
-    // reference must be defensively copied before access, once published, never mutated.
-    private volatile PermissionCollection myPermissions;
+    // Optional, null if decisions are not cached.
+    private final DecisionCache decisionCache;
+
+    // Serialises loading, guards the fields below.
+    private final Object loadLock = new Object();
+
+    // The locations and grants parsed from each, in the same order.
+    private URL[] policyLocations;
+    private List<Collection<PermissionGrant>> parsed;
+
+    // Optional, null if policy files are not watched.
+    private PolicyWatcher watcher;
+
+    // Optional, null if metrics are not recorded.
+    private volatile PolicyMetrics metrics;
+
+    // Null if Flight Recorder isn't available.
+    private static final PolicyEvents events = PolicyEvents.get();
 
     /**
      * Default constructor, equivalent to
@@ -215,7 +275,23 @@ public class ConcurrentPolicyFile extends Policy
     public ConcurrentPolicyFile()
         throws PolicyInitializationException
     {
-        this( new DefaultPolicyParser(), new PermissionComparator() );
+        this( new DefaultPolicyParser(), new PermissionComparator(), getDecisionCacheSize() );
+        if( isMetricsEnabled() )
+        {
+            recordMetrics().register();
+        }
+        long debounce = getWatchDebounce();
+        if( debounce > 0 )
+        {
+            try
+            {
+                startWatching( debounce );
+            }
+            catch( IOException e )
+            {
+                System.err.println( "Unable to watch policy files: " + e );
+            }
+        }
     }
 
     /**
@@ -226,10 +302,29 @@ public class ConcurrentPolicyFile extends Policy
      */
     protected ConcurrentPolicyFile( PolicyParser policyParser, Comparator<Permission> comp )
         throws PolicyInitializationException
+    {
+        this( policyParser, comp, 0 );
+    }
+
+    /**
+     * Extension constructor for plugging-in a custom parser and enabling
+     * the decision cache.
+     *
+     * Decisions for domains implementing SubjectDomain are never cached,
+     * since their Principals may change.
+     *
+     * @param policyParser      Policy parser to be used
+     * @param comp              Comparator to compare permissions.
+     * @param decisionCacheSize maximum number of implies decisions cached,
+     *                          zero or less disables the cache.
+     */
+    protected ConcurrentPolicyFile( PolicyParser policyParser, Comparator<Permission> comp, int decisionCacheSize )
+        throws PolicyInitializationException
     {
         guard.checkGuard( null );
-        parser = policyParser;
+        loader = new PolicyLoader( policyParser );
         comparator = comp;
+        decisionCache = decisionCacheSize > 0 ? new DecisionCache( decisionCacheSize ) : null;
         /*
          * The bootstrap policy makes implies decisions until this constructor
          * has returned.  We don't need to lock.
@@ -239,7 +334,7 @@ public class ConcurrentPolicyFile extends Policy
             // Bug 4911907, do we need to do anything more?
             // The permissions for this domain must be retrieved before
             // construction is complete and this policy takes over.
-            initialize(); // Instantiates myPermissions.
+            initialize(); // Publishes the first snapshot.
         }
         catch( SecurityException e )
         {
@@ -362,16 +457,56 @@ public class ConcurrentPolicyFile extends Policy
         return urls.toArray( new URL[ urls.size() ] );
     }
 
-    private PermissionCollection convert( NavigableSet<Permission> permissions )
+    private static int getDecisionCacheSize()
     {
-        PermissionCollection pc = new Permissions();
-        // The descending iterator is for SocketPermission.
-        Iterator<Permission> it = permissions.descendingIterator();
-        while( it.hasNext() )
+        Integer size = AccessController.doPrivileged( new PrivilegedAction<Integer>()
         {
-            pc.add( it.next() );
+            public Integer run()
+            {
+                return Integer.getInteger( DECISION_CACHE_SIZE, 0 );
+            }
+        } );
+        return size;
+    }
+
+    private static boolean isMetricsEnabled()
+    {
+        return AccessController.doPrivileged( new PrivilegedAction<Boolean>()
+        {
+            public Boolean run()
+            {
+                return Boolean.getBoolean( METRICS );
+            }
+        } );
+    }
+
+    /**
+     * Starts recording metrics, if they aren't already.
+     *
+     * @return the metrics recorded.
+     */
+    PolicyMetrics recordMetrics()
+    {
+        synchronized( loadLock )
+        {
+            if( metrics == null )
+            {
+                metrics = new PolicyMetrics( this );
+            }
+            return metrics;
         }
-        return pc;
+    }
+
+    private static long getWatchDebounce()
+    {
+        Long debounce = AccessController.doPrivileged( new PrivilegedAction<Long>()
+        {
+            public Long run()
+            {
+                return Long.getLong( WATCH_DEBOUNCE, 0L );
+            }
+        } );
+        return debounce;
     }
 
     /**
@@ -389,46 +524,20 @@ public class ConcurrentPolicyFile extends Policy
     @Override
     public PermissionCollection getPermissions( ProtectionDomain pd )
     {
-        NavigableSet<Permission> perms = new TreeSet<Permission>( comparator );
-        PermissionGrant[] grantRefCopy = grantArray;
-        for( PermissionGrant ge : grantRefCopy )
+        PolicyMetrics m = metrics;
+        if( m == null )
         {
-            if( ge.implies( pd ) )
-            {
-                if( ge.isPrivileged() )
-                {// Don't stuff around finish early if you can.
-                    PermissionCollection pc = new Permissions();
-                    pc.add( new AllPermission() );
-                    return pc;
-                }
-                Collection<Permission> permissions = ge.getPermissions();
-                for( Permission p : permissions )
-                {
-                    perms.add( p );
-                }
-            }
+            return snapshot.getPermissions( pd );
         }
-        // Don't forget to merge the static Permissions.
-        if( pd != null )
+        long start = System.nanoTime();
+        try
         {
-            PermissionCollection staticPC = pd.getPermissions();
-            if( staticPC != null )
-            {
-                Enumeration<Permission> e = staticPC.elements();
-                while( e.hasMoreElements() )
-                {
-                    Permission p = e.nextElement();
-                    if( p instanceof AllPermission )
-                    {
-                        PermissionCollection pc = new Permissions();
-                        pc.add( p );
-                        return pc;
-                    }
-                    perms.add( p );
-                }
-            }
+            return snapshot.getPermissions( pd );
+        }
+        finally
+        {
+            m.domainPermissions.record( System.nanoTime() - start );
         }
-        return convert( perms );
     }
 
     /**
@@ -446,24 +555,35 @@ public class ConcurrentPolicyFile extends Policy
      */
     @Override
     public PermissionCollection getPermissions( CodeSource cs )
+    {
+        PolicyMetrics m = metrics;
+        if( m == null )
+        {
+            return codeSourcePermissions( cs );
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return codeSourcePermissions( cs );
+        }
+        finally
+        {
+            m.codeSourcePermissions.record( System.nanoTime() - start );
+        }
+    }
+
+    private PermissionCollection codeSourcePermissions( CodeSource cs )
     {
         if( cs == null )
         {
             throw new NullPointerException( "CodeSource cannot be null" );
         }
         // for ProtectionDomain AllPermission optimisation.
-        PermissionGrant[] grantRefCopy = grantArray;
-        for( PermissionGrant ge : grantRefCopy )
+        if( snapshot.isPrivileged( cs ) )
         {
-            if( ge.implies( cs, null ) )
-            { // No Principal's
-                if( ge.isPrivileged() )
-                {
-                    PermissionCollection pc = new Permissions();
-                    pc.add( ALL_PERMISSION );
-                    return pc;
-                }
-            }
+            PermissionCollection pc = new Permissions();
+            pc.add( ALL_PERMISSION );
+            return pc;
         }
         return super.getPermissions( cs );
     }
@@ -475,58 +595,142 @@ public class ConcurrentPolicyFile extends Policy
         {
             throw new NullPointerException( "permission not allowed to be null" );
         }
-        if( domain == myDomain )
+        DecisionCache cache = decisionCache;
+        long generation = cache != null ? cache.generation() : 0L; // Must be obtained before policy state.
+        PolicySnapshot current = snapshot;
+        PolicyMetrics m = metrics;
+        PolicyEvents e = events != null && events.isRecording() ? events : null;
+        if( m == null && e == null )
+        {
+            return implies( current, cache, generation, domain, permission, null );
+        }
+        PolicyEvents.Trace trace = e != null ? new PolicyEvents.Trace() : null;
+        long start = System.nanoTime();
+        boolean result = implies( current, cache, generation, domain, permission, trace );
+        long nanos = System.nanoTime() - start;
+        if( m != null )
+        {
+            m.implies.record( nanos );
+        }
+        if( e != null )
+        {
+            e.implies( domain, permission, result, trace, nanos );
+        }
+        return result;
+    }
+
+    // The decision cache is consulted unless null, its generation must be obtained before the snapshot.
+    private static boolean implies( PolicySnapshot current, DecisionCache cache, long generation,
+                                    ProtectionDomain domain, Permission permission, PolicyEvents.Trace trace )
+    {
+        if( cache == null || domain == null || domain == myDomain || domain instanceof SubjectDomain )
         {
-            PermissionCollection pc = myPermissions;
-            return pc.implies( permission );
+            return current.implies( domain, permission, trace );
         }
-        Class klass = permission.getClass();
-        // Need to have a list of Permission's we can sort if permission is SocketPermission.
-        NavigableSet<Permission> perms = new TreeSet<Permission>( comparator );
-        PermissionGrant[] grantRefCopy = grantArray;
-        for( PermissionGrant ge : grantRefCopy )
+        Boolean cached = cache.get( domain, permission );
+        if( cached != null )
         {
-            if( ge.implies( domain ) )
+            if( trace != null )
             {
-                if( ge.isPrivileged() )
-                {
-                    return true; // Don't stuff around finish early if you can.
-                }
-                Collection<Permission> c = ge.getPermissions();
-                for( Permission p : c )
-                {
-                    // Don't make it larger than necessary.
-                    if( klass.isInstance( permission ) || permission instanceof UnresolvedPermission )
-                    {
-                        perms.add( p );
-                    }
-                }
+                trace.cached = true;
             }
+            return cached;
+        }
+        boolean result = current.implies( domain, permission, trace );
+        cache.put( domain, permission, result, generation );
+        return result;
+    }
+
+    public boolean[] implies( ProtectionDomain domain, Permission[] permissions )
+    {
+        DecisionCache cache = decisionCache;
+        if( cache == null || domain == null || domain == myDomain || domain instanceof SubjectDomain )
+        {
+            return snapshot.implies( domain, permissions );
         }
-        // Don't forget to merge the static Permissions.
-        if( domain != null )
+        long generation = cache.generation(); // Must be obtained before policy state.
+        boolean[] result = new boolean[ permissions.length ];
+        // Indexes of the permissions not cached, each decision is written
+        // back to its own index, however often an instance is repeated.
+        int[] uncached = null;
+        int count = 0;
+        for( int i = 0; i < permissions.length; i++ )
         {
-            PermissionCollection staticPC = domain.getPermissions();
-            if( staticPC != null )
+            Boolean cached = cache.get( domain, permissions[ i ] );
+            if( cached != null )
             {
-                Enumeration<Permission> e = staticPC.elements();
-                while( e.hasMoreElements() )
-                {
-                    Permission p = e.nextElement();
-                    // return early if possible.
-                    if( p instanceof AllPermission )
-                    {
-                        return true;
-                    }
-                    // Don't make it larger than necessary, but don't worry about duplicates either.
-                    if( klass.isInstance( permission ) || permission instanceof UnresolvedPermission )
-                    {
-                        perms.add( p );
-                    }
-                }
+                result[ i ] = cached;
+                continue;
+            }
+            if( uncached == null )
+            {
+                uncached = new int[ permissions.length - i ];
             }
+            uncached[ count++ ] = i;
+        }
+        if( uncached == null )
+        {
+            return result;
         }
-        return convert( perms ).implies( permission );
+        Permission[] remaining = new Permission[ count ];
+        for( int j = 0; j < count; j++ )
+        {
+            remaining[ j ] = permissions[ uncached[ j ] ];
+        }
+        boolean[] decisions = snapshot.implies( domain, remaining );
+        for( int j = 0; j < count; j++ )
+        {
+            result[ uncached[ j ] ] = decisions[ j ];
+            cache.put( domain, remaining[ j ], decisions[ j ], generation );
+        }
+        return result;
+    }
+
+    /**
+     * Each distinct domain of the context is evaluated once, against the same
+     * policy state.
+     */
+    public boolean implies( ProtectionDomain[] context, Permission permission )
+    {
+        if( permission == null )
+        {
+            throw new NullPointerException( "permission not allowed to be null" );
+        }
+        DecisionCache cache = decisionCache;
+        long generation = cache != null ? cache.generation() : 0L; // Must be obtained before policy state.
+        PolicySnapshot current = snapshot;
+        DistinctDomains distinct = new DistinctDomains( context.length, current.index().isKeyed() );
+        for( ProtectionDomain domain : context )
+        {
+            if( domain != null && distinct.add( domain ) && !implies( current, cache, generation, domain, permission, null ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current policy state, against which a series of decisions
+     * may be made consistently, regardless of refreshes.
+     *
+     * @return the current snapshot, never null.
+     */
+    public PolicySnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * Returns the epoch of the current policy state, which increases each
+     * time new policy state is published.  Decisions made while the epoch is
+     * unchanged may be cached.
+     *
+     * @return the epoch of the current snapshot.
+     */
+    public long getEpoch()
+    {
+        return snapshot.getEpoch();
     }
 
     /**
@@ -552,84 +756,228 @@ public class ConcurrentPolicyFile extends Policy
     private void initialize()
         throws Exception
     {
-        try
+        synchronized( loadLock )
         {
-            Collection<PermissionGrant> fresh = AccessController.doPrivileged(
-                new PrivilegedExceptionAction<Collection<PermissionGrant>>()
+            long start = System.nanoTime();
+            URL[] locations = AccessController.doPrivileged(
+                new PrivilegedAction<URL[]>()
                 {
-                    public Collection<PermissionGrant> run()
-                        throws SecurityException
+                    public URL[] run()
                     {
-                        Collection<PermissionGrant> fresh = new ArrayList<PermissionGrant>( 120 );
                         System.setProperty( "/", File.separator );
-                        URL[] policyLocations = getPolicyURLs( JAVA_SECURITY_POLICY, POLICY_URL_PREFIX );
-                        for( URL policyLocation : policyLocations )
-                        {
-                            try
-                            {
-                                Collection<PermissionGrant> pc = parser.parse( policyLocation );
-                                fresh.addAll( pc );
-                            }
-                            catch( Exception e )
-                            {
-                                // It's best to let a SecurityException bubble up
-                                // in case there is a problem with our policy configuration
-                                // or implementation.
-                                if( e instanceof SecurityException )
-                                {
-                                    e.printStackTrace( System.out );
-                                    throw (SecurityException) e;
-                                }
-                                // ignore.
-                            }
-                        }
-                        return fresh;
+                        return getPolicyURLs( JAVA_SECURITY_POLICY, POLICY_URL_PREFIX );
                     }
                 }
             );
-            // Volatile reference, publish after mutation complete.
-            grantArray = fresh.toArray( new PermissionGrant[ fresh.size() ] );
-            myPermissions = getPermissions( myDomain );
+            PolicyLoader.Result[] results = loader.load( locations );
+            List<Collection<PermissionGrant>> grants = new ArrayList<Collection<PermissionGrant>>( locations.length );
+            for( PolicyLoader.Result result : results )
+            {
+                Throwable e = result.failure();
+                // It's best to let a SecurityException bubble up
+                // in case there is a problem with our policy configuration
+                // or implementation.
+                if( e instanceof SecurityException )
+                {
+                    e.printStackTrace( System.out );
+                    throw (SecurityException) e;
+                }
+                // ignore other failures.
+                grants.add( e == null ? result.grants() : Collections.<PermissionGrant>emptySet() );
+            }
+            policyLocations = locations;
+            parsed = grants;
+            publish();
+            loaded( "refresh", locations, results, start );
+            if( watcher != null )
+            {
+                watcher.watch( policyLocations );
+            }
         }
-        catch( PrivilegedActionException e )
+    }
+
+    /**
+     * Re-parses the given locations, if they are current policy locations,
+     * and publishes the new policy state; other locations keep the grants
+     * they were last parsed to.  A location that fails to parse also keeps
+     * its previous grants, a file may be caught part way through being
+     * written, {@link #refresh()} discards them.
+     *
+     * @param changed policy locations that have changed.
+     *
+     * @return the current policy locations.
+     */
+    URL[] reload( Collection<URL> changed )
+    {
+        synchronized( loadLock )
         {
-            Throwable t = e.getCause();
-            if( t instanceof Exception )
+            long start = System.nanoTime();
+            Set<String> names = new HashSet<String>();
+            for( URL url : changed )
             {
-                throw (Exception) t;
+                names.add( url.toExternalForm() );
             }
-            throw e;
+            List<Integer> indexes = new ArrayList<Integer>();
+            List<URL> locations = new ArrayList<URL>();
+            for( int i = 0; i < policyLocations.length; i++ )
+            {
+                if( names.contains( policyLocations[ i ].toExternalForm() ) )
+                {
+                    indexes.add( i );
+                    locations.add( policyLocations[ i ] );
+                }
+            }
+            PolicyLoader.Result[] results = loader.load( locations.toArray( new URL[ locations.size() ] ) );
+            boolean modified = false;
+            List<Collection<PermissionGrant>> grants = new ArrayList<Collection<PermissionGrant>>( parsed );
+            for( int i = 0; i < results.length; i++ )
+            {
+                if( results[ i ].failure() != null )
+                {
+                    System.err.println( "Policy " + locations.get( i ) + " not reloaded: " + results[ i ].failure() );
+                    continue;
+                }
+                grants.set( indexes.get( i ), results[ i ].grants() );
+                modified = true;
+            }
+            parsed = grants;
+            if( modified )
+            {
+                publish();
+            }
+            loaded( "reload", locations.toArray( new URL[ locations.size() ] ), results, start );
+            return policyLocations;
         }
     }
 
-    public Collection<PermissionGrant> getPermissionGrants( ProtectionDomain pd )
+    // Called with loadLock held.
+    private void loaded( String trigger, URL[] locations, PolicyLoader.Result[] results, long start )
     {
-        PermissionGrant[] grants = grantArray; // copy volatile reference target.
-        List<PermissionGrant> applicable = new LinkedList<PermissionGrant>();
-        for( PermissionGrant grant : grants )
+        long nanos = System.nanoTime() - start;
+        if( metrics != null )
+        {
+            metrics.refresh.record( nanos );
+        }
+        if( events != null && events.isRecording() )
         {
-            if( grant.implies( pd ) )
+            events.load( trigger, locations, results, snapshot, nanos );
+        }
+    }
+
+    // Called with loadLock held.
+    private void publish()
+    {
+        Collection<PermissionGrant> fresh = new ArrayList<PermissionGrant>( 120 );
+        for( Collection<PermissionGrant> grants : parsed )
+        {
+            fresh.addAll( grants );
+        }
+        PermissionGrant[] grants = fresh.toArray( new PermissionGrant[ fresh.size() ] );
+        PolicySnapshot current = snapshot;
+        if( current == null )
+        {
+            snapshot = new PolicySnapshot( 1L, new GrantIndex( grants, comparator ), comparator, myDomain );
+            return;
+        }
+        // Grants that haven't changed keep their identity, prebuilt collections,
+        // memoised domains and cached decisions.
+        GrantIndex previous = current.index();
+        GrantDiff diff = new GrantDiff( previous.grants(), grants );
+        if( !diff.isChanged() )
+        {
+            return;
+        }
+        GrantIndex index = new GrantIndex( diff, comparator, previous );
+        Set<ProtectionDomain> unaffected = index.migrate( previous, diff );
+        // Volatile reference, publish after mutation complete.
+        snapshot = new PolicySnapshot( current.getEpoch() + 1, index, comparator, myDomain );
+        if( decisionCache != null )
+        {
+            decisionCache.invalidate( unaffected ); // After new state is published.
+        }
+    }
+
+    /**
+     * Starts watching file: policy locations, so that changes to those files
+     * are loaded without calling {@link #refresh()}.  Only the files that
+     * changed are parsed again.  Watching ends when {@link #stopWatching()}
+     * is called, or this policy is garbage collected.
+     *
+     * @param debounceMillis the time, in milliseconds, that must pass without
+     *                       further changes before files are reloaded.
+     *
+     * @throws IOException if the file system can't be watched.
+     */
+    public void startWatching( long debounceMillis )
+        throws IOException
+    {
+        guard.checkGuard( null );
+        if( debounceMillis <= 0 )
+        {
+            throw new IllegalArgumentException( "debounceMillis must be > 0" );
+        }
+        synchronized( loadLock )
+        {
+            if( watcher != null )
             {
-                applicable.add( grant );
+                return;
             }
+            watcher = new PolicyWatcher( this, debounceMillis );
+            watcher.watch( policyLocations );
+            watcher.start();
         }
-        // Merge any static permissions.
-        PermissionCollection pc = pd != null ? pd.getPermissions() : null;
-        if( pc != null )
+    }
+
+    /**
+     * Stops watching policy locations, if they are being watched.
+     */
+    public void stopWatching()
+    {
+        guard.checkGuard( null );
+        synchronized( loadLock )
         {
-            PermissionGrantBuilder pgb = PermissionGrantBuilder.newBuilder();
-            pgb.setDomain( new WeakReference<ProtectionDomain>( pd ) );
-            pgb.context( PermissionGrantBuilder.PROTECTIONDOMAIN );
-            Collection<Permission> perms = new LinkedList<Permission>();
-            Enumeration<Permission> en = pc.elements();
-            while( en.hasMoreElements() )
+            if( watcher != null )
             {
-                perms.add( en.nextElement() );
+                watcher.stop();
+                watcher = null;
             }
-            pgb.permissions( perms.toArray( new Permission[ perms.size() ] ) );
-            applicable.add( pgb.build() );
         }
-        return applicable;
+    }
+
+    /**
+     * @return the number of implies decisions answered by the decision
+     * cache, zero if the cache is disabled.
+     */
+    public long getDecisionCacheHits()
+    {
+        return decisionCache != null ? decisionCache.hits() : 0L;
+    }
+
+    /**
+     * @return the number of implies decisions that were not found in the
+     * decision cache, zero if the cache is disabled.
+     */
+    public long getDecisionCacheMisses()
+    {
+        return decisionCache != null ? decisionCache.misses() : 0L;
+    }
+
+    public Collection<PermissionGrant> getPermissionGrants( ProtectionDomain pd )
+    {
+        PolicyMetrics m = metrics;
+        if( m == null )
+        {
+            return snapshot.getPermissionGrants( pd );
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return snapshot.getPermissionGrants( pd );
+        }
+        finally
+        {
+            m.permissionGrants.record( System.nanoTime() - start );
+        }
     }
 
 //    public Collection<PermissionGrant> getPermissionGrants(boolean recursive) {
@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.lang.ref.WeakReference;
+import java.security.Permission;
+import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded cache of implies decisions, keyed weakly by ProtectionDomain and
+ * by Permission class, name and actions.
+ *
+ * The cache is divided into stripes selected by the identity hash code of
+ * the ProtectionDomain.  Each stripe is an open addressed table of immutable
+ * entries, read without locking or allocating, and written under the
+ * stripe's lock.  When a stripe exceeds its share of the capacity it is
+ * replaced by an empty table, rather than maintaining an eviction order on
+ * every hit.
+ *
+ * Hits and misses are counted in rows selected by thread id, each padded to
+ * a multiple of a cache line, as in LatencyHistogram, so threads checking
+ * the same domain don't write the same line.
+ *
+ * Entries refer to the domain and the Permission class weakly, a cached
+ * decision doesn't keep the domain, or the ClassLoader of the permission
+ * class, reachable.
+ *
+ * Decisions are only valid for the generation of policy state they were
+ * made against, the policy must publish new state before calling
+ * {@link #invalidate(Set)}, and must obtain the generation before reading
+ * policy state when making a decision to be cached.  Decisions for domains
+ * implied by the same grants in the new state are retained.
+ */
+final class DecisionCache
+{
+    // Hits, misses and padding.
+    private static final int ROW = 16;
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final int stripeCapacity;
+    private final AtomicLong generation;
+    private final int counterMask;
+    private final AtomicLongArray counters;
+
+    /**
+     * @param capacity maximum number of cached decisions, must be positive.
+     */
+    DecisionCache( int capacity )
+    {
+        if( capacity <= 0 )
+        {
+            throw new IllegalArgumentException( "capacity must be > 0" );
+        }
+        int n = 1;
+        int limit = Math.min( capacity, Runtime.getRuntime().availableProcessors() * 4 );
+        while( n < limit )
+        {
+            n <<= 1;
+        }
+        stripeCapacity = Math.max( 1, capacity / n );
+        int tableLength = 2;
+        while( tableLength < stripeCapacity * 2 )
+        {
+            tableLength <<= 1;
+        }
+        stripes = new Stripe[ n ];
+        for( int i = 0; i < n; i++ )
+        {
+            stripes[ i ] = new Stripe( tableLength );
+        }
+        mask = n - 1;
+        generation = new AtomicLong();
+        int processors = Runtime.getRuntime().availableProcessors();
+        int rows = 1;
+        while( rows < processors && rows < 64 )
+        {
+            rows <<= 1;
+        }
+        counterMask = rows - 1;
+        counters = new AtomicLongArray( rows * ROW );
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put}.
+     */
+    long generation()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Discards all decisions except those for the given domains, called
+     * after new policy state is published, in which these domains are
+     * implied by the same grants as before.
+     *
+     * Decisions being made when this is called are not cached.
+     */
+    void invalidate( Set<ProtectionDomain> retained )
+    {
+        long gen = generation.incrementAndGet();
+        for( Stripe stripe : stripes )
+        {
+            synchronized( stripe )
+            {
+                if( stripe.generation == gen - 1 )
+                {
+                    stripe.retain( retained, gen );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached decision, or null if none is cached.
+     */
+    Boolean get( ProtectionDomain domain, Permission permission )
+    {
+        Stripe stripe = stripeFor( domain );
+        long gen = generation.get();
+        Class<?> type = permission.getClass();
+        String name = permission.getName();
+        String actions = permission.getActions();
+        int hash = hash( domain, type, name, actions );
+        Entry[] table = stripe.table;
+        int m = table.length - 1;
+        for( int i = hash & m; ; i = ( i + 1 ) & m )
+        {
+            Entry e = table[ i ];
+            if( e == null )
+            {
+                break;
+            }
+            if( e.hash == hash && e.matches( domain, type, name, actions ) )
+            {
+                if( e.generation != gen )
+                {
+                    break;
+                }
+                count( HITS );
+                return e.decision;
+            }
+        }
+        count( MISSES );
+        return null;
+    }
+
+    /**
+     * Caches a decision, unless the generation has changed since the
+     * decision was made.
+     *
+     * @param gen the generation obtained before the decision was made.
+     */
+    void put( ProtectionDomain domain, Permission permission, boolean decision, long gen )
+    {
+        Stripe stripe = stripeFor( domain );
+        Class<?> type = permission.getClass();
+        String name = permission.getName();
+        String actions = permission.getActions();
+        int hash = hash( domain, type, name, actions );
+        synchronized( stripe )
+        {
+            if( gen != generation.get() )
+            {
+                return;
+            }
+            if( stripe.generation != gen || stripe.size >= stripeCapacity )
+            {
+                stripe.clear( gen );
+            }
+            Entry entry = new Entry( domain, type, name, actions, hash, decision ? Boolean.TRUE : Boolean.FALSE, gen );
+            if( stripe.insert( entry ) )
+            {
+                stripe.size++;
+            }
+        }
+    }
+
+    long hits()
+    {
+        return sum( HITS );
+    }
+
+    long misses()
+    {
+        return sum( MISSES );
+    }
+
+    private void count( int counter )
+    {
+        counters.incrementAndGet( ( (int) Thread.currentThread().getId() & counterMask ) * ROW + counter );
+    }
+
+    private long sum( int counter )
+    {
+        long sum = 0;
+        for( int row = 0, l = counters.length(); row < l; row += ROW )
+        {
+            sum += counters.get( row + counter );
+        }
+        return sum;
+    }
+
+    private Stripe stripeFor( ProtectionDomain domain )
+    {
+        int h = System.identityHashCode( domain );
+        h ^= ( h >>> 16 );
+        return stripes[ h & mask ];
+    }
+
+    private static int hash( ProtectionDomain domain, Class<?> type, String name, String actions )
+    {
+        int hash = System.identityHashCode( domain );
+        hash = 31 * hash + System.identityHashCode( type );
+        hash = 31 * hash + ( name != null ? name.hashCode() : 0 );
+        hash = 31 * hash + ( actions != null ? actions.hashCode() : 0 );
+        return hash ^ ( hash >>> 16 );
+    }
+
+    private static final class Stripe
+    {
+        private final int length;
+        // Replaced whole when cleared, readers may still be probing the previous table.
+        private volatile Entry[] table;
+        private long generation;
+        private int size;
+
+        private Stripe( int length )
+        {
+            this.length = length;
+            table = new Entry[ length ];
+        }
+
+        private void clear( long gen )
+        {
+            table = new Entry[ length ];
+            size = 0;
+            generation = gen;
+        }
+
+        /**
+         * @return true if the entry was added, false if it replaced another.
+         */
+        private boolean insert( Entry entry )
+        {
+            Entry[] t = table;
+            int m = t.length - 1;
+            for( int i = entry.hash & m; ; i = ( i + 1 ) & m )
+            {
+                Entry e = t[ i ];
+                if( e == null )
+                {
+                    t[ i ] = entry;
+                    return true;
+                }
+                if( e.hash == entry.hash && e.matches( entry ) )
+                {
+                    t[ i ] = entry;
+                    return false;
+                }
+            }
+        }
+
+        private void retain( Set<ProtectionDomain> retained, long gen )
+        {
+            Entry[] old = table;
+            clear( gen );
+            for( Entry e : old )
+            {
+                ProtectionDomain domain = e != null ? e.get() : null;
+                Class<?> type = e != null ? e.type.get() : null;
+                if( domain != null && type != null && retained.contains( domain ) )
+                {
+                    insert( new Entry( domain, type, e.name, e.actions, e.hash, e.decision, gen ) );
+                    size++;
+                }
+            }
+        }
+    }
+
+    /**
+     * A decision, immutable so it may be read without locking.
+     *
+     * Permission equals and hashCode implementations cannot be relied upon,
+     * the same fields compared by PermissionComparator are used instead.
+     */
+    private static final class Entry extends WeakReference<ProtectionDomain>
+    {
+        private final WeakReference<Class<?>> type;
+        private final String name;
+        private final String actions;
+        private final int hash;
+        private final Boolean decision;
+        private final long generation;
+
+        private Entry( ProtectionDomain domain, Class<?> type, String name, String actions, int hash,
+                       Boolean decision, long generation )
+        {
+            super( domain );
+            this.type = new WeakReference<Class<?>>( type );
+            this.name = name;
+            this.actions = actions;
+            this.hash = hash;
+            this.decision = decision;
+            this.generation = generation;
+        }
+
+        private boolean matches( ProtectionDomain domain, Class<?> type, String name, String actions )
+        {
+            return get() == domain
+                   && this.type.get() == type
+                   && ( this.name == null ? name == null : this.name.equals( name ) )
+                   && ( this.actions == null ? actions == null : this.actions.equals( actions ) );
+        }
+
+        private boolean matches( Entry e )
+        {
+            ProtectionDomain domain = e.get();
+            return domain != null && matches( domain, e.type.get(), e.name, e.actions );
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.security.ProtectionDomain;
+import org.hedhman.blackadder.parser.DomainKey;
+import org.hedhman.blackadder.parser.SubjectDomain;
+
+/**
+ * The domains of an access control context already evaluated, so a domain
+ * appearing on the stack many times, or loaded from the same code by
+ * different ClassLoader's, is evaluated once.
+ *
+ * Domains are equivalent if they have the same static PermissionCollection
+ * and the same DomainKey; the policy makes the same decisions for both.  A
+ * SubjectDomain is only equivalent to itself, its Principal's may change.
+ * Domains are only compared by identity if the policy has grants to
+ * particular ProtectionDomain's or ClassLoader's.
+ */
+final class DistinctDomains
+{
+    private final ProtectionDomain[] seen;
+    private final boolean byKey;
+    private int size;
+
+    /**
+     * @param capacity the number of domains that may be added.
+     * @param byKey    true if equivalent domains are the same, see {@link GrantIndex#isKeyed()}.
+     */
+    DistinctDomains( int capacity, boolean byKey )
+    {
+        seen = new ProtectionDomain[ capacity ];
+        this.byKey = byKey;
+    }
+
+    /**
+     * @return true if the domain is neither the same as, nor equivalent to,
+     * one added before.
+     */
+    boolean add( ProtectionDomain domain )
+    {
+        for( int i = 0; i < size; i++ )
+        {
+            if( seen[ i ] == domain )
+            {
+                return false;
+            }
+        }
+        for( int i = 0; byKey && i < size; i++ )
+        {
+            if( isEquivalent( seen[ i ], domain ) )
+            {
+                return false;
+            }
+        }
+        seen[ size++ ] = domain;
+        return true;
+    }
+
+    static boolean isEquivalent( ProtectionDomain a, ProtectionDomain b )
+    {
+        if( a == b )
+        {
+            return true;
+        }
+        if( a == null || b == null || a instanceof SubjectDomain || b instanceof SubjectDomain )
+        {
+            return false;
+        }
+        return a.getPermissions() == b.getPermissions() && DomainKey.of( a ) == DomainKey.of( b );
+    }
+}
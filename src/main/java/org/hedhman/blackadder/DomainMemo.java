@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressed hash table from ProtectionDomain identity to the
+ * DomainPermissions evaluated for it, with weakly referenced keys.
+ *
+ * Lookups neither lock nor allocate, entries are immutable and published
+ * into an AtomicReferenceArray; insertions are serialised and the table is
+ * copied when it becomes half full, which is also when entries of
+ * collected domains are discarded.
+ */
+final class DomainMemo
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<Entry> table;
+    private int size; // Guarded by this.
+
+    DomainMemo()
+    {
+        table = new AtomicReferenceArray<Entry>( INITIAL_CAPACITY );
+    }
+
+    /**
+     * @return the memoised value, or null.
+     */
+    DomainPermissions get( ProtectionDomain domain )
+    {
+        AtomicReferenceArray<Entry> tab = table;
+        int mask = tab.length() - 1;
+        int i = hash( domain ) & mask;
+        Entry e;
+        while( ( e = tab.get( i ) ) != null )
+        {
+            if( e.get() == domain )
+            {
+                return e.value;
+            }
+            i = ( i + 1 ) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Memoises a value, unless one is already present.
+     *
+     * @return the memoised value.
+     */
+    synchronized DomainPermissions putIfAbsent( ProtectionDomain domain, DomainPermissions value )
+    {
+        DomainPermissions existing = get( domain );
+        if( existing != null )
+        {
+            return existing;
+        }
+        AtomicReferenceArray<Entry> tab = table;
+        if( ( size + 1 ) * 2 > tab.length() )
+        {
+            tab = rehash( tab );
+            table = tab;
+        }
+        insert( tab, new Entry( domain, value ) );
+        size++;
+        return value;
+    }
+
+    /**
+     * @return the domains that haven't been collected and their memoised
+     * values, strongly referenced by the map returned.
+     */
+    Map<ProtectionDomain, DomainPermissions> entries()
+    {
+        Map<ProtectionDomain, DomainPermissions> result = new IdentityHashMap<ProtectionDomain, DomainPermissions>();
+        AtomicReferenceArray<Entry> tab = table;
+        for( int i = 0, l = tab.length(); i < l; i++ )
+        {
+            Entry e = tab.get( i );
+            ProtectionDomain domain = e != null ? e.get() : null;
+            if( domain != null )
+            {
+                result.put( domain, e.value );
+            }
+        }
+        return result;
+    }
+
+    private static int hash( ProtectionDomain domain )
+    {
+        int h = System.identityHashCode( domain );
+        return h ^ ( h >>> 16 );
+    }
+
+    private static void insert( AtomicReferenceArray<Entry> tab, Entry entry )
+    {
+        int mask = tab.length() - 1;
+        int i = entry.hash & mask;
+        while( tab.get( i ) != null )
+        {
+            i = ( i + 1 ) & mask;
+        }
+        tab.set( i, entry );
+    }
+
+    // Called with lock held, discards entries of collected domains.
+    private AtomicReferenceArray<Entry> rehash( AtomicReferenceArray<Entry> old )
+    {
+        int live = 0;
+        for( int i = 0, l = old.length(); i < l; i++ )
+        {
+            Entry e = old.get( i );
+            if( e != null && e.get() != null )
+            {
+                live++;
+            }
+        }
+        int capacity = INITIAL_CAPACITY;
+        while( capacity < ( live + 1 ) * 4 )
+        {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Entry> tab = new AtomicReferenceArray<Entry>( capacity );
+        for( int i = 0, l = old.length(); i < l; i++ )
+        {
+            Entry e = old.get( i );
+            if( e != null && e.get() != null )
+            {
+                insert( tab, e );
+            }
+        }
+        size = live;
+        return tab;
+    }
+
+    private static final class Entry extends WeakReference<ProtectionDomain>
+    {
+        private final int hash;
+        private final DomainPermissions value;
+
+        private Entry( ProtectionDomain domain, DomainPermissions value )
+        {
+            super( domain );
+            hash = hash( domain );
+            this.value = value;
+        }
+    }
+}
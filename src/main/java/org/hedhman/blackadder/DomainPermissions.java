@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.security.AllPermission;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.hedhman.blackadder.parser.SubjectPrincipals;
+
+/**
+ * The grants of one policy state that imply a ProtectionDomain, and a
+ * summary of the domain's static Permission's, evaluated once per domain.
+ *
+ * Neither the domain nor its static PermissionCollection is referenced,
+ * a Permission class may be loaded by the domain's ClassLoader, which
+ * references the domain, preventing it from being collected; the static
+ * PermissionCollection is read-only once the domain is constructed, so it is
+ * retrieved from the domain when needed.
+ */
+final class DomainPermissions
+{
+    private final BitSet applicable;
+    private final boolean privileged;
+    private final boolean staticPrivileged;
+    private final Set<String> staticClasses;
+
+    DomainPermissions( GrantIndex index, ProtectionDomain domain )
+    {
+        PermissionGrant[] grants = index.grants();
+        BitSet implied = new BitSet( grants.length );
+        boolean all = false;
+        // Every grant sees the same Principal's of a SubjectDomain.
+        SubjectPrincipals.Pin pin = SubjectPrincipals.pin( domain );
+        try
+        {
+            BitSet candidates = index.candidates( domain );
+            for( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i + 1 ) )
+            {
+                if( grants[ i ].implies( domain ) )
+                {
+                    implied.set( i );
+                    all |= grants[ i ].isPrivileged();
+                }
+            }
+        }
+        finally
+        {
+            SubjectPrincipals.unpin( pin );
+        }
+        Set<String> classes = Collections.emptySet();
+        boolean staticAll = false;
+        PermissionCollection staticPC = domain != null ? domain.getPermissions() : null;
+        if( staticPC != null )
+        {
+            classes = new HashSet<String>();
+            Enumeration<Permission> e = staticPC.elements();
+            while( e.hasMoreElements() )
+            {
+                Permission p = e.nextElement();
+                if( p instanceof AllPermission )
+                {
+                    staticAll = true;
+                }
+                classes.add( PermissionClassIndex.classNameOf( p ) );
+            }
+        }
+        applicable = implied;
+        privileged = all || staticAll;
+        staticPrivileged = staticAll;
+        staticClasses = classes;
+    }
+
+    /**
+     * Carries the evaluation of a domain over to new policy state, only
+     * grants that were added are asked if they imply the domain.
+     *
+     * @param index    the new policy state.
+     * @param domain   the domain previous was evaluated for.
+     * @param previous the evaluation against the current policy state.
+     * @param diff     the difference between the current and new grants.
+     */
+    DomainPermissions( GrantIndex index, ProtectionDomain domain, DomainPermissions previous, GrantDiff diff )
+    {
+        PermissionGrant[] grants = index.grants();
+        BitSet implied = new BitSet( grants.length );
+        BitSet was = previous.applicable;
+        for( int i = was.nextSetBit( 0 ); i >= 0; i = was.nextSetBit( i + 1 ) )
+        {
+            int ordinal = diff.ordinal( i );
+            if( ordinal >= 0 )
+            {
+                implied.set( ordinal );
+            }
+        }
+        BitSet candidates = index.candidates( domain );
+        candidates.and( diff.added() );
+        for( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i + 1 ) )
+        {
+            if( grants[ i ].implies( domain ) )
+            {
+                implied.set( i );
+            }
+        }
+        boolean all = previous.staticPrivileged;
+        for( int i = implied.nextSetBit( 0 ); i >= 0 && !all; i = implied.nextSetBit( i + 1 ) )
+        {
+            all = grants[ i ].isPrivileged();
+        }
+        applicable = implied;
+        privileged = all;
+        staticPrivileged = previous.staticPrivileged;
+        staticClasses = previous.staticClasses;
+    }
+
+    /**
+     * @return true if the grant with this ordinal implies the domain.
+     */
+    boolean applies( int ordinal )
+    {
+        return applicable.get( ordinal );
+    }
+
+    /**
+     * @return the ordinals of grants implying the domain, must not be mutated.
+     */
+    BitSet applicable()
+    {
+        return applicable;
+    }
+
+    /**
+     * @return true if a grant or static Permission implying the domain is AllPermission.
+     */
+    boolean isPrivileged()
+    {
+        return privileged;
+    }
+
+    /**
+     * @return true if the domain has static Permission's that may imply a
+     * Permission of the given class.
+     */
+    boolean hasStaticPermissions( Class<?> klass )
+    {
+        return staticClasses.contains( klass.getName() );
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.hedhman.blackadder.parser.PermissionGrant;
+
+/**
+ * The difference between the grants of the current policy state and a
+ * freshly parsed set of grants, compared with PermissionGrant equals.
+ *
+ * A fresh grant equal to a current grant is replaced by the current
+ * instance, so anything built for it may be kept; grants are otherwise in
+ * the order they were parsed.  A grant parsed more than once is matched
+ * once for each time it's current.
+ */
+final class GrantDiff
+{
+    private final PermissionGrant[] grants;
+    private final int[] ordinals;
+    private final BitSet added;
+    private final BitSet removed;
+
+    /**
+     * @param previous the current grants.
+     * @param fresh    the grants parsed, replaced by current instances in place.
+     */
+    GrantDiff( PermissionGrant[] previous, PermissionGrant[] fresh )
+    {
+        Map<PermissionGrant, LinkedList<Integer>> current = new HashMap<PermissionGrant, LinkedList<Integer>>();
+        for( int i = 0; i < previous.length; i++ )
+        {
+            LinkedList<Integer> same = current.get( previous[ i ] );
+            if( same == null )
+            {
+                same = new LinkedList<Integer>();
+                current.put( previous[ i ], same );
+            }
+            same.add( i );
+        }
+        ordinals = new int[ previous.length ];
+        removed = new BitSet( previous.length );
+        removed.set( 0, previous.length );
+        added = new BitSet( fresh.length );
+        for( int i = 0; i < fresh.length; i++ )
+        {
+            LinkedList<Integer> same = current.get( fresh[ i ] );
+            if( same == null || same.isEmpty() )
+            {
+                added.set( i );
+                continue;
+            }
+            int ordinal = same.removeFirst();
+            fresh[ i ] = previous[ ordinal ];
+            ordinals[ ordinal ] = i;
+            removed.clear( ordinal );
+        }
+        grants = fresh;
+    }
+
+    /**
+     * @return the grants of the new state, the array must not be mutated.
+     */
+    PermissionGrant[] grants()
+    {
+        return grants;
+    }
+
+    /**
+     * @return true if any grant was added or removed.
+     */
+    boolean isChanged()
+    {
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /**
+     * @return the ordinal in the new state of a current grant, or -1 if removed.
+     */
+    int ordinal( int previousOrdinal )
+    {
+        return removed.get( previousOrdinal ) ? -1 : ordinals[ previousOrdinal ];
+    }
+
+    /**
+     * @return the ordinals in the new state of added grants, must not be mutated.
+     */
+    BitSet added()
+    {
+        return added;
+    }
+
+    /**
+     * @return the ordinals in the current state of removed grants, must not be mutated.
+     */
+    BitSet removed()
+    {
+        return removed;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.lang.ref.WeakReference;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.hedhman.blackadder.parser.CertificateIndex;
+import org.hedhman.blackadder.parser.CodebaseIndex;
+import org.hedhman.blackadder.parser.DomainKey;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.hedhman.blackadder.parser.PrincipalIndex;
+import org.hedhman.blackadder.parser.SubjectDomain;
+
+/**
+ * Immutable policy state, the grants in the order they were parsed and the
+ * indexes built from them, published within a single PolicySnapshot so the
+ * ordinals used by the indexes always refer to the same array.
+ */
+final class GrantIndex
+{
+    private final PermissionGrant[] grants;
+    private final PermissionClassIndex permissions;
+    private final CodebaseIndex codebases;
+    private final PrincipalIndex principals;
+    private final CertificateIndex certificates;
+    private final DomainMemo memo;
+    // Null if a grant may imply domains with the same DomainKey differently.
+    private final Map<DomainKey, Equivalent> equivalents; // Guarded by itself.
+
+    /**
+     * @param grants     the grants, the array must not be mutated after construction.
+     * @param comparator orders Permission's added to prebuilt collections.
+     */
+    GrantIndex( PermissionGrant[] grants, Comparator<Permission> comparator )
+    {
+        this( grants, comparator, null );
+    }
+
+    /**
+     * Builds the state following previous, reusing the prebuilt collections
+     * of the grants they share.
+     *
+     * @param diff       the difference from previous.
+     * @param comparator orders Permission's added to prebuilt collections.
+     * @param previous   the current state.
+     */
+    GrantIndex( GrantDiff diff, Comparator<Permission> comparator, GrantIndex previous )
+    {
+        this( diff.grants(), comparator, previous.permissions );
+    }
+
+    private GrantIndex( PermissionGrant[] grants, Comparator<Permission> comparator, PermissionClassIndex previous )
+    {
+        this.grants = grants;
+        permissions = new PermissionClassIndex( grants, comparator, previous );
+        codebases = new CodebaseIndex( grants );
+        principals = new PrincipalIndex( grants );
+        certificates = new CertificateIndex( grants );
+        memo = new DomainMemo();
+        boolean keyed = true;
+        for( PermissionGrant grant : grants )
+        {
+            keyed &= DomainKey.isKeyed( grant );
+        }
+        equivalents = keyed ? new WeakHashMap<DomainKey, Equivalent>() : null;
+    }
+
+    /**
+     * Carries the domains memoised by previous over to this state, before it
+     * is published.  Only grants that were added are asked if they imply each
+     * domain.
+     *
+     * @param previous the current state.
+     * @param diff     the difference from previous to this.
+     *
+     * @return the domains whose grants are the same in both states, for
+     * which decisions made against previous remain valid.
+     */
+    Set<ProtectionDomain> migrate( GrantIndex previous, GrantDiff diff )
+    {
+        Set<ProtectionDomain> unaffected = Collections.newSetFromMap( new IdentityHashMap<ProtectionDomain, Boolean>() );
+        for( Map.Entry<ProtectionDomain, DomainPermissions> e : previous.memo.entries().entrySet() )
+        {
+            ProtectionDomain domain = e.getKey();
+            DomainPermissions was = e.getValue();
+            DomainPermissions now = new DomainPermissions( this, domain, was, diff );
+            memo.putIfAbsent( domain, now );
+            if( !was.applicable().intersects( diff.removed() ) && !now.applicable().intersects( diff.added() ) )
+            {
+                unaffected.add( domain );
+            }
+        }
+        return unaffected;
+    }
+
+    /**
+     * @return true if every grant implies domains with the same DomainKey alike.
+     */
+    boolean isKeyed()
+    {
+        return equivalents != null;
+    }
+
+    /**
+     * @return all grants, the array must not be mutated.
+     */
+    PermissionGrant[] grants()
+    {
+        return grants;
+    }
+
+    PermissionClassIndex permissions()
+    {
+        return permissions;
+    }
+
+    /**
+     * Returns the grants of this state that imply the domain, memoised for
+     * each domain, except SubjectDomain's, whose Principal's may change.
+     */
+    DomainPermissions domainPermissions( ProtectionDomain domain )
+    {
+        if( domain == null || domain instanceof SubjectDomain )
+        {
+            return evaluate( domain );
+        }
+        DomainPermissions result = memo.get( domain );
+        if( result == null )
+        {
+            result = memo.putIfAbsent( domain, evaluate( domain ) );
+        }
+        return result;
+    }
+
+    // A sample of evaluations are recorded as Flight Recorder events.
+    private DomainPermissions evaluate( ProtectionDomain domain )
+    {
+        PolicyEvents events = PolicyEvents.get();
+        if( events != null && events.sampleGrantMatch() )
+        {
+            long start = System.nanoTime();
+            DomainPermissions result = match( domain );
+            long nanos = System.nanoTime() - start;
+            events.grantMatch( domain, candidates( domain ).cardinality(), result, nanos );
+            return result;
+        }
+        return match( domain );
+    }
+
+    /**
+     * Domains with the same DomainKey and static PermissionCollection share
+     * DomainPermissions, such as those created by a DomainCombiner for the
+     * same code.
+     */
+    private DomainPermissions match( ProtectionDomain domain )
+    {
+        if( domain == null || domain instanceof SubjectDomain || equivalents == null )
+        {
+            return new DomainPermissions( this, domain );
+        }
+        DomainKey key = DomainKey.of( domain );
+        PermissionCollection staticPC = domain.getPermissions();
+        synchronized( equivalents )
+        {
+            Equivalent e = equivalents.get( key );
+            if( e != null && e.isFor( staticPC ) )
+            {
+                return e.permissions;
+            }
+        }
+        DomainPermissions result = new DomainPermissions( this, domain );
+        synchronized( equivalents )
+        {
+            equivalents.put( key, new Equivalent( staticPC, result ) );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ordinals of the grants whose codebase, signers and
+     * Principal's may imply the domain, each must still be asked if it
+     * implies the domain.
+     */
+    BitSet candidates( ProtectionDomain domain )
+    {
+        CodeSource cs = domain != null ? domain.getCodeSource() : null;
+        BitSet result = codebases.candidates( cs );
+        result.and( certificates.candidates( cs ) );
+        result.and( principals.candidates( domain ) );
+        return result;
+    }
+
+    /**
+     * Returns the ordinals of the grants that may imply the CodeSource
+     * without Principal's.
+     */
+    BitSet candidates( CodeSource cs )
+    {
+        BitSet result = codebases.candidates( cs );
+        result.and( certificates.candidates( cs ) );
+        result.and( principals.candidates( (Principal[]) null ) );
+        return result;
+    }
+
+    private static final class Equivalent
+    {
+        // Null if the domain has no static PermissionCollection.
+        private final WeakReference<PermissionCollection> staticPC;
+        private final DomainPermissions permissions;
+
+        private Equivalent( PermissionCollection staticPC, DomainPermissions permissions )
+        {
+            this.staticPC = staticPC != null ? new WeakReference<PermissionCollection>( staticPC ) : null;
+            this.permissions = permissions;
+        }
+
+        private boolean isFor( PermissionCollection pc )
+        {
+            return staticPC == null ? pc == null : pc != null && staticPC.get() == pc;
+        }
+    }
+}
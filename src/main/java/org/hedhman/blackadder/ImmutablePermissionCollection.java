@@ -0,0 +1,715 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.FilePermission;
+import java.net.SocketPermission;
+import java.security.AccessController;
+import java.security.AllPermission;
+import java.security.BasicPermission;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.PrivilegedAction;
+import java.security.UnresolvedPermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PropertyPermission;
+import java.util.WeakHashMap;
+
+/**
+ * Read-only PermissionCollection, built once and safely published, whose
+ * implies method neither locks nor, for the common Permission types,
+ * allocates.
+ *
+ * Permission's are grouped by class, like java.security.Permissions, and
+ * each group is held by a specialised sub-collection:
+ * <ul>
+ * <li>BasicPermission's that don't override implies or newPermissionCollection,
+ * and PropertyPermission's, in hash tables of names and wildcard prefixes,
+ * looked up without creating substrings.</li>
+ * <li>FilePermission's in a flat array, merged by path, with a fast path
+ * for &lt;&lt;ALL FILES&gt;&gt;.</li>
+ * <li>SocketPermission's in the order given, indexed by host name so a
+ * Permission for a granted host is usually implied without consulting the
+ * others.</li>
+ * </ul>
+ * Other types use the collection returned by their newPermissionCollection
+ * method, or are checked one by one if it returns null.  Types with
+ * UnresolvedPermission's are held in a java.security.Permissions, which
+ * resolves them when first needed.  The implication semantics of the JDK
+ * collections are preserved, including accumulation of actions across
+ * Permission's.
+ *
+ * Permission's must be supplied in the order they are to be added, for
+ * SocketPermission this is descending PermissionComparator order.
+ */
+final class ImmutablePermissionCollection extends PermissionCollection
+{
+    private static final long serialVersionUID = 1L;
+    private static final Map<Class<?>, Boolean> PLAIN_TYPES =
+        Collections.synchronizedMap( new WeakHashMap<Class<?>, Boolean>() );
+
+    private final Permission[] permissions;
+    private final boolean allPermission;
+    private final Map<String, Group> groups;
+
+    ImmutablePermissionCollection( Collection<Permission> perms )
+    {
+        permissions = perms.toArray( new Permission[ perms.size() ] );
+        Map<String, List<Permission>> byClass = new LinkedHashMap<String, List<Permission>>();
+        boolean all = false;
+        for( Permission p : permissions )
+        {
+            if( p instanceof AllPermission )
+            {
+                all = true;
+            }
+            String name = PermissionClassIndex.classNameOf( p );
+            List<Permission> list = byClass.get( name );
+            if( list == null )
+            {
+                list = new ArrayList<Permission>();
+                byClass.put( name, list );
+            }
+            list.add( p );
+        }
+        Map<String, Group> result = new HashMap<String, Group>( byClass.size() * 2 );
+        for( Map.Entry<String, List<Permission>> e : byClass.entrySet() )
+        {
+            result.put( e.getKey(), group( e.getValue() ) );
+        }
+        allPermission = all;
+        groups = result;
+        setReadOnly();
+    }
+
+    private static Group group( List<Permission> perms )
+    {
+        final Class<?> type = perms.get( 0 ).getClass();
+        for( Permission p : perms )
+        {
+            if( p.getClass() != type || p instanceof UnresolvedPermission )
+            {
+                return new Delegate( perms );
+            }
+        }
+        if( type == PropertyPermission.class )
+        {
+            return new Names( type, true, perms );
+        }
+        if( type == FilePermission.class )
+        {
+            return new Files( perms );
+        }
+        if( type == SocketPermission.class )
+        {
+            return new Sockets( perms );
+        }
+        Boolean plain = PLAIN_TYPES.get( type );
+        if( plain == null )
+        {
+            // Reflection is privileged, it may be used while checking Permission's.
+            plain = AccessController.doPrivileged( new PrivilegedAction<Boolean>()
+            {
+                public Boolean run()
+                {
+                    return isPlainBasicPermission( type );
+                }
+            } );
+            PLAIN_TYPES.put( type, plain );
+        }
+        if( plain )
+        {
+            return new Names( type, false, perms );
+        }
+        PermissionCollection pc = perms.get( 0 ).newPermissionCollection();
+        if( pc == null )
+        {
+            return new Each( perms );
+        }
+        for( Permission p : perms )
+        {
+            pc.add( p );
+        }
+        pc.setReadOnly();
+        return new Delegate( pc );
+    }
+
+    /**
+     * Returns true if the BasicPermission subclass has the name semantics of
+     * BasicPermission, including its PermissionCollection.
+     */
+    static boolean isPlainBasicPermission( Class<?> type )
+    {
+        if( !BasicPermission.class.isAssignableFrom( type ) )
+        {
+            return false;
+        }
+        try
+        {
+            return type.getMethod( "implies", Permission.class ).getDeclaringClass() == BasicPermission.class
+                   && type.getMethod( "newPermissionCollection" ).getDeclaringClass() == BasicPermission.class;
+        }
+        catch( NoSuchMethodException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the mask of comma separated actions, each action's bit is
+     * 1 shifted left by its index in words, unknown actions are ignored.
+     */
+    static int mask( String actions, String[] words )
+    {
+        int result = 0;
+        if( actions == null )
+        {
+            return result;
+        }
+        int l = actions.length();
+        int start = 0;
+        while( start < l )
+        {
+            int end = actions.indexOf( ',', start );
+            if( end < 0 )
+            {
+                end = l;
+            }
+            int s = start;
+            int e = end;
+            while( s < e && Character.isWhitespace( actions.charAt( s ) ) )
+            {
+                s++;
+            }
+            while( e > s && Character.isWhitespace( actions.charAt( e - 1 ) ) )
+            {
+                e--;
+            }
+            for( int i = 0; i < words.length; i++ )
+            {
+                String word = words[ i ];
+                if( word.length() == e - s && actions.regionMatches( true, s, word, 0, e - s ) )
+                {
+                    result |= 1 << i;
+                }
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    @Override
+    public void add( Permission permission )
+    {
+        throw new SecurityException( "attempt to add a Permission to a readonly PermissionCollection" );
+    }
+
+    @Override
+    public boolean implies( Permission permission )
+    {
+        if( allPermission )
+        {
+            return true;
+        }
+        Group group = groups.get( permission.getClass().getName() );
+        return group != null && group.implies( permission );
+    }
+
+    @Override
+    public Enumeration<Permission> elements()
+    {
+        return Collections.enumeration( Arrays.asList( permissions ) );
+    }
+
+    // Serialized as java.security.Permissions, the groups are not serializable.
+    private Object writeReplace()
+    {
+        Permissions result = new Permissions();
+        for( Permission p : permissions )
+        {
+            result.add( p );
+        }
+        result.setReadOnly();
+        return result;
+    }
+
+    /**
+     * The Permission's of one class.
+     */
+    private abstract static class Group
+    {
+        abstract boolean implies( Permission permission );
+    }
+
+    /**
+     * A PermissionCollection providing the semantics, for mixed classes of
+     * the same name, UnresolvedPermission's, or the type's own collection.
+     */
+    private static final class Delegate extends Group
+    {
+        private final PermissionCollection collection;
+
+        private Delegate( List<Permission> perms )
+        {
+            Permissions pc = new Permissions();
+            for( Permission p : perms )
+            {
+                pc.add( p );
+            }
+            pc.setReadOnly();
+            collection = pc;
+        }
+
+        private Delegate( PermissionCollection collection )
+        {
+            this.collection = collection;
+        }
+
+        @Override
+        boolean implies( Permission permission )
+        {
+            return collection.implies( permission );
+        }
+    }
+
+    /**
+     * Permission's without a collection of their own, checked in turn.
+     */
+    private static final class Each extends Group
+    {
+        private final Permission[] perms;
+
+        private Each( List<Permission> perms )
+        {
+            this.perms = perms.toArray( new Permission[ perms.size() ] );
+        }
+
+        @Override
+        boolean implies( Permission permission )
+        {
+            for( Permission p : perms )
+            {
+                if( p.implies( permission ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * BasicPermission or PropertyPermission names and wildcards, with the
+     * semantics of their JDK collections: a name is implied by "*", by an
+     * equal name, or by a wildcard "prefix.*" where the name starts with
+     * "prefix.".  Actions of PropertyPermission's accumulate across names.
+     */
+    private static final class Names extends Group
+    {
+        private static final String[] PROPERTY_ACTIONS = { "read", "write" };
+        private static final String EXIT_VM = "exitVM";
+        private static final String EXIT_VM_CANONICAL = "exitVM.*";
+
+        private final Class<?> type;
+        private final boolean property;
+        private final boolean exitVM; // RuntimePermission "exitVM" means "exitVM.*".
+        private final int anyName;
+        private final NameTable exact;
+        private final NameTable wildcards; // Prefixes, including the final '.'.
+
+        private Names( Class<?> type, boolean property, List<Permission> perms )
+        {
+            this.type = type;
+            this.property = property;
+            exitVM = type == RuntimePermission.class;
+            int any = 0;
+            NameTable names = new NameTable( false );
+            NameTable prefixes = new NameTable( false );
+            for( Permission p : perms )
+            {
+                int m = property ? mask( p.getActions(), PROPERTY_ACTIONS ) : 1;
+                String name = canonical( p.getName() );
+                if( name.equals( "*" ) )
+                {
+                    any |= m;
+                }
+                else if( name.endsWith( ".*" ) )
+                {
+                    prefixes.put( name.substring( 0, name.length() - 1 ), m );
+                }
+                names.put( name, m );
+            }
+            anyName = any;
+            exact = names;
+            wildcards = prefixes;
+        }
+
+        private String canonical( String name )
+        {
+            return exitVM && EXIT_VM.equals( name ) ? EXIT_VM_CANONICAL : name;
+        }
+
+        @Override
+        boolean implies( Permission permission )
+        {
+            if( permission.getClass() != type )
+            {
+                return false;
+            }
+            int desired = property ? mask( permission.getActions(), PROPERTY_ACTIONS ) : 1;
+            int effective = anyName;
+            if( ( effective & desired ) == desired )
+            {
+                return true;
+            }
+            String name = canonical( permission.getName() );
+            int l = name.length();
+            effective |= exact.get( name, l );
+            if( ( effective & desired ) == desired )
+            {
+                return true;
+            }
+            if( !property && l > 0 && name.charAt( l - 1 ) == '.' && wildcards.get( name, l ) != 0 )
+            {
+                // BasicPermissionCollection stops at the first wildcard found,
+                // "a.b.*" doesn't imply "a.b." and a shorter prefix isn't tried.
+                return false;
+            }
+            for( int i = name.indexOf( '.' ); i >= 0; i = name.indexOf( '.', i + 1 ) )
+            {
+                effective |= wildcards.get( name, i + 1 );
+                if( ( effective & desired ) == desired )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * FilePermission's, merged by path, each represented by a FilePermission
+     * with all actions, so its implies method compares only paths, and the
+     * mask of the actions actually granted.
+     */
+    private static final class Files extends Group
+    {
+        private static final String[] ACTIONS = { "read", "write", "execute", "delete", "readlink" };
+        private static final String ALL_ACTIONS = "read,write,execute,delete,readlink";
+        private static final String ALL_FILES = "<<ALL FILES>>";
+
+        private final int allFiles;
+        private final FilePermission[] paths;
+        private final int[] masks;
+
+        private Files( List<Permission> perms )
+        {
+            Map<String, Integer> byPath = new LinkedHashMap<String, Integer>();
+            int all = 0;
+            for( Permission p : perms )
+            {
+                int m = mask( p.getActions(), ACTIONS );
+                if( ALL_FILES.equals( p.getName() ) )
+                {
+                    all |= m;
+                    continue;
+                }
+                Integer existing = byPath.get( p.getName() );
+                byPath.put( p.getName(), existing == null ? m : existing | m );
+            }
+            allFiles = all;
+            paths = new FilePermission[ byPath.size() ];
+            masks = new int[ byPath.size() ];
+            int i = 0;
+            for( Map.Entry<String, Integer> e : byPath.entrySet() )
+            {
+                paths[ i ] = new FilePermission( e.getKey(), ALL_ACTIONS );
+                masks[ i ] = e.getValue();
+                i++;
+            }
+        }
+
+        @Override
+        boolean implies( Permission permission )
+        {
+            if( !( permission instanceof FilePermission ) )
+            {
+                return false;
+            }
+            int desired = mask( permission.getActions(), ACTIONS );
+            int effective = allFiles;
+            if( ( effective & desired ) == desired )
+            {
+                return true;
+            }
+            for( int i = 0, l = paths.length; i < l; i++ )
+            {
+                int m = masks[ i ];
+                if( ( m & desired & ~effective ) != 0 && paths[ i ].implies( permission ) )
+                {
+                    effective |= m;
+                    if( ( effective & desired ) == desired )
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * SocketPermission's in the order SocketPermissionCollection tries them,
+     * last added first, each represented by a SocketPermission with all
+     * actions and the mask of the actions granted.
+     *
+     * SocketPermission may resolve host names to compare them, so no
+     * Permission can be excluded by its host name alone; instead those
+     * granted for the exact host being checked are tried first, which usually
+     * succeeds, before all are tried in order.
+     */
+    private static final class Sockets extends Group
+    {
+        private static final String[] ACTIONS = { "connect", "listen", "accept", "resolve" };
+        private static final String ALL_ACTIONS = "connect,listen,accept,resolve";
+
+        private final SocketPermission[] hosts;
+        private final int[] masks;
+        private final NameTable byHost; // Host name to index of bucket + 1.
+        private final int[][] buckets;
+
+        private Sockets( List<Permission> perms )
+        {
+            int l = perms.size();
+            hosts = new SocketPermission[ l ];
+            masks = new int[ l ];
+            byHost = new NameTable( true );
+            List<List<Integer>> building = new ArrayList<List<Integer>>();
+            for( int i = 0; i < l; i++ )
+            {
+                Permission p = perms.get( l - 1 - i );
+                String name = p.getName();
+                hosts[ i ] = new SocketPermission( name, ALL_ACTIONS );
+                masks[ i ] = mask( p.getActions(), ACTIONS );
+                int end = hostEnd( name );
+                if( end <= 0 || name.charAt( 0 ) == '*' )
+                {
+                    continue;
+                }
+                int bucket = byHost.get( name, end );
+                if( bucket == 0 )
+                {
+                    building.add( new ArrayList<Integer>() );
+                    bucket = building.size();
+                    byHost.put( name.substring( 0, end ), bucket );
+                }
+                building.get( bucket - 1 ).add( i );
+            }
+            buckets = new int[ building.size() ][];
+            for( int b = 0; b < buckets.length; b++ )
+            {
+                List<Integer> indexes = building.get( b );
+                buckets[ b ] = new int[ indexes.size() ];
+                for( int i = 0; i < buckets[ b ].length; i++ )
+                {
+                    buckets[ b ][ i ] = indexes.get( i );
+                }
+            }
+        }
+
+        /**
+         * Returns the length of the host name part of a SocketPermission
+         * name, or -1 if it isn't a simple host name.
+         */
+        private static int hostEnd( String name )
+        {
+            if( name.length() == 0 || name.charAt( 0 ) == '[' )
+            {
+                return -1;
+            }
+            int colon = name.indexOf( ':' );
+            if( colon < 0 )
+            {
+                return name.length();
+            }
+            if( name.indexOf( ':', colon + 1 ) >= 0 )
+            {
+                return -1; // IPv6 literal.
+            }
+            return colon;
+        }
+
+        @Override
+        boolean implies( Permission permission )
+        {
+            if( !( permission instanceof SocketPermission ) )
+            {
+                return false;
+            }
+            int desired = mask( permission.getActions(), ACTIONS );
+            String name = permission.getName();
+            int end = hostEnd( name );
+            int bucket = end > 0 ? byHost.get( name, end ) : 0;
+            if( bucket != 0 && implies( permission, desired, buckets[ bucket - 1 ] ) )
+            {
+                return true;
+            }
+            return implies( permission, desired, null );
+        }
+
+        // Tries the given indexes in order, or all if null.
+        private boolean implies( Permission permission, int desired, int[] indexes )
+        {
+            int effective = 0;
+            int l = indexes != null ? indexes.length : hosts.length;
+            for( int j = 0; j < l; j++ )
+            {
+                int i = indexes != null ? indexes[ j ] : j;
+                int m = masks[ i ];
+                if( ( m & desired & ~effective ) != 0 && hosts[ i ].implies( permission ) )
+                {
+                    effective |= m;
+                    if( ( effective & desired ) == desired )
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Open addressed hash table from String to a non zero int, that may be
+     * queried with a prefix of a String without creating a substring.
+     */
+    private static final class NameTable
+    {
+        private final boolean ignoreCase;
+        private String[] keys;
+        private int[] hashes;
+        private int[] values;
+        private int size;
+
+        private NameTable( boolean ignoreCase )
+        {
+            this.ignoreCase = ignoreCase;
+            keys = new String[ 8 ];
+            hashes = new int[ 8 ];
+            values = new int[ 8 ];
+        }
+
+        private int hash( String s, int length )
+        {
+            int h = 0;
+            for( int i = 0; i < length; i++ )
+            {
+                char c = s.charAt( i );
+                if( ignoreCase )
+                {
+                    c = Character.toLowerCase( c );
+                }
+                h = 31 * h + c;
+            }
+            return h ^ ( h >>> 16 );
+        }
+
+        /**
+         * Ors the value into any existing value for the key.
+         */
+        private void put( String key, int value )
+        {
+            if( ( size + 1 ) * 2 > keys.length )
+            {
+                resize();
+            }
+            int h = hash( key, key.length() );
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while( keys[ i ] != null )
+            {
+                if( hashes[ i ] == h && matches( keys[ i ], key, key.length() ) )
+                {
+                    values[ i ] |= value;
+                    return;
+                }
+                i = ( i + 1 ) & mask;
+            }
+            keys[ i ] = key;
+            hashes[ i ] = h;
+            values[ i ] = value;
+            size++;
+        }
+
+        private void resize()
+        {
+            String[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new String[ oldKeys.length * 2 ];
+            hashes = new int[ keys.length ];
+            values = new int[ keys.length ];
+            size = 0;
+            for( int i = 0; i < oldKeys.length; i++ )
+            {
+                if( oldKeys[ i ] != null )
+                {
+                    put( oldKeys[ i ], oldValues[ i ] );
+                }
+            }
+        }
+
+        private boolean matches( String key, String s, int length )
+        {
+            return key.length() == length && key.regionMatches( ignoreCase, 0, s, 0, length );
+        }
+
+        /**
+         * @return the value for the first length characters of s, or zero.
+         */
+        private int get( String s, int length )
+        {
+            if( size == 0 )
+            {
+                return 0;
+            }
+            int h = hash( s, length );
+            int mask = keys.length - 1;
+            int i = h & mask;
+            String key;
+            while( ( key = keys[ i ] ) != null )
+            {
+                if( hashes[ i ] == h && matches( key, s, length ) )
+                {
+                    return values[ i ];
+                }
+                i = ( i + 1 ) & mask;
+            }
+            return 0;
+        }
+    }
+}
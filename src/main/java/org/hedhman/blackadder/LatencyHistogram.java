@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, in power of two nanosecond buckets.
+ *
+ * Recording threads are spread over stripes by thread id, each stripe a row
+ * of counters padded to a multiple of a cache line, so threads recording
+ * concurrently rarely write the same line.  Reading sums the stripes, the
+ * result isn't an atomic snapshot while samples are being recorded.
+ */
+final class LatencyHistogram
+{
+    /**
+     * Bucket 0 counts latencies of 0ns, bucket b those of at least 2^(b-1)
+     * and less than 2^b ns; the last bucket counts everything longer.
+     */
+    static final int BUCKETS = 40;
+
+    // Buckets, total and padding.
+    private static final int ROW = 48;
+
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    LatencyHistogram()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while( stripes < processors && stripes < 64 )
+        {
+            stripes <<= 1;
+        }
+        mask = stripes - 1;
+        cells = new AtomicLongArray( stripes * ROW );
+    }
+
+    void record( long nanos )
+    {
+        int row = ( (int) Thread.currentThread().getId() & mask ) * ROW;
+        cells.incrementAndGet( row + bucket( nanos ) );
+        cells.addAndGet( row + BUCKETS, nanos );
+    }
+
+    static int bucket( long nanos )
+    {
+        if( nanos <= 0 )
+        {
+            return 0;
+        }
+        int b = 64 - Long.numberOfLeadingZeros( nanos );
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    /**
+     * @return the exclusive upper bound, in nanoseconds, of a bucket, the
+     * last bucket has none.
+     */
+    static long upperBound( int bucket )
+    {
+        return bucket < BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of samples in each bucket.
+     */
+    long[] buckets()
+    {
+        long[] result = new long[ BUCKETS ];
+        for( int row = 0, l = cells.length(); row < l; row += ROW )
+        {
+            for( int i = 0; i < BUCKETS; i++ )
+            {
+                result[ i ] += cells.get( row + i );
+            }
+        }
+        return result;
+    }
+
+    long count()
+    {
+        long count = 0;
+        for( long n : buckets() )
+        {
+            count += n;
+        }
+        return count;
+    }
+
+    long totalNanos()
+    {
+        long total = 0;
+        for( int row = 0, l = cells.length(); row < l; row += ROW )
+        {
+            total += cells.get( row + BUCKETS );
+        }
+        return total;
+    }
+
+    /**
+     * @param quantile between 0 and 1.
+     *
+     * @return the upper bound of the bucket containing the quantile, or zero
+     * if there are no samples.
+     */
+    long quantile( double quantile )
+    {
+        long[] buckets = buckets();
+        long count = 0;
+        for( long n : buckets )
+        {
+            count += n;
+        }
+        if( count == 0 )
+        {
+            return 0L;
+        }
+        long rank = (long) Math.ceil( quantile * count );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += buckets[ i ];
+            if( seen >= rank && buckets[ i ] > 0 )
+            {
+                return upperBound( i );
+            }
+        }
+        return upperBound( BUCKETS - 1 );
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.UnresolvedPermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import org.hedhman.blackadder.parser.PermissionGrant;
+
+/**
+ * Immutable index from Permission class name to the PermissionGrant's
+ * containing Permission's of that class, built once when the policy is loaded.
+ *
+ * java.security.Permissions only consults the PermissionCollection for the
+ * exact class of the Permission being checked, plus any UnresolvedPermission
+ * with a matching type name, so those are the only Permission's that can
+ * influence a decision.  UnresolvedPermission's are indexed under their
+ * unresolved type name, so a check for a class loaded after the policy was
+ * parsed still finds them.
+ *
+ * Class names rather than Class instances are used as keys, a class of the
+ * same name from another ClassLoader will find a superset of what it needs,
+ * which java.security.Permissions then ignores.
+ *
+ * Each entry holds a prebuilt read-only collection of its Permission's, so a
+ * check that a single grant implies neither allocates nor merges.
+ */
+final class PermissionClassIndex
+{
+    private static final Entry[] NO_ENTRIES = new Entry[ 0 ];
+    private static final Permission[] NO_PERMISSIONS = new Permission[ 0 ];
+
+    private final Entry[] privileged;
+    private final Map<String, Entry[]> index;
+
+    /**
+     * @param grants     the grants to index.
+     * @param comparator orders Permission's added to prebuilt collections.
+     * @param previous   the index of the previous policy state, the prebuilt
+     *                   collections of grants it shares with this are reused,
+     *                   may be null.
+     */
+    PermissionClassIndex( PermissionGrant[] grants, Comparator<Permission> comparator, PermissionClassIndex previous )
+    {
+        Map<PermissionGrant, List<Entry>> reusable = previous != null
+                                                     ? previous.entriesByGrant()
+                                                     : Collections.<PermissionGrant, List<Entry>>emptyMap();
+        List<Entry> priv = new ArrayList<Entry>();
+        Map<String, List<Entry>> building = new HashMap<String, List<Entry>>();
+        for( int ordinal = 0; ordinal < grants.length; ordinal++ )
+        {
+            PermissionGrant grant = grants[ ordinal ];
+            if( grant.isPrivileged() )
+            {
+                priv.add( new Entry( grant, ordinal, NO_PERMISSIONS, null ) );
+            }
+            List<Entry> prebuilt = reusable.get( grant );
+            if( prebuilt != null )
+            {
+                for( Entry e : prebuilt )
+                {
+                    add( building, e.className(), new Entry( grant, ordinal, e.permissions, e.collection ) );
+                }
+                continue;
+            }
+            Map<String, List<Permission>> byClass = new LinkedHashMap<String, List<Permission>>();
+            for( Permission p : grant.getPermissions() )
+            {
+                String name = classNameOf( p );
+                List<Permission> perms = byClass.get( name );
+                if( perms == null )
+                {
+                    perms = new ArrayList<Permission>();
+                    byClass.put( name, perms );
+                }
+                perms.add( p );
+            }
+            for( Map.Entry<String, List<Permission>> e : byClass.entrySet() )
+            {
+                List<Permission> perms = e.getValue();
+                Permission[] permissions = perms.toArray( new Permission[ perms.size() ] );
+                add( building, e.getKey(), new Entry( grant, ordinal, permissions, prebuild( permissions, comparator ) ) );
+            }
+        }
+        Map<String, Entry[]> result = new HashMap<String, Entry[]>( building.size() * 2 );
+        for( Map.Entry<String, List<Entry>> e : building.entrySet() )
+        {
+            List<Entry> entries = e.getValue();
+            result.put( e.getKey(), entries.toArray( new Entry[ entries.size() ] ) );
+        }
+        privileged = priv.toArray( new Entry[ priv.size() ] );
+        index = result;
+    }
+
+    private static void add( Map<String, List<Entry>> building, String className, Entry entry )
+    {
+        List<Entry> entries = building.get( className );
+        if( entries == null )
+        {
+            entries = new ArrayList<Entry>();
+            building.put( className, entries );
+        }
+        entries.add( entry );
+    }
+
+    // Grants are compared by identity, equal grants may have been parsed from different locations.
+    private Map<PermissionGrant, List<Entry>> entriesByGrant()
+    {
+        Map<PermissionGrant, List<Entry>> result = new IdentityHashMap<PermissionGrant, List<Entry>>();
+        for( Entry[] entries : index.values() )
+        {
+            for( Entry e : entries )
+            {
+                List<Entry> list = result.get( e.grant );
+                if( list == null )
+                {
+                    list = new ArrayList<Entry>();
+                    result.put( e.grant, list );
+                }
+                list.add( e );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds a read-only collection of Permission's of one class, or returns
+     * null if they include UnresolvedPermission's, which java.security.Permissions
+     * resolves, mutating its state, when first checked.
+     */
+    private static PermissionCollection prebuild( Permission[] permissions, Comparator<Permission> comparator )
+    {
+        NavigableSet<Permission> sorted = new TreeSet<Permission>( comparator );
+        for( Permission p : permissions )
+        {
+            if( p instanceof UnresolvedPermission )
+            {
+                return null;
+            }
+            sorted.add( p );
+        }
+        // The descending iterator is for SocketPermission.
+        List<Permission> ordered = new ArrayList<Permission>( sorted.size() );
+        Iterator<Permission> it = sorted.descendingIterator();
+        while( it.hasNext() )
+        {
+            ordered.add( it.next() );
+        }
+        return new ImmutablePermissionCollection( ordered );
+    }
+
+    /**
+     * Returns the class name a Permission is indexed under, for an
+     * UnresolvedPermission this is the name of the class it will resolve to.
+     */
+    static String classNameOf( Permission p )
+    {
+        if( p instanceof UnresolvedPermission )
+        {
+            return ( (UnresolvedPermission) p ).getUnresolvedType();
+        }
+        return p.getClass().getName();
+    }
+
+    /**
+     * Returns true if the static Permission p, must be considered when
+     * determining if the Permission of Class klass is implied.
+     */
+    static boolean isRelevant( Permission p, Class<?> klass )
+    {
+        if( p.getClass() == klass )
+        {
+            return true;
+        }
+        return p instanceof UnresolvedPermission
+               && klass.getName().equals( ( (UnresolvedPermission) p ).getUnresolvedType() );
+    }
+
+    /**
+     * @return the grants containing AllPermission, the array must not be mutated.
+     */
+    Entry[] privileged()
+    {
+        return privileged;
+    }
+
+    /**
+     * Returns the grants and their Permission's that may imply the
+     * permission, the array must not be mutated.
+     *
+     * @param permission the Permission being checked.
+     *
+     * @return entries, never null.
+     */
+    Entry[] get( Permission permission )
+    {
+        Entry[] entries = index.get( permission.getClass().getName() );
+        return entries != null ? entries : NO_ENTRIES;
+    }
+
+    /**
+     * A PermissionGrant and those of its Permission's indexed under one class name.
+     */
+    static final class Entry
+    {
+        private final PermissionGrant grant;
+        private final int ordinal;
+        private final Permission[] permissions;
+        private final PermissionCollection collection;
+
+        Entry( PermissionGrant grant, int ordinal, Permission[] permissions, PermissionCollection collection )
+        {
+            this.grant = grant;
+            this.ordinal = ordinal;
+            this.permissions = permissions;
+            this.collection = collection;
+        }
+
+        PermissionGrant grant()
+        {
+            return grant;
+        }
+
+        String className()
+        {
+            return classNameOf( permissions[ 0 ] );
+        }
+
+        /**
+         * @return the index of the grant in the array the index was built from.
+         */
+        int ordinal()
+        {
+            return ordinal;
+        }
+
+        /**
+         * @return a read-only collection of this entry's Permission's, or
+         * null if they must be merged into a new collection to be checked.
+         */
+        PermissionCollection collection()
+        {
+            return collection;
+        }
+
+        void addTo( Collection<Permission> perms )
+        {
+            for( Permission p : permissions )
+            {
+                perms.add( p );
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flight Recorder events for slow implies decisions, policy loads and a
+ * sample of the evaluations of which grants imply a domain.
+ *
+ * Events are defined with jdk.jfr.EventFactory, through reflection, so this
+ * library doesn't require a platform with Flight Recorder; on one without,
+ * {@link #get()} returns null.  Decisions are only timed while a recording
+ * is running, when no recording is running the cost is a volatile read.
+ *
+ * Events are:
+ * <ul>
+ * <li>org.hedhman.blackadder.Implies, an implies decision that took at
+ * least {@link ConcurrentPolicyFile#JFR_IMPLIES_THRESHOLD} microseconds.</li>
+ * <li>org.hedhman.blackadder.Load, a refresh or reload, with the time taken
+ * to parse each location.</li>
+ * <li>org.hedhman.blackadder.GrantMatch, one in every
+ * {@link ConcurrentPolicyFile#JFR_GRANT_MATCH_SAMPLING} evaluations of the
+ * grants implying a domain.</li>
+ * </ul>
+ */
+final class PolicyEvents
+{
+    private static final String[] CATEGORY = { "Security", "Policy" };
+
+    private static final PolicyEvents INSTANCE = AccessController.doPrivileged( new PrivilegedAction<PolicyEvents>()
+    {
+        public PolicyEvents run()
+        {
+            return load();
+        }
+    } );
+
+    private final Object impliesFactory;
+    private final Object loadFactory;
+    private final Object grantMatchFactory;
+    private final Method newEvent;
+    private final Method set;
+    private final Method commit;
+    private final Method getRecordings;
+    private final Method getState;
+    private final long impliesThresholdNanos;
+    private final int grantMatchSampling;
+
+    // Null until the recorder is initialized, obtaining it would initialize it.
+    private volatile Object recorder;
+    private volatile boolean recording;
+    private int grantMatches; // Racy, it only decides which evaluations are sampled.
+
+    private PolicyEvents( Class<?> eventFactory, Class<?> flightRecorder, Object impliesFactory, Object loadFactory,
+                          Object grantMatchFactory )
+        throws Exception
+    {
+        this.impliesFactory = impliesFactory;
+        this.loadFactory = loadFactory;
+        this.grantMatchFactory = grantMatchFactory;
+        newEvent = eventFactory.getMethod( "newEvent" );
+        Class<?> event = Class.forName( "jdk.jfr.Event" );
+        set = event.getMethod( "set", int.class, Object.class );
+        commit = event.getMethod( "commit" );
+        getRecordings = flightRecorder.getMethod( "getRecordings" );
+        getState = Class.forName( "jdk.jfr.Recording" ).getMethod( "getState" );
+        impliesThresholdNanos = Long.getLong( ConcurrentPolicyFile.JFR_IMPLIES_THRESHOLD, 1000L ) * 1000L;
+        grantMatchSampling = Integer.getInteger( ConcurrentPolicyFile.JFR_GRANT_MATCH_SAMPLING, 16 );
+    }
+
+    /**
+     * @return the events, or null if Flight Recorder isn't available.
+     */
+    static PolicyEvents get()
+    {
+        return INSTANCE;
+    }
+
+    private static PolicyEvents load()
+    {
+        Class<?> eventFactory;
+        try
+        {
+            eventFactory = Class.forName( "jdk.jfr.EventFactory" );
+        }
+        catch( ClassNotFoundException e )
+        {
+            return null; // No Flight Recorder.
+        }
+        catch( LinkageError e )
+        {
+            return null;
+        }
+        try
+        {
+            Class<?> flightRecorder = Class.forName( "jdk.jfr.FlightRecorder" );
+            if( !(Boolean) flightRecorder.getMethod( "isAvailable" ).invoke( null ) )
+            {
+                return null;
+            }
+            Object implies = factory( eventFactory, "Implies", "Policy Implies",
+                                      "An implies decision that exceeded the threshold",
+                                      field( String.class, "permissionClass", "Permission Class", null ),
+                                      field( String.class, "permission", "Permission", null ),
+                                      field( String.class, "codebase", "Codebase", null ),
+                                      field( boolean.class, "granted", "Granted", null ),
+                                      field( int.class, "grantsScanned", "Grants Scanned", null ),
+                                      field( boolean.class, "allPermission", "AllPermission Shortcut", null ),
+                                      field( boolean.class, "cached", "Cached", null ),
+                                      field( long.class, "decisionTime", "Decision Time", "NANOSECONDS" ) );
+            Object load = factory( eventFactory, "Load", "Policy Load",
+                                   "A refresh, or reload of changed policy locations",
+                                   field( String.class, "trigger", "Trigger", null ),
+                                   field( int.class, "locations", "Locations", null ),
+                                   field( int.class, "failures", "Failures", null ),
+                                   field( int.class, "grants", "Grants", null ),
+                                   field( long.class, "epoch", "Epoch", null ),
+                                   field( String.class, "parseTimes", "Parse Time Per Location", null ),
+                                   field( long.class, "loadTime", "Load Time", "NANOSECONDS" ) );
+            Object grantMatch = factory( eventFactory, "GrantMatch", "Policy Grant Match",
+                                         "A sampled evaluation of the grants that imply a domain",
+                                         field( String.class, "codebase", "Codebase", null ),
+                                         field( int.class, "principals", "Principals", null ),
+                                         field( int.class, "candidates", "Candidate Grants", null ),
+                                         field( int.class, "matched", "Matched Grants", null ),
+                                         field( boolean.class, "allPermission", "AllPermission", null ),
+                                         field( long.class, "matchTime", "Match Time", "NANOSECONDS" ) );
+            final PolicyEvents events = new PolicyEvents( eventFactory, flightRecorder, implies, load, grantMatch );
+            Class<?> listener = Class.forName( "jdk.jfr.FlightRecorderListener" );
+            Object proxy = Proxy.newProxyInstance( listener.getClassLoader(), new Class<?>[]{ listener },
+                                                   new InvocationHandler()
+                                                   {
+                                                       public Object invoke( Object proxy, Method method, Object[] args )
+                                                       {
+                                                           if( method.getDeclaringClass() == Object.class )
+                                                           {
+                                                               return objectMethod( proxy, method, args );
+                                                           }
+                                                           if( "recorderInitialized".equals( method.getName() ) )
+                                                           {
+                                                               events.recorder = args[ 0 ];
+                                                           }
+                                                           events.recordingChanged();
+                                                           return null;
+                                                       }
+                                                   } );
+            flightRecorder.getMethod( "addListener", listener ).invoke( null, proxy );
+            if( (Boolean) flightRecorder.getMethod( "isInitialized" ).invoke( null ) )
+            {
+                events.recorder = flightRecorder.getMethod( "getFlightRecorder" ).invoke( null );
+                events.recordingChanged();
+            }
+            return events;
+        }
+        catch( Exception e )
+        {
+            System.err.println( "Policy Flight Recorder events unavailable: " + e );
+            return null;
+        }
+        catch( LinkageError e )
+        {
+            System.err.println( "Policy Flight Recorder events unavailable: " + e );
+            return null;
+        }
+    }
+
+    private static Object objectMethod( Object proxy, Method method, Object[] args )
+    {
+        if( "equals".equals( method.getName() ) )
+        {
+            return proxy == args[ 0 ];
+        }
+        if( "hashCode".equals( method.getName() ) )
+        {
+            return System.identityHashCode( proxy );
+        }
+        return "PolicyEvents recording listener";
+    }
+
+    private static Object factory( Class<?> eventFactory, String name, String label, String description,
+                                   Object... fields )
+        throws Exception
+    {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add( annotation( "jdk.jfr.Name", "org.hedhman.blackadder." + name ) );
+        annotations.add( annotation( "jdk.jfr.Label", label ) );
+        annotations.add( annotation( "jdk.jfr.Description", description ) );
+        annotations.add( annotation( "jdk.jfr.Category", CATEGORY ) );
+        annotations.add( annotation( "jdk.jfr.StackTrace", Boolean.FALSE ) );
+        return eventFactory.getMethod( "create", List.class, List.class )
+            .invoke( null, annotations, Arrays.asList( fields ) );
+    }
+
+    private static Object field( Class<?> type, String name, String label, String timespan )
+        throws Exception
+    {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add( annotation( "jdk.jfr.Label", label ) );
+        if( timespan != null )
+        {
+            annotations.add( annotation( "jdk.jfr.Timespan", timespan ) );
+        }
+        Constructor<?> c = Class.forName( "jdk.jfr.ValueDescriptor" ).getConstructor( Class.class, String.class, List.class );
+        return c.newInstance( type, name, annotations );
+    }
+
+    private static Object annotation( String type, Object value )
+        throws Exception
+    {
+        Constructor<?> c = Class.forName( "jdk.jfr.AnnotationElement" ).getConstructor( Class.class, Object.class );
+        return c.newInstance( Class.forName( type ), value );
+    }
+
+    private void recordingChanged()
+    {
+        Object r = recorder;
+        if( r == null )
+        {
+            return;
+        }
+        boolean running = false;
+        try
+        {
+            for( Object rec : (List<?>) getRecordings.invoke( r ) )
+            {
+                running |= "RUNNING".equals( String.valueOf( getState.invoke( rec ) ) );
+            }
+        }
+        catch( Exception e )
+        {
+            System.err.println( "Unable to determine Flight Recorder state: " + e );
+        }
+        recording = running;
+    }
+
+    /**
+     * @return true if a recording is running, only then are events recorded.
+     */
+    boolean isRecording()
+    {
+        return recording;
+    }
+
+    long impliesThresholdNanos()
+    {
+        return impliesThresholdNanos;
+    }
+
+    void implies( ProtectionDomain domain, Permission permission, boolean granted, Trace trace, long nanos )
+    {
+        if( nanos < impliesThresholdNanos )
+        {
+            return;
+        }
+        commit( impliesFactory,
+                permission.getClass().getName(),
+                permission.toString(),
+                codebase( domain != null ? domain.getCodeSource() : null ),
+                granted,
+                trace.grantsScanned,
+                trace.allPermission,
+                trace.cached,
+                nanos );
+    }
+
+    void load( String trigger, URL[] locations, PolicyLoader.Result[] results, PolicySnapshot snapshot, long nanos )
+    {
+        int failures = 0;
+        StringBuilder parseTimes = new StringBuilder( 64 * results.length );
+        for( int i = 0; i < results.length; i++ )
+        {
+            if( results[ i ].failure() != null )
+            {
+                failures++;
+            }
+            if( i > 0 )
+            {
+                parseTimes.append( ", " );
+            }
+            parseTimes.append( locations[ i ] ).append( '=' )
+                .append( results[ i ].nanos() / 1000L ).append( "us" );
+        }
+        commit( loadFactory, trigger, locations.length, failures, snapshot.index().grants().length,
+                snapshot.getEpoch(), parseTimes.toString(), nanos );
+    }
+
+    /**
+     * @return true if an evaluation of the grants implying a domain should
+     * be recorded.
+     */
+    boolean sampleGrantMatch()
+    {
+        if( !recording || grantMatchSampling <= 0 )
+        {
+            return false;
+        }
+        return grantMatches++ % grantMatchSampling == 0;
+    }
+
+    void grantMatch( ProtectionDomain domain, int candidates, DomainPermissions matched, long nanos )
+    {
+        commit( grantMatchFactory,
+                codebase( domain != null ? domain.getCodeSource() : null ),
+                domain != null ? domain.getPrincipals().length : 0,
+                candidates,
+                matched.applicable().cardinality(),
+                matched.isPrivileged(),
+                nanos );
+    }
+
+    private static String codebase( CodeSource cs )
+    {
+        URL location = cs != null ? cs.getLocation() : null;
+        return location != null ? location.toExternalForm() : null;
+    }
+
+    private void commit( Object factory, Object... values )
+    {
+        try
+        {
+            Object event = newEvent.invoke( factory );
+            for( int i = 0; i < values.length; i++ )
+            {
+                set.invoke( event, i, values[ i ] );
+            }
+            commit.invoke( event );
+        }
+        catch( Exception e )
+        {
+            System.err.println( "Unable to record policy event: " + e );
+        }
+    }
+
+    /**
+     * How an implies decision was made, recorded as it's made.
+     */
+    static final class Trace
+    {
+        boolean cached; // Answered by the decision cache.
+        boolean allPermission; // The domain is privileged.
+        int grantsScanned; // Grants implying the domain consulted.
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.hedhman.blackadder.parser.PolicyParser;
+
+/**
+ * Parses policy locations concurrently, so loading takes about as long as
+ * the slowest location rather than all of them.  Each location is fetched,
+ * scanned and resolved by one thread of a pool that exists for the duration
+ * of a load, with at most one thread per processor.
+ *
+ * Worker threads are created with only the permissions of this library,
+ * rather than those of the thread starting the load, or the restricted
+ * context of ForkJoinPool's default threads; parsing is privileged.
+ */
+final class PolicyLoader
+{
+    private final PolicyParser parser;
+
+    PolicyLoader( PolicyParser parser )
+    {
+        this.parser = parser;
+    }
+
+    /**
+     * Parses locations, a single location is parsed by the calling thread.
+     *
+     * @return the results, in the same order as the locations.
+     */
+    Result[] load( URL[] locations )
+    {
+        Result[] results = new Result[ locations.length ];
+        if( locations.length == 1 )
+        {
+            results[ 0 ] = parse( locations[ 0 ] );
+            return results;
+        }
+        if( locations.length == 0 )
+        {
+            return results;
+        }
+        int parallelism = Math.min( locations.length, Runtime.getRuntime().availableProcessors() );
+        ForkJoinPool pool = new ForkJoinPool( parallelism, new WorkerFactory(), null, false );
+        try
+        {
+            List<ForkJoinTask<Result>> tasks = new ArrayList<ForkJoinTask<Result>>( locations.length );
+            for( final URL location : locations )
+            {
+                tasks.add( pool.submit( new Callable<Result>()
+                {
+                    public Result call()
+                    {
+                        return parse( location );
+                    }
+                } ) );
+            }
+            for( int i = 0; i < results.length; i++ )
+            {
+                try
+                {
+                    results[ i ] = tasks.get( i ).get();
+                }
+                catch( ExecutionException e )
+                {
+                    results[ i ] = new Result( null, e.getCause(), 0L );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    results[ i ] = new Result( null, e, 0L );
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    private Result parse( final URL location )
+    {
+        long start = System.nanoTime();
+        try
+        {
+            Collection<PermissionGrant> grants = AccessController.doPrivileged(
+                new PrivilegedExceptionAction<Collection<PermissionGrant>>()
+                {
+                    public Collection<PermissionGrant> run()
+                        throws Exception
+                    {
+                        return parser.parse( location );
+                    }
+                } );
+            return new Result( grants, null, System.nanoTime() - start );
+        }
+        catch( PrivilegedActionException e )
+        {
+            return new Result( null, e.getCause(), System.nanoTime() - start );
+        }
+        catch( RuntimeException e )
+        {
+            return new Result( null, e, System.nanoTime() - start );
+        }
+    }
+
+    /**
+     * The grants parsed from a location, or the reason they couldn't be.
+     */
+    static final class Result
+    {
+        private final Collection<PermissionGrant> grants;
+        private final Throwable failure;
+        private final long nanos;
+
+        private Result( Collection<PermissionGrant> grants, Throwable failure, long nanos )
+        {
+            this.grants = grants;
+            this.failure = failure;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the grants, or null if parsing failed.
+         */
+        Collection<PermissionGrant> grants()
+        {
+            return grants;
+        }
+
+        /**
+         * @return why parsing failed, or null if it didn't.
+         */
+        Throwable failure()
+        {
+            return failure;
+        }
+
+        /**
+         * @return the time taken to parse the location, in nanoseconds.
+         */
+        long nanos()
+        {
+            return nanos;
+        }
+    }
+
+    private static final class WorkerFactory
+        implements ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        public ForkJoinWorkerThread newThread( final ForkJoinPool pool )
+        {
+            return AccessController.doPrivileged( new PrivilegedAction<ForkJoinWorkerThread>()
+            {
+                public ForkJoinWorkerThread run()
+                {
+                    ForkJoinWorkerThread thread = new ForkJoinWorkerThread( pool )
+                    {
+                    };
+                    thread.setName( "blackadder-policy-loader-" + thread.getPoolIndex() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+    }
+}
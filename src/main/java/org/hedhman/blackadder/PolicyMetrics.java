@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latencies of a ConcurrentPolicyFile's hot path, its refreshes and the
+ * size of its policy state, registered with the platform MBeanServer.
+ *
+ * Each instance is registered under a name of its own.  The policy is
+ * weakly referenced, once it's collected the MBean reports no grants, until
+ * it's unregistered by the next registration, typically of the policy that
+ * replaced it.
+ */
+public final class PolicyMetrics
+    implements PolicyMetricsMBean
+{
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    // Only the first failure to register or unregister is reported.
+    private static final AtomicBoolean failureReported = new AtomicBoolean();
+
+    // References to the policies of registered metrics, once collected.
+    private static final ReferenceQueue<ConcurrentPolicyFile> collected = new ReferenceQueue<ConcurrentPolicyFile>();
+
+    final LatencyHistogram implies = new LatencyHistogram();
+    final LatencyHistogram domainPermissions = new LatencyHistogram();
+    final LatencyHistogram codeSourcePermissions = new LatencyHistogram();
+    final LatencyHistogram permissionGrants = new LatencyHistogram();
+    final LatencyHistogram refresh = new LatencyHistogram();
+
+    private final PolicyReference policy;
+
+    PolicyMetrics( ConcurrentPolicyFile policy )
+    {
+        this.policy = new PolicyReference( policy );
+    }
+
+    /**
+     * Registers with the platform MBeanServer, if not already registered,
+     * the first failure is reported, but metrics are still recorded.  The metrics of
+     * policies since collected are unregistered.
+     */
+    void register()
+    {
+        AccessController.doPrivileged( new PrivilegedAction<Object>()
+        {
+            public Object run()
+            {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                expunge( server );
+                synchronized( policy )
+                {
+                    while( policy.name == null )
+                    {
+                        try
+                        {
+                            ObjectName name = new ObjectName( "org.hedhman.blackadder:type=ConcurrentPolicyFile,name=policy-"
+                                                              + instances.incrementAndGet() );
+                            server.registerMBean( PolicyMetrics.this, name );
+                            policy.name = name;
+                        }
+                        catch( InstanceAlreadyExistsException e )
+                        {
+                            // Taken by another copy of this class, try the next.
+                        }
+                        catch( JMException e )
+                        {
+                            report( "Unable to register policy metrics: " + e );
+                            break;
+                        }
+                    }
+                }
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Unregisters from the platform MBeanServer, if registered.
+     */
+    void unregister()
+    {
+        AccessController.doPrivileged( new PrivilegedAction<Object>()
+        {
+            public Object run()
+            {
+                unregister( ManagementFactory.getPlatformMBeanServer(), policy );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * @return the name registered, or null if not registered.
+     */
+    ObjectName getName()
+    {
+        synchronized( policy )
+        {
+            return policy.name;
+        }
+    }
+
+    private static void report( String message )
+    {
+        if( failureReported.compareAndSet( false, true ) )
+        {
+            System.err.println( message + ", further failures aren't reported" );
+        }
+    }
+
+    private static void expunge( MBeanServer server )
+    {
+        for( Reference<?> ref = collected.poll(); ref != null; ref = collected.poll() )
+        {
+            unregister( server, (PolicyReference) ref );
+        }
+    }
+
+    private static void unregister( MBeanServer server, PolicyReference ref )
+    {
+        synchronized( ref )
+        {
+            if( ref.name == null )
+            {
+                return;
+            }
+            try
+            {
+                server.unregisterMBean( ref.name );
+            }
+            catch( InstanceNotFoundException e )
+            {
+                // Already unregistered by someone else.
+            }
+            catch( JMException e )
+            {
+                report( "Unable to unregister policy metrics: " + e );
+            }
+            ref.name = null;
+        }
+    }
+
+    public long[] getHistogramUpperBoundsNanos()
+    {
+        long[] bounds = new long[ LatencyHistogram.BUCKETS ];
+        for( int i = 0; i < bounds.length; i++ )
+        {
+            bounds[ i ] = LatencyHistogram.upperBound( i );
+        }
+        return bounds;
+    }
+
+    public long getImpliesCount()
+    {
+        return implies.count();
+    }
+
+    public double getImpliesMeanNanos()
+    {
+        return mean( implies );
+    }
+
+    public long getImpliesP99Nanos()
+    {
+        return implies.quantile( 0.99 );
+    }
+
+    public long[] getImpliesHistogram()
+    {
+        return implies.buckets();
+    }
+
+    public long getDomainPermissionsCount()
+    {
+        return domainPermissions.count();
+    }
+
+    public double getDomainPermissionsMeanNanos()
+    {
+        return mean( domainPermissions );
+    }
+
+    public long getDomainPermissionsP99Nanos()
+    {
+        return domainPermissions.quantile( 0.99 );
+    }
+
+    public long[] getDomainPermissionsHistogram()
+    {
+        return domainPermissions.buckets();
+    }
+
+    public long getCodeSourcePermissionsCount()
+    {
+        return codeSourcePermissions.count();
+    }
+
+    public double getCodeSourcePermissionsMeanNanos()
+    {
+        return mean( codeSourcePermissions );
+    }
+
+    public long getCodeSourcePermissionsP99Nanos()
+    {
+        return codeSourcePermissions.quantile( 0.99 );
+    }
+
+    public long[] getCodeSourcePermissionsHistogram()
+    {
+        return codeSourcePermissions.buckets();
+    }
+
+    public long getPermissionGrantsCount()
+    {
+        return permissionGrants.count();
+    }
+
+    public double getPermissionGrantsMeanNanos()
+    {
+        return mean( permissionGrants );
+    }
+
+    public long getPermissionGrantsP99Nanos()
+    {
+        return permissionGrants.quantile( 0.99 );
+    }
+
+    public long[] getPermissionGrantsHistogram()
+    {
+        return permissionGrants.buckets();
+    }
+
+    public long getRefreshCount()
+    {
+        return refresh.count();
+    }
+
+    public double getRefreshMeanNanos()
+    {
+        return mean( refresh );
+    }
+
+    public long getRefreshP99Nanos()
+    {
+        return refresh.quantile( 0.99 );
+    }
+
+    public long[] getRefreshHistogram()
+    {
+        return refresh.buckets();
+    }
+
+    public int getGrantCount()
+    {
+        ConcurrentPolicyFile p = policy.get();
+        return p != null ? p.getSnapshot().index().grants().length : 0;
+    }
+
+    public long getEpoch()
+    {
+        ConcurrentPolicyFile p = policy.get();
+        return p != null ? p.getEpoch() : 0L;
+    }
+
+    public long getDecisionCacheHits()
+    {
+        ConcurrentPolicyFile p = policy.get();
+        return p != null ? p.getDecisionCacheHits() : 0L;
+    }
+
+    public long getDecisionCacheMisses()
+    {
+        ConcurrentPolicyFile p = policy.get();
+        return p != null ? p.getDecisionCacheMisses() : 0L;
+    }
+
+    private static double mean( LatencyHistogram histogram )
+    {
+        long count = histogram.count();
+        return count > 0 ? (double) histogram.totalNanos() / count : 0.0;
+    }
+
+    /**
+     * Weakly references a policy, with the name its metrics are registered
+     * under, so they can be unregistered once it's collected.
+     */
+    private static final class PolicyReference extends WeakReference<ConcurrentPolicyFile>
+    {
+        private ObjectName name; // Guarded by this.
+
+        private PolicyReference( ConcurrentPolicyFile policy )
+        {
+            super( policy, collected );
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hedhman.blackadder;
+
+/**
+ * Management interface of the metrics recorded by a ConcurrentPolicyFile,
+ * see {@link ConcurrentPolicyFile#METRICS}.
+ *
+ * Latencies are in nanoseconds.  Histograms count calls in power of two
+ * buckets, whose exclusive upper bounds are given by
+ * {@link #getHistogramUpperBoundsNanos()}; percentiles are the upper bound
+ * of the bucket they fall in.
+ */
+public interface PolicyMetricsMBean
+{
+    long[] getHistogramUpperBoundsNanos();
+
+    /**
+     * Policy.implies( ProtectionDomain, Permission ).
+     */
+    long getImpliesCount();
+
+    double getImpliesMeanNanos();
+
+    long getImpliesP99Nanos();
+
+    long[] getImpliesHistogram();
+
+    /**
+     * Policy.getPermissions( ProtectionDomain ).
+     */
+    long getDomainPermissionsCount();
+
+    double getDomainPermissionsMeanNanos();
+
+    long getDomainPermissionsP99Nanos();
+
+    long[] getDomainPermissionsHistogram();
+
+    /**
+     * Policy.getPermissions( CodeSource ).
+     */
+    long getCodeSourcePermissionsCount();
+
+    double getCodeSourcePermissionsMeanNanos();
+
+    long getCodeSourcePermissionsP99Nanos();
+
+    long[] getCodeSourcePermissionsHistogram();
+
+    /**
+     * ScalableNestedPolicy.getPermissionGrants( ProtectionDomain ).
+     */
+    long getPermissionGrantsCount();
+
+    double getPermissionGrantsMeanNanos();
+
+    long getPermissionGrantsP99Nanos();
+
+    long[] getPermissionGrantsHistogram();
+
+    /**
+     * Refreshes and reloads of changed policy files.
+     */
+    long getRefreshCount();
+
+    double getRefreshMeanNanos();
+
+    long getRefreshP99Nanos();
+
+    long[] getRefreshHistogram();
+
+    /**
+     * @return the number of grants in the current policy state.
+     */
+    int getGrantCount();
+
+    /**
+     * @return the epoch of the current policy state.
+     */
+    long getEpoch();
+
+    long getDecisionCacheHits();
+
+    long getDecisionCacheMisses();
+}
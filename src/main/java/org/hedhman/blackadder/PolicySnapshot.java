@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.lang.ref.WeakReference;
+import java.security.AllPermission;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.hedhman.blackadder.parser.PermissionGrantBuilder;
+
+/**
+ * One generation of a ConcurrentPolicyFile's state: its grants, the indexes
+ * built from them and the permissions of the policy's own domain, published
+ * as a single reference.
+ *
+ * Each snapshot has an epoch, greater than that of any snapshot published
+ * before it by the same policy.  A snapshot is never modified, so decisions
+ * made by one may be cached for as long as the policy's current epoch is
+ * unchanged, or a snapshot may be held to make a series of decisions against
+ * the same policy state.
+ *
+ * @see ConcurrentPolicyFile#getSnapshot()
+ */
+public final class PolicySnapshot
+{
+
+    private final long epoch;
+    private final GrantIndex index;
+    private final Comparator<Permission> comparator;
+    private final ProtectionDomain policyDomain;
+    private final PermissionCollection policyPermissions;
+
+    /**
+     * @param epoch        the epoch, greater than that of the previous snapshot.
+     * @param index        the policy state.
+     * @param comparator   orders Permission's added to PermissionCollection's.
+     * @param policyDomain the policy's own domain, which is evaluated once.
+     */
+    PolicySnapshot( long epoch, GrantIndex index, Comparator<Permission> comparator, ProtectionDomain policyDomain )
+    {
+        this.epoch = epoch;
+        this.index = index;
+        this.comparator = comparator;
+        this.policyDomain = policyDomain;
+        policyPermissions = getPermissions( policyDomain );
+    }
+
+    /**
+     * @return the epoch of this snapshot.
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    GrantIndex index()
+    {
+        return index;
+    }
+
+    /**
+     * Evaluates a permission against this snapshot, with the same semantics
+     * as {@link ConcurrentPolicyFile#implies(ProtectionDomain, Permission)},
+     * without consulting the policy's decision cache.
+     *
+     * @param domain     the domain, may be null.
+     * @param permission the Permission being checked.
+     *
+     * @return true if the permission is granted to the domain.
+     */
+    public boolean implies( ProtectionDomain domain, Permission permission )
+    {
+        return implies( domain, permission, null );
+    }
+
+    /**
+     * As {@link #implies(ProtectionDomain, Permission)}, recording how the
+     * decision was made.
+     *
+     * @param trace records the decision, may be null.
+     */
+    boolean implies( ProtectionDomain domain, Permission permission, PolicyEvents.Trace trace )
+    {
+        if( permission == null )
+        {
+            throw new NullPointerException( "permission not allowed to be null" );
+        }
+        if( domain == policyDomain )
+        {
+            return policyPermissions.implies( permission );
+        }
+        // The grants implying a domain are memoised, this path doesn't allocate
+        // unless Permission's from more than one source must be merged.
+        DomainPermissions domainPerms = index.domainPermissions( domain );
+        if( domainPerms.isPrivileged() )
+        {
+            if( trace != null )
+            {
+                trace.allPermission = true;
+            }
+            return true; // Don't stuff around finish early if you can.
+        }
+        PermissionCollection staticPC = domain != null ? domain.getPermissions() : null;
+        return implies( domainPerms, staticPC, permission, trace );
+    }
+
+    /**
+     * Evaluates several permissions against this snapshot for the same
+     * domain, finding the grants that imply the domain once.
+     *
+     * @param domain      the domain, may be null.
+     * @param permissions the Permission's being checked.
+     *
+     * @return a new array, each element true if the Permission at the same
+     * index is granted to the domain.
+     *
+     * @see ScalableBatchPolicy
+     */
+    public boolean[] implies( ProtectionDomain domain, Permission[] permissions )
+    {
+        boolean[] result = new boolean[ permissions.length ];
+        for( Permission permission : permissions )
+        {
+            if( permission == null )
+            {
+                throw new NullPointerException( "permission not allowed to be null" );
+            }
+        }
+        if( domain == policyDomain )
+        {
+            for( int i = 0; i < permissions.length; i++ )
+            {
+                result[ i ] = policyPermissions.implies( permissions[ i ] );
+            }
+            return result;
+        }
+        DomainPermissions domainPerms = index.domainPermissions( domain );
+        if( domainPerms.isPrivileged() )
+        {
+            Arrays.fill( result, true );
+            return result;
+        }
+        PermissionCollection staticPC = domain != null ? domain.getPermissions() : null;
+        for( int i = 0; i < permissions.length; i++ )
+        {
+            result[ i ] = implies( domainPerms, staticPC, permissions[ i ], null );
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates a permission for the domains of an access control context
+     * against this snapshot, without consulting the policy's decision cache.
+     * Each distinct domain is evaluated once.
+     *
+     * @param context    the domains of the context, null domains are skipped.
+     * @param permission the Permission being checked.
+     *
+     * @return true if the permission is granted to every domain.
+     *
+     * @see ScalableBatchPolicy
+     */
+    public boolean implies( ProtectionDomain[] context, Permission permission )
+    {
+        if( permission == null )
+        {
+            throw new NullPointerException( "permission not allowed to be null" );
+        }
+        DistinctDomains distinct = new DistinctDomains( context.length, index.isKeyed() );
+        for( ProtectionDomain domain : context )
+        {
+            if( domain != null && distinct.add( domain ) && !implies( domain, permission ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean implies( DomainPermissions domainPerms, PermissionCollection staticPC, Permission permission,
+                             PolicyEvents.Trace trace )
+    {
+        Class<?> klass = permission.getClass();
+        // Only grants containing Permission's of the same class are consulted.
+        PermissionClassIndex.Entry[] entries = index.permissions().get( permission );
+        int sources = 0;
+        boolean merge = false;
+        for( PermissionClassIndex.Entry entry : entries )
+        {
+            if( domainPerms.applies( entry.ordinal() ) )
+            {
+                sources++;
+                if( trace != null )
+                {
+                    trace.grantsScanned++;
+                }
+                PermissionCollection pc = entry.collection();
+                if( pc == null )
+                {
+                    merge = true;
+                }
+                else if( pc.implies( permission ) )
+                {
+                    return true;
+                }
+            }
+        }
+        if( staticPC != null && domainPerms.hasStaticPermissions( klass ) )
+        {
+            sources++;
+            if( staticPC.implies( permission ) )
+            {
+                return true;
+            }
+        }
+        if( sources < 2 && !merge )
+        {
+            return false;
+        }
+        // Implication may span sources, eg FilePermission actions.
+        // Need to have a list of Permission's we can sort if permission is SocketPermission.
+        NavigableSet<Permission> perms = new TreeSet<Permission>( comparator );
+        for( PermissionClassIndex.Entry entry : entries )
+        {
+            if( domainPerms.applies( entry.ordinal() ) )
+            {
+                entry.addTo( perms );
+            }
+        }
+        // Don't forget to merge the static Permissions.
+        if( staticPC != null )
+        {
+            Enumeration<Permission> e = staticPC.elements();
+            while( e.hasMoreElements() )
+            {
+                Permission p = e.nextElement();
+                // Don't make it larger than necessary, but don't worry about duplicates either.
+                if( PermissionClassIndex.isRelevant( p, klass ) )
+                {
+                    perms.add( p );
+                }
+            }
+        }
+        return convert( perms ).implies( permission );
+    }
+
+    /**
+     * Returns the permissions granted to a domain by this snapshot, see
+     * {@link ConcurrentPolicyFile#getPermissions(ProtectionDomain)}.
+     *
+     * @param pd the domain, may be null.
+     *
+     * @return a new PermissionCollection.
+     */
+    public PermissionCollection getPermissions( ProtectionDomain pd )
+    {
+        DomainPermissions domainPerms = index.domainPermissions( pd );
+        if( domainPerms.isPrivileged() )
+        {// Don't stuff around finish early if you can.
+            PermissionCollection pc = new Permissions();
+            pc.add( new AllPermission() );
+            return pc;
+        }
+        NavigableSet<Permission> perms = new TreeSet<Permission>( comparator );
+        PermissionGrant[] grantRefCopy = index.grants();
+        BitSet applicable = domainPerms.applicable();
+        for( int i = applicable.nextSetBit( 0 ); i >= 0; i = applicable.nextSetBit( i + 1 ) )
+        {
+            Collection<Permission> permissions = grantRefCopy[ i ].getPermissions();
+            for( Permission p : permissions )
+            {
+                perms.add( p );
+            }
+        }
+        // Don't forget to merge the static Permissions.
+        if( pd != null )
+        {
+            PermissionCollection staticPC = pd.getPermissions();
+            if( staticPC != null )
+            {
+                Enumeration<Permission> e = staticPC.elements();
+                while( e.hasMoreElements() )
+                {
+                    perms.add( e.nextElement() );
+                }
+            }
+        }
+        // A new, mutable collection, as Policy.getPermissions specifies.
+        PermissionCollection pc = new Permissions();
+        // The descending iterator is for SocketPermission.
+        Iterator<Permission> it = perms.descendingIterator();
+        while( it.hasNext() )
+        {
+            pc.add( it.next() );
+        }
+        return pc;
+    }
+
+    /**
+     * Returns the grants of this snapshot that imply a domain, see
+     * {@link ScalableNestedPolicy#getPermissionGrants(ProtectionDomain)}.
+     *
+     * @param pd the domain, may be null.
+     *
+     * @return a new Collection.
+     */
+    public Collection<PermissionGrant> getPermissionGrants( ProtectionDomain pd )
+    {
+        PermissionGrant[] grants = index.grants();
+        BitSet implied = index.domainPermissions( pd ).applicable();
+        List<PermissionGrant> applicable = new LinkedList<PermissionGrant>();
+        for( int i = implied.nextSetBit( 0 ); i >= 0; i = implied.nextSetBit( i + 1 ) )
+        {
+            applicable.add( grants[ i ] );
+        }
+        // Merge any static permissions.
+        PermissionCollection pc = pd != null ? pd.getPermissions() : null;
+        if( pc != null )
+        {
+            PermissionGrantBuilder pgb = PermissionGrantBuilder.newBuilder();
+            pgb.setDomain( new WeakReference<ProtectionDomain>( pd ) );
+            pgb.context( PermissionGrantBuilder.PROTECTIONDOMAIN );
+            Collection<Permission> perms = new LinkedList<Permission>();
+            Enumeration<Permission> en = pc.elements();
+            while( en.hasMoreElements() )
+            {
+                perms.add( en.nextElement() );
+            }
+            pgb.permissions( perms.toArray( new Permission[ perms.size() ] ) );
+            applicable.add( pgb.build() );
+        }
+        return applicable;
+    }
+
+    /**
+     * @return true if a grant containing AllPermission implies the CodeSource
+     * without Principal's.
+     */
+    boolean isPrivileged( CodeSource cs )
+    {
+        PermissionGrant[] grantRefCopy = index.grants();
+        BitSet candidates = index.candidates( cs );
+        for( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i + 1 ) )
+        {
+            PermissionGrant ge = grantRefCopy[ i ];
+            if( ge.isPrivileged() && ge.implies( cs, null ) )
+            { // No Principal's
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PermissionCollection convert( NavigableSet<Permission> permissions )
+    {
+        List<Permission> ordered = new ArrayList<Permission>( permissions.size() );
+        // The descending iterator is for SocketPermission.
+        Iterator<Permission> it = permissions.descendingIterator();
+        while( it.hasNext() )
+        {
+            ordered.add( it.next() );
+        }
+        return new ImmutablePermissionCollection( ordered );
+    }
+}
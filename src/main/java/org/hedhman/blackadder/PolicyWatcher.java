@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of file: policy locations and asks the policy to
+ * reload the locations whose files were created, modified or deleted.
+ *
+ * Events are collected until none has arrived for the debounce period, so an
+ * editor writing a file in several steps, or an operator copying a set of
+ * files, causes one reload.  Other locations are not watched.
+ *
+ * The policy is weakly referenced, the watcher stops once it's collected.
+ */
+final class PolicyWatcher
+    implements Runnable
+{
+    // How often the watcher checks whether the policy has been collected.
+    private static final long IDLE_MILLIS = 60000L;
+
+    private final WeakReference<ConcurrentPolicyFile> policy;
+    private final long debounceMillis;
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories; // Guarded by this.
+    private final Map<Path, URL> files; // Guarded by this.
+    private final Thread thread;
+
+    PolicyWatcher( ConcurrentPolicyFile policy, long debounceMillis )
+        throws IOException
+    {
+        this.policy = new WeakReference<ConcurrentPolicyFile>( policy );
+        this.debounceMillis = debounceMillis;
+        service = FileSystems.getDefault().newWatchService();
+        directories = new HashMap<WatchKey, Path>();
+        files = new HashMap<Path, URL>();
+        // Created privileged, so the thread doesn't inherit the caller's
+        // context, and without a context ClassLoader to pin.
+        thread = AccessController.doPrivileged( new PrivilegedAction<Thread>()
+        {
+            public Thread run()
+            {
+                Thread t = new Thread( PolicyWatcher.this, "blackadder-policy-watcher" );
+                t.setDaemon( true );
+                t.setContextClassLoader( null );
+                return t;
+            }
+        } );
+    }
+
+    void start()
+    {
+        AccessController.doPrivileged( new PrivilegedAction<Object>()
+        {
+            public Object run()
+            {
+                thread.start();
+                return null;
+            }
+        } );
+    }
+
+    void stop()
+    {
+        try
+        {
+            service.close();
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Error closing policy watcher: " + e );
+        }
+    }
+
+    /**
+     * Watches the file: locations among those given, and only those.
+     */
+    synchronized void watch( URL[] locations )
+    {
+        Map<Path, URL> wanted = new HashMap<Path, URL>();
+        for( URL location : locations )
+        {
+            Path path = pathOf( location );
+            if( path != null )
+            {
+                wanted.put( path, location );
+            }
+        }
+        files.clear();
+        files.putAll( wanted );
+        Set<Path> dirs = new LinkedHashSet<Path>();
+        for( Path path : wanted.keySet() )
+        {
+            if( path.getParent() != null )
+            {
+                dirs.add( path.getParent() );
+            }
+        }
+        Iterator<Map.Entry<WatchKey, Path>> it = directories.entrySet().iterator();
+        while( it.hasNext() )
+        {
+            Map.Entry<WatchKey, Path> e = it.next();
+            if( !dirs.remove( e.getValue() ) || !e.getKey().isValid() )
+            {
+                e.getKey().cancel();
+                it.remove();
+            }
+        }
+        for( final Path dir : dirs )
+        {
+            try
+            {
+                WatchKey key = AccessController.doPrivileged( new PrivilegedExceptionAction<WatchKey>()
+                {
+                    public WatchKey run()
+                        throws IOException
+                    {
+                        return dir.register( service,
+                                             StandardWatchEventKinds.ENTRY_CREATE,
+                                             StandardWatchEventKinds.ENTRY_MODIFY,
+                                             StandardWatchEventKinds.ENTRY_DELETE );
+                    }
+                } );
+                directories.put( key, dir );
+            }
+            catch( PrivilegedActionException e )
+            {
+                System.err.println( "Unable to watch policy directory " + dir + ": " + e.getCause() );
+            }
+            catch( ClosedWatchServiceException e )
+            {
+                return;
+            }
+        }
+    }
+
+    public void run()
+    {
+        try
+        {
+            while( true )
+            {
+                WatchKey key = service.poll( IDLE_MILLIS, TimeUnit.MILLISECONDS );
+                if( policy.get() == null )
+                {
+                    break;
+                }
+                if( key == null )
+                {
+                    continue;
+                }
+                Set<URL> changed = new LinkedHashSet<URL>();
+                do
+                {
+                    changed( key, changed );
+                }
+                while( ( key = service.poll( debounceMillis, TimeUnit.MILLISECONDS ) ) != null );
+                ConcurrentPolicyFile p = policy.get();
+                if( p == null )
+                {
+                    break;
+                }
+                if( !changed.isEmpty() )
+                {
+                    watch( p.reload( changed ) );
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch( ClosedWatchServiceException e )
+        {
+            // Stopped.
+        }
+        catch( RuntimeException e )
+        {
+            System.err.println( "Policy watcher failed, policy files are no longer watched" );
+            e.printStackTrace( System.err );
+        }
+        finally
+        {
+            stop();
+        }
+    }
+
+    // Adds the locations affected by the key's events, and resets the key.
+    private synchronized void changed( WatchKey key, Collection<URL> changed )
+    {
+        Path dir = directories.get( key );
+        List<WatchEvent<?>> events = key.pollEvents();
+        key.reset();
+        if( dir == null )
+        {
+            return;
+        }
+        for( WatchEvent<?> event : events )
+        {
+            if( event.kind() == StandardWatchEventKinds.OVERFLOW )
+            {
+                // Events were lost, reload everything in the directory.
+                for( Map.Entry<Path, URL> e : files.entrySet() )
+                {
+                    if( dir.equals( e.getKey().getParent() ) )
+                    {
+                        changed.add( e.getValue() );
+                    }
+                }
+                continue;
+            }
+            URL location = files.get( dir.resolve( (Path) event.context() ) );
+            if( location != null )
+            {
+                changed.add( location );
+            }
+        }
+    }
+
+    /**
+     * @return the absolute path of a file: URL, or null if it isn't one.
+     */
+    static Path pathOf( URL location )
+    {
+        if( !"file".equalsIgnoreCase( location.getProtocol() ) )
+        {
+            return null;
+        }
+        File file;
+        try
+        {
+            file = new File( location.toURI() );
+        }
+        catch( URISyntaxException e )
+        {
+            file = new File( location.getPath() );
+        }
+        catch( IllegalArgumentException e )
+        {
+            file = new File( location.getPath() );
+        }
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.hedhman.blackadder;
+
+import java.security.Permission;
+import java.security.ProtectionDomain;
+
+/**
+ * Policy providers can implement this interface, alongside
+ * ScalableNestedPolicy, to allow several Permission's to be checked for the
+ * same domain with one call, so the work of finding what the policy grants
+ * the domain is done once, rather than once for each Permission.
+ *
+ * A whole access control context may also be checked with one call, each
+ * distinct domain of the context is evaluated once.
+ *
+ * A policy nesting other policies may implement this by asking each nested
+ * policy that implements it for the Permission's not yet implied.
+ */
+public interface ScalableBatchPolicy
+{
+
+    /**
+     * Evaluates each Permission, as if by
+     * {@link java.security.Policy#implies(ProtectionDomain, Permission)}.
+     *
+     * @param domain      the domain, may be null.
+     * @param permissions the Permission's to check, none may be null.
+     *
+     * @return a new array, with the same length as permissions, each
+     * element true if the Permission at the same index is implied.
+     */
+    boolean[] implies( ProtectionDomain domain, Permission[] permissions );
+
+    /**
+     * Evaluates a Permission for the domains of an access control context,
+     * as if by {@link java.security.Policy#implies(ProtectionDomain, Permission)}
+     * for each, stopping at the first domain it isn't implied for.  Null
+     * domains are system domains and are skipped, as AccessControlContext
+     * does.
+     *
+     * @param context    the domains of the context.
+     * @param permission the Permission to check.
+     *
+     * @return true if the Permission is implied for every domain.
+     */
+    boolean implies( ProtectionDomain[] context, Permission permission );
+}
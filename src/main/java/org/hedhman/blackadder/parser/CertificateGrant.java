@@ -29,7 +29,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -39,6 +39,8 @@ class CertificateGrant extends PrincipalGrant
 {
     private static final long serialVersionUID = 1L;
     private final Collection<Certificate> certs;
+    // Null if a certificate couldn't be resolved, the grant is then never implied.
+    private final Fingerprint[] fingerprints;
     private final int hashCode;
 
     @SuppressWarnings("unchecked")
@@ -54,6 +56,7 @@ class CertificateGrant extends PrincipalGrant
             certs = new HashSet<Certificate>( codeSourceCerts.length );
             certs.addAll( Arrays.asList( codeSourceCerts ) );
         }
+        fingerprints = fingerprints( certs );
         int hash = 3;
         hash = 83 * hash + ( this.certs != null ? this.certs.hashCode() : 0 );
         hash = 83 * hash + ( super.hashCode() );
@@ -152,13 +155,58 @@ class CertificateGrant extends PrincipalGrant
         {
             return false;
         }
-        if( certs.isEmpty() )
+        return impliesCertificates( codeSource );
+    }
+
+    private static Fingerprint[] fingerprints( Collection<Certificate> certs )
+    {
+        Set<Fingerprint> result = new HashSet<Fingerprint>( certs.size() * 2 );
+        for( Certificate cert : certs )
+        {
+            Fingerprint fingerprint = Fingerprint.of( cert );
+            if( fingerprint == null )
+            {
+                return null;
+            }
+            result.add( fingerprint );
+        }
+        return result.toArray( new Fingerprint[ result.size() ] );
+    }
+
+    /**
+     * Returns true if the CodeSource is signed by all Certificate's of this
+     * grant, comparing SHA-256 fingerprints rather than Certificate's.
+     *
+     * @param codeSource the CodeSource, may be null if this grant has no Certificate's.
+     */
+    boolean impliesCertificates( CodeSource codeSource )
+    {
+        if( fingerprints == null )
+        {
+            return false;
+        }
+        if( fingerprints.length == 0 )
         {
             return true;
         }
-        Certificate[] signers = codeSource.getCertificates();
-        List<Certificate> certificates = Arrays.asList( signers );
-        return certificates.containsAll( certs );
+        Set<Fingerprint> signers = Fingerprint.of( codeSource );
+        for( Fingerprint fingerprint : fingerprints )
+        {
+            if( !signers.contains( fingerprint ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the fingerprints of this grant's Certificate's, or null if one
+     * couldn't be resolved, the array must not be mutated.
+     */
+    Fingerprint[] getFingerprints()
+    {
+        return fingerprints;
     }
 
     @Override
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.security.CodeSource;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index from certificate fingerprint to the signedBy grants
+ * requiring that certificate, so finding the grants that may apply to a
+ * signed CodeSource costs one hash lookup per signer.
+ *
+ * A grant only applies if all of its certificates sign the CodeSource, so it
+ * is indexed under one of them.  Like CodebaseIndex, the index returns
+ * candidates, a superset of the grants whose certificates sign the
+ * CodeSource, each candidate must still be asked if it implies.  Grants
+ * without certificates are always candidates, grants with a certificate that
+ * couldn't be resolved never are.
+ *
+ * Grants are identified by their index in the array the index was built from.
+ */
+public final class CertificateIndex
+{
+    private final int size;
+    private final BitSet unsigned;
+    private final Map<Fingerprint, BitSet> signed;
+
+    /**
+     * Builds the index.
+     *
+     * @param grants the grants to index, the array is not retained.
+     */
+    public CertificateIndex( PermissionGrant[] grants )
+    {
+        size = grants.length;
+        unsigned = new BitSet( size );
+        signed = new HashMap<Fingerprint, BitSet>();
+        for( int i = 0; i < size; i++ )
+        {
+            PermissionGrant grant = grants[ i ];
+            if( !( grant instanceof CertificateGrant ) )
+            {
+                unsigned.set( i );
+                continue;
+            }
+            Fingerprint[] fingerprints = ( (CertificateGrant) grant ).getFingerprints();
+            if( fingerprints == null )
+            {
+                continue; // Never implied.
+            }
+            if( fingerprints.length == 0 )
+            {
+                unsigned.set( i );
+                continue;
+            }
+            BitSet bits = signed.get( fingerprints[ 0 ] );
+            if( bits == null )
+            {
+                bits = new BitSet();
+                signed.put( fingerprints[ 0 ], bits );
+            }
+            bits.set( i );
+        }
+    }
+
+    /**
+     * Returns the grants that may be implied by the signers of a CodeSource.
+     *
+     * @param codeSource the CodeSource, may be null.
+     *
+     * @return a new BitSet, with bits set for the index of each candidate grant.
+     */
+    public BitSet candidates( CodeSource codeSource )
+    {
+        BitSet result = new BitSet( size );
+        result.or( unsigned );
+        if( signed.isEmpty() )
+        {
+            return result;
+        }
+        for( Fingerprint fingerprint : Fingerprint.of( codeSource ) )
+        {
+            BitSet bits = signed.get( fingerprint );
+            if( bits != null )
+            {
+                result.or( bits );
+            }
+        }
+        return result;
+    }
+}
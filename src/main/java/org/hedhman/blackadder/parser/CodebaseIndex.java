@@ -0,0 +1,455 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable trie of the codebase locations of URIGrant's, keyed by scheme,
+ * host label and path segment, used to find the PermissionGrant's that may
+ * apply to a CodeSource, in time proportional to the number of labels of its
+ * host and the depth of its path rather than the number of grants.
+ *
+ * The trie returns candidates, a superset of the grants whose codebase implies
+ * the CodeSource, each candidate must still be asked if it implies the
+ * ProtectionDomain or CodeSource.  Ports and fragments are not indexed and
+ * host comparison is case insensitive.  Any PermissionGrant that isn't a
+ * URIGrant, or whose locations can't be indexed, is always a candidate.
+ *
+ * Grants are identified by their index in the array the trie was built from.
+ */
+public final class CodebaseIndex
+{
+    private final int size;
+    private final BitSet unindexed;
+    private final Map<String, SchemeNode> schemes;
+
+    /**
+     * Builds the trie.
+     *
+     * @param grants the grants to index, the array is not retained.
+     */
+    public CodebaseIndex( PermissionGrant[] grants )
+    {
+        size = grants.length;
+        unindexed = new BitSet( size );
+        schemes = new HashMap<String, SchemeNode>();
+        for( int i = 0; i < size; i++ )
+        {
+            PermissionGrant grant = grants[ i ];
+            if( !( grant instanceof URIGrant ) )
+            {
+                unindexed.set( i );
+                continue;
+            }
+            Collection<URI> locations = ( (URIGrant) grant ).getLocations();
+            if( locations.isEmpty() || locations.contains( null ) )
+            {
+                unindexed.set( i ); // Any CodeSource.
+                continue;
+            }
+            for( URI location : locations )
+            {
+                if( !add( location, i ) )
+                {
+                    unindexed.set( i );
+                }
+            }
+        }
+        for( SchemeNode scheme : schemes.values() )
+        {
+            scheme.freeze();
+        }
+    }
+
+    private boolean add( URI location, int grant )
+    {
+        String scheme = location.getScheme();
+        String path = location.getPath();
+        if( scheme == null || path == null || path.length() > 0 && path.charAt( 0 ) != '/' )
+        {
+            return false;
+        }
+        scheme = scheme.toLowerCase();
+        SchemeNode node = schemes.get( scheme );
+        if( node == null )
+        {
+            node = new SchemeNode();
+            schemes.put( scheme, node );
+        }
+        node.hostNode( URIGrant.hostOf( location ) ).add( path, grant );
+        return true;
+    }
+
+    /**
+     * Returns the grants that may imply the CodeSource.
+     *
+     * @param codeSource the CodeSource, may be null.
+     *
+     * @return a new BitSet, with bits set for the index of each candidate grant.
+     */
+    public BitSet candidates( CodeSource codeSource )
+    {
+        BitSet result = new BitSet( size );
+        result.or( unindexed );
+        // No URIGrant implies a location that can't be normalised either.
+        URI implied = codeSource != null ? DomainKey.of( codeSource ).getLocation() : null;
+        if( implied == null )
+        {
+            return result;
+        }
+        candidates( implied, result );
+        return result;
+    }
+
+    /**
+     * Sets the bits of grants that may imply a normalised URI.
+     */
+    void candidates( URI implied, BitSet result )
+    {
+        String scheme = implied.getScheme();
+        String path = implied.getPath();
+        if( scheme == null || path == null )
+        {
+            return;
+        }
+        SchemeNode node = schemes.get( scheme.toLowerCase() );
+        if( node == null )
+        {
+            return;
+        }
+        String host = URIGrant.hostOf( implied );
+        if( node.anyHost != null )
+        {
+            node.anyHost.candidates( path, result );
+        }
+        if( host == null )
+        {
+            return; // Only grants without a host imply a URI without a host.
+        }
+        host = host.toLowerCase();
+        if( node.allHosts != null )
+        {
+            node.allHosts.candidates( path, result );
+        }
+        if( node.localHost != null && isLocalHost( host ) )
+        {
+            node.localHost.candidates( path, result );
+        }
+        node.hosts.candidates( host, path, result );
+        for( int i = 0, l = node.wildcardSuffixes.length; i < l; i++ )
+        {
+            if( host.endsWith( node.wildcardSuffixes[ i ] ) )
+            {
+                node.wildcardHosts[ i ].candidates( path, result );
+            }
+        }
+    }
+
+    private static boolean isLocalHost( String host )
+    {
+        return host.length() == 0 || "localhost".equals( host );
+    }
+
+    /**
+     * Path tries for one scheme, divided by host.
+     */
+    private static final class SchemeNode
+    {
+        private PathNode anyHost;    // Grants without a host.
+        private PathNode allHosts;   // Grants with host "*".
+        private PathNode localHost;  // Grants with host "" or "localhost".
+        private final HostNode hosts = new HostNode(); // Exact hosts and "*." wildcards.
+        // Other wildcards, such as "*example.com", which don't end with whole labels.
+        private final List<String> suffixes = new ArrayList<String>();
+        private final List<PathNode> suffixNodes = new ArrayList<PathNode>();
+        private String[] wildcardSuffixes;
+        private PathNode[] wildcardHosts;
+
+        private PathNode hostNode( String host )
+        {
+            if( host == null )
+            {
+                if( anyHost == null )
+                {
+                    anyHost = new PathNode();
+                }
+                return anyHost;
+            }
+            host = host.toLowerCase();
+            if( isLocalHost( host ) )
+            {
+                if( localHost == null )
+                {
+                    localHost = new PathNode();
+                }
+                return localHost;
+            }
+            if( host.charAt( 0 ) == '*' )
+            {
+                if( host.length() == 1 )
+                {
+                    if( allHosts == null )
+                    {
+                        allHosts = new PathNode();
+                    }
+                    return allHosts;
+                }
+                String suffix = host.substring( 1 );
+                if( suffix.charAt( 0 ) == '.' )
+                {
+                    HostNode labels = hosts.node( suffix.substring( 1 ) );
+                    if( labels.wildcard == null )
+                    {
+                        labels.wildcard = new PathNode();
+                    }
+                    return labels.wildcard;
+                }
+                int i = suffixes.indexOf( suffix );
+                if( i >= 0 )
+                {
+                    return suffixNodes.get( i );
+                }
+                PathNode node = new PathNode();
+                suffixes.add( suffix );
+                suffixNodes.add( node );
+                return node;
+            }
+            HostNode labels = hosts.node( host );
+            if( labels.exact == null )
+            {
+                labels.exact = new PathNode();
+            }
+            return labels.exact;
+        }
+
+        private void freeze()
+        {
+            wildcardSuffixes = suffixes.toArray( new String[ suffixes.size() ] );
+            wildcardHosts = suffixNodes.toArray( new PathNode[ suffixNodes.size() ] );
+            suffixes.clear();
+            suffixNodes.clear();
+        }
+    }
+
+    /**
+     * A node in the trie of host names, keyed by label from the last, so
+     * "www.apache.org" is found under "org", then "apache", then "www".
+     *
+     * A wildcard "*.apache.org" is held by the node of "apache.org" and
+     * implies any host with one or more labels before it, as
+     * String.endsWith( ".apache.org" ) would.
+     */
+    private static final class HostNode
+    {
+        private final Map<String, HostNode> children = new HashMap<String, HostNode>();
+        private PathNode exact;
+        private PathNode wildcard;
+
+        private HostNode node( String host )
+        {
+            HostNode node = this;
+            int end = host.length();
+            while( true )
+            {
+                int dot = host.lastIndexOf( '.', end - 1 );
+                String label = host.substring( dot + 1, end );
+                HostNode child = node.children.get( label );
+                if( child == null )
+                {
+                    child = new HostNode();
+                    node.children.put( label, child );
+                }
+                node = child;
+                if( dot < 0 )
+                {
+                    return node;
+                }
+                end = dot;
+            }
+        }
+
+        /**
+         * Walks the labels of a lower case host, finding the paths of grants
+         * for the host and of wildcards ending with its labels.
+         */
+        private void candidates( String host, String path, BitSet result )
+        {
+            HostNode node = this;
+            int end = host.length();
+            while( true )
+            {
+                int dot = host.lastIndexOf( '.', end - 1 );
+                node = node.children.get( host.substring( dot + 1, end ) );
+                if( node == null )
+                {
+                    return;
+                }
+                if( dot < 0 )
+                {
+                    if( node.exact != null )
+                    {
+                        node.exact.candidates( path, result );
+                    }
+                    return;
+                }
+                if( node.wildcard != null )
+                {
+                    node.wildcard.candidates( path, result );
+                }
+                end = dot;
+            }
+        }
+    }
+
+    /**
+     * A node in the path trie, representing a directory.
+     *
+     * URIGrant matches a path ending in "/-" or "/*" against the implied path
+     * with String.startsWith, after removing those two characters, so
+     * "/a/b/-" implies "/a/bc", those grants are held by the directory
+     * containing their last segment, keyed by that segment as a prefix.
+     */
+    private static final class PathNode
+    {
+        private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+        private final BitSet exact = new BitSet();
+        private final Map<String, BitSet> prefixes = new LinkedHashMap<String, BitSet>();
+        private final BitSet any = new BitSet(); // Only used by the root, "/-" and "/*".
+
+        private void add( String path, int grant )
+        {
+            if( path.endsWith( "/-" ) || path.endsWith( "/*" ) )
+            {
+                String prefix = path.substring( 0, path.length() - 2 );
+                int slash = prefix.lastIndexOf( '/' );
+                if( slash < 0 )
+                {
+                    any.set( grant );
+                    return;
+                }
+                PathNode node = walk( prefix, slash );
+                String segment = prefix.substring( slash + 1 );
+                BitSet bits = node.prefixes.get( segment );
+                if( bits == null )
+                {
+                    bits = new BitSet();
+                    node.prefixes.put( segment, bits );
+                }
+                bits.set( grant );
+            }
+            else if( path.length() == 0 )
+            {
+                exact.set( grant );
+            }
+            else
+            {
+                // The last segment of an exact path is a child, "" if the path ends with "/".
+                path = path + "/";
+                walk( path, path.length() - 1 ).exact.set( grant );
+            }
+        }
+
+        /**
+         * Returns the node for the directories of path, up to the slash at
+         * index end, creating nodes as necessary.
+         */
+        private PathNode walk( String path, int end )
+        {
+            PathNode node = this;
+            int pos = 1;
+            while( pos <= end )
+            {
+                int next = path.indexOf( '/', pos );
+                String segment = path.substring( pos, next );
+                PathNode child = node.children.get( segment );
+                if( child == null )
+                {
+                    child = new PathNode();
+                    node.children.put( segment, child );
+                }
+                node = child;
+                pos = next + 1;
+            }
+            return node;
+        }
+
+        /**
+         * Walks the path of a normalised URI, setting bits of grants that
+         * may imply it.
+         */
+        private void candidates( String path, BitSet result )
+        {
+            result.or( any );
+            if( path.length() == 0 )
+            {
+                result.or( exact );
+                return;
+            }
+            if( path.charAt( 0 ) != '/' )
+            {
+                return;
+            }
+            PathNode node = this;
+            int pos = 1;
+            while( true )
+            {
+                for( Map.Entry<String, BitSet> e : node.prefixes.entrySet() )
+                {
+                    if( path.startsWith( e.getKey(), pos ) )
+                    {
+                        result.or( e.getValue() );
+                    }
+                }
+                int next = path.indexOf( '/', pos );
+                if( next < 0 )
+                {
+                    // Last segment, may be empty if the path ends with "/".
+                    String segment = path.substring( pos );
+                    if( segment.length() == 0 )
+                    {
+                        // An exact grant without trailing "/" implies a path with one.
+                        result.or( node.exact );
+                    }
+                    PathNode child = node.children.get( segment );
+                    if( child != null )
+                    {
+                        result.or( child.exact );
+                    }
+                    return;
+                }
+                PathNode child = node.children.get( path.substring( pos, next ) );
+                if( child == null )
+                {
+                    return;
+                }
+                node = child;
+                pos = next + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.net.URI;
+
+/**
+ * Immutable matcher of a normalised URIGrant location, the scheme, host,
+ * port, path and fragment are taken apart once, when the grant is created,
+ * so matching a CodeSource location doesn't allocate.
+ *
+ * The rules are those of Apache Harmony's CodeSource.implies, a location
+ * implies another if they're equal, or if all of the following are true:
+ * <ul>
+ * <li>the schemes are equal.
+ * <li>if the location has a host, the other has a host and either both
+ * are "" or "localhost", or they're equal, or the location's host is "*",
+ * or it starts with "*" and the other host ends with the rest of it.
+ * <li>if the location has a port, the other's port is equal.
+ * <li>if the location's path ends with "/-", the other's path starts with
+ * it, exclusive of the "/-"; if it ends with "/*", the other's path starts
+ * with it, exclusive of the "/*", and has no '/' after the length of the
+ * location's path, less one; otherwise, the other's path is equal, or equal
+ * to it with '/' appended, if it doesn't end with '/'.
+ * <li>if the location has a fragment, the other's fragment is equal.
+ * </ul>
+ *
+ * Hosts are never resolved, a codebase either has a matching host or it
+ * doesn't, DNS can't be trusted to decide which code is granted permissions.
+ */
+final class CodebaseMatcher
+{
+    private static final int NO_HOST = 0;
+    private static final int ANY_HOST = 1;
+    private static final int LOCAL_HOST = 2;
+    private static final int EXACT_HOST = 3;
+    private static final int SUFFIX_HOST = 4;
+
+    private static final int EXACT_PATH = 0;
+    private static final int DIRECTORY_PATH = 1; // Ends with "/*".
+    private static final int RECURSIVE_PATH = 2; // Ends with "/-".
+
+    private final URI location;
+    private final String scheme;
+    private final int hostMatch;
+    private final String host; // The suffix, for a wildcard host.
+    private final int port;
+    private final String path;
+    private final int pathMatch;
+    private final int prefix; // Length of the path, exclusive of '*' or '-'.
+    private final boolean trailingSlash; // Of an exact path.
+    private final String fragment;
+
+    CodebaseMatcher( URI location )
+    {
+        this.location = location;
+        scheme = location.getScheme();
+        String h = URIGrant.hostOf( location );
+        if( h == null )
+        {
+            hostMatch = NO_HOST;
+        }
+        else if( h.length() == 0 || "localhost".equals( h ) )
+        {
+            hostMatch = LOCAL_HOST;
+        }
+        else if( h.charAt( 0 ) != '*' )
+        {
+            hostMatch = EXACT_HOST;
+        }
+        else if( h.length() == 1 )
+        {
+            hostMatch = ANY_HOST;
+        }
+        else
+        {
+            hostMatch = SUFFIX_HOST;
+            h = h.substring( 1 );
+        }
+        host = h;
+        port = URIGrant.portOf( location );
+        path = location.getPath();
+        if( path == null )
+        {
+            pathMatch = EXACT_PATH;
+            prefix = 0;
+            trailingSlash = false;
+        }
+        else if( path.endsWith( "/-" ) )
+        {
+            pathMatch = RECURSIVE_PATH;
+            prefix = path.length() - 1;
+            trailingSlash = false;
+        }
+        else if( path.endsWith( "/*" ) )
+        {
+            pathMatch = DIRECTORY_PATH;
+            prefix = path.length() - 1;
+            trailingSlash = false;
+        }
+        else
+        {
+            pathMatch = EXACT_PATH;
+            prefix = path.length();
+            trailingSlash = path.endsWith( "/" );
+        }
+        fragment = location.getFragment();
+    }
+
+    /**
+     * @return the location this matcher was compiled from.
+     */
+    URI getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @param implied a normalised location, not null.
+     *
+     * @return true if this location implies it.
+     */
+    boolean matches( URI implied )
+    {
+        if( location.equals( implied ) )
+        {
+            return true;
+        }
+        if( scheme == null || !scheme.equals( implied.getScheme() ) )
+        {
+            return false;
+        }
+        if( hostMatch != NO_HOST && !matchesHost( URIGrant.hostOf( implied ) ) )
+        {
+            return false;
+        }
+        if( port != -1 && port != URIGrant.portOf( implied ) )
+        {
+            return false;
+        }
+        String thatPath = implied.getPath();
+        if( path == null || thatPath == null || !matchesPath( thatPath ) )
+        {
+            return false;
+        }
+        return fragment == null || fragment.equals( implied.getFragment() );
+    }
+
+    private boolean matchesHost( String thatHost )
+    {
+        if( thatHost == null )
+        {
+            return false;
+        }
+        switch( hostMatch )
+        {
+        case ANY_HOST:
+            return true;
+        case LOCAL_HOST:
+            return thatHost.length() == 0 || "localhost".equals( thatHost ) || host.equals( thatHost );
+        case SUFFIX_HOST:
+            return thatHost.endsWith( host );
+        default:
+            return host.equals( thatHost );
+        }
+    }
+
+    private boolean matchesPath( String thatPath )
+    {
+        int l = thatPath.length();
+        switch( pathMatch )
+        {
+        case RECURSIVE_PATH:
+            return thatPath.regionMatches( 0, path, 0, prefix - 1 );
+        case DIRECTORY_PATH:
+            return thatPath.regionMatches( 0, path, 0, prefix - 1 )
+                   && thatPath.indexOf( '/', prefix ) == -1;
+        default:
+            if( l == prefix )
+            {
+                return path.equals( thatPath );
+            }
+            // Without a trailing slash, the directory is implied too.
+            return !trailingSlash && l == prefix + 1 && thatPath.charAt( prefix ) == '/'
+                   && thatPath.regionMatches( 0, path, 0, prefix );
+        }
+    }
+}
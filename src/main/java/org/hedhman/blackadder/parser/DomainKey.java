@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.Principal;
+import java.security.PrivilegedActionException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonical key of the characteristics of a ProtectionDomain, or CodeSource,
+ * that policy file grants are matched against: the normalised codebase URI,
+ * the fingerprints of its certificates and its Principal's.
+ *
+ * Keys are interned, equivalent domains share the same key, so they may be
+ * compared by reference.  A domain's key is computed the first time it's
+ * asked for and memoised by domain identity; both domains and keys are
+ * weakly referenced.  DomainCombiner's, such as SubjectDomainCombiner,
+ * create new ProtectionDomain's for the same code, which then share the key,
+ * and the state precomputed for it, of the domain they replace.  Codebase
+ * URL's are normalised once, for all CodeSource's with the same URL, not
+ * compared with URL.equals, which may resolve host names.
+ *
+ * A SubjectDomain has no key, its Principal's may change.
+ */
+public final class DomainKey
+{
+    private static final Set<Principal> NONE = Collections.emptySet();
+    private static final Set<Fingerprint> NO_CERTIFICATES = Collections.emptySet();
+
+    private static final ConcurrentMap<WeakIdentity, DomainKey> domains =
+        new ConcurrentHashMap<WeakIdentity, DomainKey>();
+    private static final ConcurrentMap<WeakIdentity, DomainKey> codeSources =
+        new ConcurrentHashMap<WeakIdentity, DomainKey>();
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    // Cleared when full, there are usually far fewer distinct codebases.
+    private static final int NORMALISED_CAPACITY = 4096;
+    private static final ConcurrentMap<String, URI> normalised = new ConcurrentHashMap<String, URI>();
+
+    // Guarded by itself.
+    private static final Map<DomainKey, WeakReference<DomainKey>> interned =
+        new WeakHashMap<DomainKey, WeakReference<DomainKey>>();
+
+    private final URI location;
+    private final Set<Fingerprint> certificates;
+    private final Set<Principal> principals;
+    private final DomainKey codeSourceKey;
+    private final int hashCode;
+
+    private DomainKey( URI location, Set<Fingerprint> certificates, Set<Principal> principals, DomainKey codeSourceKey )
+    {
+        this.location = location;
+        this.certificates = certificates;
+        this.principals = principals;
+        this.codeSourceKey = codeSourceKey != null ? codeSourceKey : this;
+        int hash = location != null ? location.hashCode() : 0;
+        hash = 31 * hash + certificates.hashCode();
+        hash = 31 * hash + principals.hashCode();
+        hashCode = hash;
+    }
+
+    /**
+     * Returns the key of a domain.
+     *
+     * @param domain the domain, may be null.
+     *
+     * @return the key, or null if the domain is null or a SubjectDomain.
+     */
+    public static DomainKey of( ProtectionDomain domain )
+    {
+        if( domain == null || domain instanceof SubjectDomain )
+        {
+            return null;
+        }
+        DomainKey key = domains.get( new WeakIdentity( domain, null ) );
+        if( key != null )
+        {
+            return key;
+        }
+        DomainKey code = of( domain.getCodeSource() );
+        Principal[] pals = domain.getPrincipals();
+        Set<Principal> principals = pals.length == 0
+                                    ? NONE
+                                    : Collections.unmodifiableSet( new HashSet<Principal>( Arrays.asList( pals ) ) );
+        if( code == null )
+        {
+            key = intern( new DomainKey( null, NO_CERTIFICATES, principals, null ) );
+        }
+        else if( principals.isEmpty() )
+        {
+            key = code;
+        }
+        else
+        {
+            key = intern( new DomainKey( code.location, code.certificates, principals, code ) );
+        }
+        expunge();
+        domains.put( new WeakIdentity( domain, queue ), key );
+        return key;
+    }
+
+    /**
+     * Returns the key of a CodeSource, without Principal's.
+     *
+     * @param codeSource the CodeSource, may be null.
+     *
+     * @return the key, or null if the CodeSource is null.
+     */
+    public static DomainKey of( CodeSource codeSource )
+    {
+        if( codeSource == null )
+        {
+            return null;
+        }
+        DomainKey key = codeSources.get( new WeakIdentity( codeSource, null ) );
+        if( key != null )
+        {
+            return key;
+        }
+        key = intern( new DomainKey( normalise( codeSource.getLocation() ), Fingerprint.of( codeSource ), NONE, null ) );
+        expunge();
+        codeSources.put( new WeakIdentity( codeSource, queue ), key );
+        return key;
+    }
+
+    /**
+     * Returns true if a grant implies all domains with the same key alike,
+     * only the codebase, certificate and principal grants are known to,
+     * not their subclasses, nor grants to a ProtectionDomain or ClassLoader.
+     */
+    public static boolean isKeyed( PermissionGrant grant )
+    {
+        Class<?> type = grant.getClass();
+        return type == URIGrant.class || type == CertificateGrant.class || type == PrincipalGrant.class;
+    }
+
+    /**
+     * Normalises a codebase, the result is cached by the URL's external form,
+     * so distinct CodeSource's of the same codebase normalise it once.
+     */
+    static URI normalise( URL url )
+    {
+        if( url == null )
+        {
+            return null;
+        }
+        String form = url.toExternalForm();
+        URI uri = normalised.get( form );
+        if( uri != null )
+        {
+            return uri;
+        }
+        try
+        {
+            uri = AccessController.doPrivileged( new NormaliseURLAction( url ) );
+        }
+        catch( PrivilegedActionException ex )
+        {
+            ex.getException().printStackTrace( System.err );
+            return null;
+        }
+        if( uri != null )
+        {
+            if( normalised.size() >= NORMALISED_CAPACITY )
+            {
+                normalised.clear();
+            }
+            normalised.put( form, uri );
+        }
+        return uri;
+    }
+
+    private static DomainKey intern( DomainKey key )
+    {
+        synchronized( interned )
+        {
+            WeakReference<DomainKey> ref = interned.get( key );
+            DomainKey existing = ref != null ? ref.get() : null;
+            if( existing != null )
+            {
+                return existing;
+            }
+            interned.put( key, new WeakReference<DomainKey>( key ) );
+            return key;
+        }
+    }
+
+    private static void expunge()
+    {
+        Object stale;
+        while( ( stale = queue.poll() ) != null )
+        {
+            domains.remove( stale );
+            codeSources.remove( stale );
+        }
+    }
+
+    /**
+     * @return the normalised codebase URI, or null if there is none or it
+     * couldn't be normalised.
+     */
+    public URI getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @return the fingerprints of the certificates, an unmodifiable Set.
+     */
+    Set<Fingerprint> certificates()
+    {
+        return certificates;
+    }
+
+    /**
+     * @return the key of the same codebase and certificates without
+     * Principal's, this key if it has none.
+     */
+    public DomainKey getCodeSourceKey()
+    {
+        return codeSourceKey;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if( o == this )
+        {
+            return true;
+        }
+        if( !( o instanceof DomainKey ) )
+        {
+            return false;
+        }
+        DomainKey k = (DomainKey) o;
+        return hashCode == k.hashCode
+               && ( location == null ? k.location == null : location.equals( k.location ) )
+               && certificates.equals( k.certificates )
+               && principals.equals( k.principals );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DomainKey: " + location + " " + certificates + " " + principals;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SHA-256 fingerprint of an encoded Certificate.
+ *
+ * Certificate equals and hashCode re-encode the certificate on every call,
+ * fingerprints are computed once, when a grant is created, and for each
+ * CodeSource, the first time its certificates are checked.  CodeSource
+ * fingerprints are memoised by CodeSource identity and weakly referenced,
+ * the certificates of a CodeSource cannot change.
+ */
+final class Fingerprint
+{
+    private static final Set<Fingerprint> NONE = Collections.emptySet();
+
+    private static final ConcurrentMap<CodeSourceKey, Set<Fingerprint>> memo =
+        new ConcurrentHashMap<CodeSourceKey, Set<Fingerprint>>();
+
+    private static final ReferenceQueue<CodeSource> queue = new ReferenceQueue<CodeSource>();
+
+    private final byte[] digest;
+    private final int hashCode;
+
+    private Fingerprint( byte[] digest )
+    {
+        this.digest = digest;
+        hashCode = Arrays.hashCode( digest );
+    }
+
+    /**
+     * @return the fingerprint of the certificate, or null if it is null or
+     * cannot be encoded.
+     */
+    static Fingerprint of( Certificate certificate )
+    {
+        if( certificate == null )
+        {
+            return null;
+        }
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            return new Fingerprint( md.digest( certificate.getEncoded() ) );
+        }
+        catch( CertificateEncodingException ex )
+        {
+            ex.printStackTrace( System.err );
+            return null;
+        }
+        catch( NoSuchAlgorithmException ex )
+        {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException( ex );
+        }
+    }
+
+    /**
+     * Returns the fingerprints of the certificates of a CodeSource.
+     *
+     * @param codeSource the CodeSource, may be null.
+     *
+     * @return an unmodifiable Set, never null.
+     */
+    static Set<Fingerprint> of( CodeSource codeSource )
+    {
+        if( codeSource == null )
+        {
+            return NONE;
+        }
+        CodeSourceKey key = new CodeSourceKey( codeSource, null );
+        Set<Fingerprint> result = memo.get( key );
+        if( result != null )
+        {
+            return result;
+        }
+        Certificate[] certificates = codeSource.getCertificates();
+        if( certificates == null || certificates.length == 0 )
+        {
+            result = NONE;
+        }
+        else
+        {
+            Set<Fingerprint> fingerprints = new HashSet<Fingerprint>( certificates.length * 2 );
+            for( Certificate certificate : certificates )
+            {
+                Fingerprint fingerprint = of( certificate );
+                if( fingerprint != null )
+                {
+                    fingerprints.add( fingerprint );
+                }
+            }
+            result = Collections.unmodifiableSet( fingerprints );
+        }
+        expunge();
+        memo.put( new CodeSourceKey( codeSource, queue ), result );
+        return result;
+    }
+
+    private static void expunge()
+    {
+        Object stale;
+        while( ( stale = queue.poll() ) != null )
+        {
+            memo.remove( stale );
+        }
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if( o == this )
+        {
+            return true;
+        }
+        return o instanceof Fingerprint && Arrays.equals( digest, ( (Fingerprint) o ).digest );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( digest.length * 3 );
+        for( int i = 0; i < digest.length; i++ )
+        {
+            if( i > 0 )
+            {
+                sb.append( ':' );
+            }
+            sb.append( Character.forDigit( ( digest[ i ] >> 4 ) & 0xF, 16 ) );
+            sb.append( Character.forDigit( digest[ i ] & 0xF, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Weak identity key, CodeSource equals compares URL's and certificates.
+     */
+    private static final class CodeSourceKey extends WeakReference<CodeSource>
+    {
+        private final int hashCode;
+
+        private CodeSourceKey( CodeSource referent, ReferenceQueue<CodeSource> queue )
+        {
+            super( referent, queue );
+            hashCode = System.identityHashCode( referent );
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( o == this )
+            {
+                return true;
+            }
+            if( !( o instanceof CodeSourceKey ) )
+            {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ( (CodeSourceKey) o ).get();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
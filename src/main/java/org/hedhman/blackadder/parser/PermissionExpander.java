@@ -74,6 +74,10 @@ class PermissionExpander
                 StringBuilder sb = new StringBuilder();
                 for( PrincipalEntry pr : ge.getPrincipals() )
                 {
+                    if( sb.length() > 0 )
+                    {
+                        sb.append( ' ' );
+                    }
                     if( pr.getKlass() == null )
                     {
                         // aliased X500Principal
@@ -93,8 +97,7 @@ class PermissionExpander
                     }
                     else
                     {
-                        sb.append( pr.getKlass() ).append( " \"" ).append( pr.getName() )
-                            .append( "\" " );
+                        sb.append( pr.getKlass() ).append( " \"" ).append( pr.getName() ).append( '"' );
                     }
                 }
                 return sb.toString();
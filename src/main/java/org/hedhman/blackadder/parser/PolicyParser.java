@@ -36,6 +36,8 @@ public interface PolicyParser
      * <br>
      * A policy file may refer to some KeyStore(s), and in this case the first
      * valid reference is initialized and used in processing tokens.
+     * <br>
+     * This method may be called concurrently, for different locations.
      *
      * @param location an URL of a policy file to be loaded
      *
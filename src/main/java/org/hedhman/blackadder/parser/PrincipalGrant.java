@@ -33,9 +33,7 @@ import java.security.UnresolvedPermission;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.ConcurrentModificationException;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -65,23 +63,26 @@ class PrincipalGrant extends PermissionGrant implements Serializable
         }
         int hash = 5;
         hash = 97 * hash + ( this.pals != null ? this.pals.hashCode() : 0 );
+        // Summed, equal sets of Permission's may iterate in different orders.
+        int perms = 0;
         for( Permission p : getPermissions() )
         {
             if( p instanceof UnresolvedPermission )
             {
-                hash = 97 * hash + p.hashCode();
+                perms += p.hashCode();
             }
             else if( p != null )
             {
                 Class c = p.getClass();
                 String name = p.getName();
                 String actions = p.getActions();
-                hash = 97 * hash + ( c != null ? c.hashCode() : 0 );
-                hash = 97 * hash + ( name != null ? name.hashCode() : 0 );
-                hash = 97 * hash + ( actions != null ? actions.hashCode() : 0 );
+                int h = ( c != null ? c.hashCode() : 0 );
+                h = 97 * h + ( name != null ? name.hashCode() : 0 );
+                h = 97 * h + ( actions != null ? actions.hashCode() : 0 );
+                perms += h;
             }
         }
-        hashCode = hash;
+        hashCode = 97 * hash + perms;
     }
 
     @Override
@@ -260,67 +261,13 @@ class PrincipalGrant extends PermissionGrant implements Serializable
         return implies( hasPrincipals );
     }
 
-    Principal[] getPrincipals( final ProtectionDomain pd )
+    /**
+     * @return the Principal's of the domain, for a SubjectDomain a snapshot
+     * of its Subject's, which mustn't be modified.
+     */
+    static Principal[] getPrincipals( ProtectionDomain pd )
     {
-        if( pd instanceof SubjectDomain )
-        {
-            final Set<Principal> principals = ( (SubjectDomain) pd ).getSubject().getPrincipals();
-            // Synchronisation would prevent modification during array creation,
-            // but it also prevents multi read,
-            // lets use an iterator, catch ConcurrentModificationException 
-            // (which should seldom happen) sleep momentarily and try again.
-            Principal[] result;
-            Iterator<Principal> it;
-            // This minimal synchronization ensures that array size will
-            // be correct if ConcurrentModificationException is not thrown.
-            synchronized( principals )
-            {
-                result = new Principal[ principals.size() ];
-                it = principals.iterator();
-            }
-            boolean retry = true;
-            while( retry )
-            {
-                try
-                {
-                    int i = 0;
-                    while( it.hasNext() )
-                    {
-                        result[ i ] = it.next();
-                        i++;
-                    }
-                    return result;
-                }
-                catch( ConcurrentModificationException e )
-                {
-                    try
-                    {
-                        // sleep for modifications to finish = back off.
-                        Thread.sleep( 20L );
-                        synchronized( principals )
-                        {  // try again
-                            result = new Principal[ principals.size() ];
-                            it = principals.iterator();
-                        }
-                    }
-                    catch( InterruptedException ex )
-                    {
-                        // ProtectionDomain.getPrincipals() instead.
-                        retry = false;
-                        Thread.currentThread().interrupt(); // restore interrupt.
-                    }
-                }
-                catch( ArrayIndexOutOfBoundsException e )
-                {
-                    retry = false;
-                    // ProtectionDomain.getPrincipals() instead.
-                    System.err
-                        .println( "ArrayIndexOutOfBoundsException occured during iteration of Subject Principals" );
-                    e.printStackTrace( System.err );
-                }
-            }
-        }
-        return pd.getPrincipals();
+        return SubjectPrincipals.of( pd );
     }
 
     public boolean implies( ClassLoader cl, Principal[] pal )
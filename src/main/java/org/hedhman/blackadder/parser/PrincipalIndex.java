@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Immutable hash index from Principal class name and name to the
+ * PermissionGrant's requiring that Principal, used to find the grants
+ * that may apply to a set of Principal's, in time proportional to the
+ * number of Principal's rather than the number of grants.
+ *
+ * A grant only applies if every one of its Principal's is matched, so it is
+ * indexed under just one of them, the most selective.  Grants naming a
+ * Principal class with a wildcard name, or a wildcard class, sit in their
+ * own buckets.  Like CodebaseIndex, the index returns candidates, a superset
+ * of the grants whose Principal's are matched, each candidate must still be
+ * asked if it implies.  Grants without Principal's, or with Principal's other
+ * than UnresolvedPrincipal and X500Principal, are always candidates.
+ *
+ * Grants are identified by their index in the array the index was built from.
+ */
+public final class PrincipalIndex
+{
+    private final int size;
+    private final BitSet unindexed;
+    private final BitSet anyPrincipal;
+    private final Map<String, ClassBucket> classes;
+    private final Map<String, BitSet> x500Names; // Canonical distinguished names.
+
+    /**
+     * Builds the index.
+     *
+     * @param grants the grants to index, the array is not retained.
+     */
+    public PrincipalIndex( PermissionGrant[] grants )
+    {
+        size = grants.length;
+        unindexed = new BitSet( size );
+        anyPrincipal = new BitSet();
+        classes = new HashMap<String, ClassBucket>();
+        x500Names = new HashMap<String, BitSet>();
+        for( int i = 0; i < size; i++ )
+        {
+            PermissionGrant grant = grants[ i ];
+            if( !( grant instanceof PrincipalGrant ) || ( (PrincipalGrant) grant ).pals.isEmpty() )
+            {
+                unindexed.set( i );
+                continue;
+            }
+            Principal best = null;
+            int bestRank = 0;
+            for( Principal p : ( (PrincipalGrant) grant ).pals )
+            {
+                int rank = rank( p );
+                if( rank > bestRank )
+                {
+                    best = p;
+                    bestRank = rank;
+                }
+            }
+            add( best, bestRank, i );
+        }
+    }
+
+    /**
+     * Ranks the selectivity of a grant Principal, zero if it can't be indexed.
+     */
+    private static int rank( Principal p )
+    {
+        if( p instanceof UnresolvedPrincipal )
+        {
+            UnresolvedPrincipal up = (UnresolvedPrincipal) p;
+            if( UnresolvedPrincipal.WILDCARD.equals( up.getClassName() ) )
+            {
+                return 1;
+            }
+            if( UnresolvedPrincipal.WILDCARD.equals( up.getName() ) )
+            {
+                return 2;
+            }
+            return 3;
+        }
+        if( p instanceof X500Principal )
+        {
+            return 3;
+        }
+        return 0;
+    }
+
+    private void add( Principal p, int rank, int grant )
+    {
+        if( rank == 0 )
+        {
+            unindexed.set( grant );
+        }
+        else if( rank == 1 )
+        {
+            anyPrincipal.set( grant );
+        }
+        else if( p instanceof X500Principal )
+        {
+            bits( x500Names, ( (X500Principal) p ).getName( X500Principal.CANONICAL ) ).set( grant );
+        }
+        else
+        {
+            UnresolvedPrincipal up = (UnresolvedPrincipal) p;
+            ClassBucket bucket = classes.get( up.getClassName() );
+            if( bucket == null )
+            {
+                bucket = new ClassBucket();
+                classes.put( up.getClassName(), bucket );
+            }
+            if( rank == 2 )
+            {
+                bucket.anyName.set( grant );
+            }
+            else
+            {
+                bits( bucket.names, up.getName() ).set( grant );
+            }
+        }
+    }
+
+    private static BitSet bits( Map<String, BitSet> map, String key )
+    {
+        BitSet bits = map.get( key );
+        if( bits == null )
+        {
+            bits = new BitSet();
+            map.put( key, bits );
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the grants that may imply the Principal's of a domain.
+     *
+     * @param domain the ProtectionDomain, may be null.
+     *
+     * @return a new BitSet, with bits set for the index of each candidate grant.
+     */
+    public BitSet candidates( ProtectionDomain domain )
+    {
+        return candidates( domain != null ? PrincipalGrant.getPrincipals( domain ) : null );
+    }
+
+    /**
+     * Returns the grants that may imply the Principal's.
+     *
+     * @param principals the Principal's, may be null.
+     *
+     * @return a new BitSet, with bits set for the index of each candidate grant.
+     */
+    public BitSet candidates( Principal[] principals )
+    {
+        BitSet result = new BitSet( size );
+        result.or( unindexed );
+        if( principals == null )
+        {
+            return result;
+        }
+        for( Principal p : principals )
+        {
+            if( p == null )
+            {
+                continue;
+            }
+            result.or( anyPrincipal );
+            // An UnresolvedPrincipal equals another with the same class name.
+            String className = p instanceof UnresolvedPrincipal
+                               ? ( (UnresolvedPrincipal) p ).getClassName()
+                               : p.getClass().getName();
+            ClassBucket bucket = classes.get( className );
+            if( bucket != null )
+            {
+                result.or( bucket.anyName );
+                BitSet named = bucket.names.get( p.getName() );
+                if( named != null )
+                {
+                    result.or( named );
+                }
+            }
+            if( p instanceof X500Principal )
+            {
+                BitSet named = x500Names.get( ( (X500Principal) p ).getName( X500Principal.CANONICAL ) );
+                if( named != null )
+                {
+                    result.or( named );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Grants naming Principal's of one class, by name, the name may be null.
+     */
+    private static final class ClassBucket
+    {
+        private final Map<String, BitSet> names = new HashMap<String, BitSet>();
+        private final BitSet anyName = new BitSet();
+    }
+}
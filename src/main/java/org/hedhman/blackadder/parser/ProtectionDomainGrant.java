@@ -192,6 +192,10 @@ class ProtectionDomainGrant extends PrincipalGrant
         {
             return false; // Null cs indicates system domain, does not imply.
         }
+        if( codeSource == null )
+        {
+            return false;
+        }
         // Most won't get to here, since domain combiners shouldn't duplicate CodeSource.
         // But just in case...
         // Don't use CodeSource.equals() because that causes DNS Lookup.
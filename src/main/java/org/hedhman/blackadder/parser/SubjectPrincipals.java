@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.hedhman.blackadder.parser;
+
+import java.lang.ref.ReferenceQueue;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.security.auth.Subject;
+
+/**
+ * Snapshots of the Principal's of the Subject of a SubjectDomain, whose
+ * Principal's may change while the domain is in use.
+ *
+ * A Subject's Principal set is synchronized on itself, as are its
+ * modifications, so a snapshot is copied holding that lock, which is never
+ * held for longer than a modification takes.  Snapshots are cached weakly
+ * per Subject.  The Principal's of a read only Subject can't change, so its
+ * snapshot is reused as is, any other Subject's snapshot is reused only
+ * while its Principal set still contains the same Principal's, in the same
+ * order.
+ *
+ * A snapshot may be pinned to a thread for the duration of an evaluation, so
+ * every grant evaluated for the domain sees the same Principal's.
+ */
+public final class SubjectPrincipals
+{
+    private static final ConcurrentMap<WeakIdentity, Snapshot> snapshots =
+        new ConcurrentHashMap<WeakIdentity, Snapshot>();
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private static final ThreadLocal<Pin> pinned = new ThreadLocal<Pin>();
+
+    private SubjectPrincipals()
+    {
+    }
+
+    /**
+     * Returns the Principal's of a domain, for a SubjectDomain those of its
+     * Subject, as pinned to the calling thread or currently.
+     *
+     * @param domain the domain, not null.
+     *
+     * @return the Principal's, the array must not be modified.
+     */
+    public static Principal[] of( ProtectionDomain domain )
+    {
+        if( !( domain instanceof SubjectDomain ) )
+        {
+            return domain.getPrincipals();
+        }
+        for( Pin pin = pinned.get(); pin != null; pin = pin.previous )
+        {
+            if( pin.domain == domain )
+            {
+                return pin.principals;
+            }
+        }
+        return of( ( (SubjectDomain) domain ).getSubject() );
+    }
+
+    /**
+     * Pins the current Principal's of a SubjectDomain to the calling thread,
+     * until {@link #unpin(Pin)} is called with the returned value.
+     *
+     * @param domain the domain, may be null.
+     *
+     * @return the pin, or null if the domain isn't a SubjectDomain.
+     */
+    public static Pin pin( ProtectionDomain domain )
+    {
+        if( !( domain instanceof SubjectDomain ) )
+        {
+            return null;
+        }
+        Pin pin = new Pin( domain, of( domain ), pinned.get() );
+        pinned.set( pin );
+        return pin;
+    }
+
+    /**
+     * @param pin returned by {@link #pin(ProtectionDomain)}, may be null.
+     */
+    public static void unpin( Pin pin )
+    {
+        if( pin == null )
+        {
+            return;
+        }
+        if( pin.previous == null )
+        {
+            pinned.remove();
+        }
+        else
+        {
+            pinned.set( pin.previous );
+        }
+    }
+
+    static Principal[] of( Subject subject )
+    {
+        Set<Principal> principals = subject.getPrincipals();
+        Snapshot snapshot = snapshots.get( new WeakIdentity( subject, null ) );
+        if( snapshot != null && snapshot.readOnly )
+        {
+            return snapshot.principals;
+        }
+        // Read before the Principal's, a Subject can't be made writable again.
+        boolean readOnly = subject.isReadOnly();
+        Principal[] result;
+        synchronized( principals )
+        {
+            if( snapshot != null && snapshot.matches( principals ) )
+            {
+                if( !readOnly )
+                {
+                    return snapshot.principals;
+                }
+                result = snapshot.principals;
+            }
+            else
+            {
+                result = principals.toArray( new Principal[ principals.size() ] );
+            }
+        }
+        expunge();
+        snapshots.put( new WeakIdentity( subject, queue ), new Snapshot( result, readOnly ) );
+        return result;
+    }
+
+    private static void expunge()
+    {
+        Object stale;
+        while( ( stale = queue.poll() ) != null )
+        {
+            snapshots.remove( stale );
+        }
+    }
+
+    /**
+     * Principal's pinned to a thread, for a domain.
+     */
+    public static final class Pin
+    {
+        private final ProtectionDomain domain;
+        private final Principal[] principals;
+        private final Pin previous;
+
+        private Pin( ProtectionDomain domain, Principal[] principals, Pin previous )
+        {
+            this.domain = domain;
+            this.principals = principals;
+            this.previous = previous;
+        }
+    }
+
+    private static final class Snapshot
+    {
+        private final Principal[] principals;
+        private final boolean readOnly;
+
+        private Snapshot( Principal[] principals, boolean readOnly )
+        {
+            this.principals = principals;
+            this.readOnly = readOnly;
+        }
+
+        // Called holding the Principal set's lock, compares in iteration
+        // order, a Subject's set is a list, contains would be linear.
+        private boolean matches( Set<Principal> current )
+        {
+            if( current.size() != principals.length )
+            {
+                return false;
+            }
+            Iterator<Principal> it = current.iterator();
+            for( Principal p : principals )
+            {
+                Principal c = it.next();
+                if( c != p && !p.equals( c ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -23,15 +23,14 @@ import java.io.ObjectInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.security.AccessController;
 import java.security.CodeSource;
 import java.security.Permission;
 import java.security.Principal;
-import java.security.PrivilegedActionException;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -41,6 +40,7 @@ class URIGrant extends CertificateGrant
 {
     private static final long serialVersionUID = 1L;
     private final Collection<URI> locations;
+    private final transient CodebaseMatcher[] matchers; // null matches any location.
     private final int hashCode;
 
     @SuppressWarnings("unchecked")
@@ -48,7 +48,7 @@ class URIGrant extends CertificateGrant
     {
         super( certs, pals, perm );
         int l = uriArray.length;
-        Collection<URI> uris = new ArrayList<URI>( l );
+        List<URI> uris = new ArrayList<URI>( l );
         for( URI uri : uriArray )
         {
             try
@@ -63,7 +63,13 @@ class URIGrant extends CertificateGrant
                 ex.printStackTrace( System.err );
             }
         }
-        locations = Collections.unmodifiableCollection( uris );
+        locations = Collections.unmodifiableList( uris );
+        matchers = new CodebaseMatcher[ uris.size() ];
+        for( int i = 0; i < matchers.length; i++ )
+        {
+            URI location = uris.get( i );
+            matchers[ i ] = location != null ? new CodebaseMatcher( location ) : null;
+        }
         int hash = 3;
         hash = 67 * hash + ( this.locations != null ? locations.hashCode() : 0 );
         hash = 67 * hash + ( super.hashCode() );
@@ -157,38 +163,31 @@ class URIGrant extends CertificateGrant
         {
             return false; // Null CodeSource is not implied.
         }
-        if( locations.isEmpty() )
+        if( !impliesCertificates( codeSource ) )
+        {
+            return false;
+        }
+        int l = matchers.length;
+        if( l == 0 )
         {
             return true; // But CodeSource with null URL is implied, if this location is empty.
         }
-        int l = locations.size();
-        URI[] uris = locations.toArray( new URI[ l ] );
         for( int i = 0; i < l; i++ )
         {
-            if( uris[ i ] == null )
+            if( matchers[ i ] == null )
             {
                 return true;
             }
         }
-        URL url = codeSource.getLocation();
-        if( url == null )
-        {
-            return false;
-        }
-        URI implied;
-        try
-        {
-            implied = AccessController.doPrivileged( new NormaliseURLAction( url ) );
-        }
-        catch( PrivilegedActionException ex )
+        // Normalised once per CodeSource.
+        URI implied = DomainKey.of( codeSource ).getLocation();
+        if( implied == null )
         {
-            Exception cause = ex.getException();
-            cause.printStackTrace( System.err );
             return false;
         }
         for( int i = 0; i < l; i++ )
         {
-            if( implies( uris[ i ], implied ) )
+            if( matchers[ i ].matches( implied ) )
             {
                 return true;
             }
@@ -196,302 +195,100 @@ class URIGrant extends CertificateGrant
         return false;
     }
 
-    /* This section of code was copied from Apache Harmony's CodeSource
-     * SVN Revision 929252
-     * 
-     * 
-     * Indicates whether the specified code source is implied by this {@code
-     * URI}. Returns {@code true} if all of the following conditions are
-     * {@code true}, otherwise {@code false}:
-     * <p>
-     * <ul>
-     * <li>{@code cs} is not {@code null}
-     * <li>if this {@code CodeSource}'s location is not {@code null}, the
-     * following conditions are checked
-     * <ul>
-     * <li>this {@code CodeSource}'s location is not {@code null}
-     * <li>this {@code CodeSource}'s location protocol is equal to {@code cs}'s
-     * location protocol
-     * <li>if this {@code CodeSource}'s location host is not {@code null}, the
-     * following conditions are checked
-     * <ul>
-     * <li>{@code cs}'s host is not {@code null}
-     * <li>the wildcard or partial wildcard of this {@code URI}'s
-     * host matches {@code cs}'s location host.
-     * </ul>
-     * <li>if this {@code CodeSource}'s location port != -1 the port of {@code
-     * cs}'s location is equal to this {@code CodeSource}'s location port
-     * <li>this {@code CodeSource}'s location file matches {@code cs}'s file
-     * whereas special wildcard matching applies as described below
-     * <li>this {@code CodeSource}'s location reference is equal to to {@code
-     * cs}'s location reference
-     * </ul>
-     * </ul>
-     * <p>
-     * Note: If this {@code CodeSource} has a {@code null} location,
-     * this method returns {@code true}.
-     * <p>
-     * Matching rules for the {@code CodeSource}'s location file:
-     * <ul>
-     * <li>if this {@code CodeSource}'s location file ends with {@code "/-"},
-     * then {@code cs}'s file must start with {@code CodeSource}'s location file
-     * (exclusive the trailing '-')
-     * <li>if this {@code CodeSource}'s location file ends with {@code "/*"},
-     * then {@code cs}'s file must start with {@code CodeSource}'s location file
-     * (exclusive the trailing '*') and must not have any further '/'
-     * <li>if this {@code CodeSource}'s location file ends with {@code "/"},
-     * then {@code cs}'s file must start with {@code CodeSource}'s location file
-     * <li>if this {@code CodeSource}'s location file does not end with {@code
-     * "/"}, then {@code cs}'s file must start with {@code CodeSource}'s
-     * location file with the '/' appended to it.
-     * </ul>
-     * Examples for locations that imply the location
-     * "http://harmony.apache.org/milestones/M9/apache-harmony.jar":
-     *
-     * <pre>
-     * http:
-     * http://&#42;/milestones/M9/*
-     * http://*.apache.org/milestones/M9/*
-     * http://harmony.apache.org/milestones/-
-     * http://harmony.apache.org/milestones/M9/apache-harmony.jar
-     * </pre>
-     *
-     * @param cs
-     *            the code source to check.
-     * @return {@code true} if the argument code source is implied by this
-     *         {@code CodeSource}, otherwise {@code false}.
+    /**
+     * Indicates whether the specified location is implied by the grant
+     * location, by the rules of CodebaseMatcher, a null grant location
+     * implies any location.
      */
     final boolean implies( URI grant, URI implied )
     { // package private for junit
-        //
-        // Here, javadoc:N refers to the appropriate item in the API spec for 
-        // the CodeSource.implies()
-        // The info was taken from the 1.5 final API spec
-
-        // javadoc:1
-//        if (cs == null) {
-//            return false;
-//        }
-
-        /* Certificates can safely be ignored, they're checked by CertificateGrant */
-
-        // javadoc:2
-        // with a comment: the javadoc says only about certificates and does 
-        // not explicitly mention CodeSigners' certs.
-        // It seems more convenient to use getCerts() to get the real 
-        // certificates - with a certificates got form the signers
-//        Certificate[] thizCerts = getCertificatesNoClone();
-//        if (thizCerts != null) {
-//            Certificate[] thatCerts = cs.getCertificatesNoClone();
-//            if (thatCerts == null
-//                    || !PolicyUtils.matchSubset(thizCerts, thatCerts)) {
-//                return false;
-//            }
-//        }
+        return grant == null || new CodebaseMatcher( grant ).matches( implied );
+    }
 
-        // javadoc:3
-        if( grant != null )
+    /**
+     * Returns the host of a URI, including hosts of registry based
+     * authorities, such as wildcard hosts "*.apache.org", which
+     * java.net.URI doesn't recognise as a host.
+     *
+     * @return the host, or null if the URI has no authority.
+     */
+    static String hostOf( URI uri )
+    {
+        String host = uri.getHost();
+        if( host != null )
         {
+            return host;
+        }
+        String authority = uri.getAuthority();
+        if( authority == null )
+        {
+            return null;
+        }
+        int at = authority.lastIndexOf( '@' );
+        if( at >= 0 )
+        {
+            authority = authority.substring( at + 1 );
+        }
+        int colon = portSeparator( authority );
+        return colon >= 0 ? authority.substring( 0, colon ) : authority;
+    }
 
-            //javadoc:3.1
-//            URL otherURL = cs.getLocation();
-//            if ( otherURL == null) {
-//                return false;
-//            }
-//            URI otherURI;
-//            try {
-//                otherURI = otherURL.toURI();
-//            } catch (URISyntaxException ex) {
-//                return false;
-//            }
-            //javadoc:3.2
-            if( grant.equals( implied ) )
-            {
-                return true;
-            }
-            //javadoc:3.3
-            if( !grant.getScheme().equals( implied.getScheme() ) )
-            {
-                return false;
-            }
-            //javadoc:3.4
-            String thisHost = grant.getHost();
-            if( thisHost != null )
-            {
-                String thatHost = implied.getHost();
-                if( thatHost == null )
-                {
-                    return false;
-                }
-
-                // 1. According to the spec, an empty string will be considered 
-                // as "localhost" in the SocketPermission
-                // 2. 'file://' URLs will have an empty getHost()
-                // so, let's make a special processing of localhost-s, I do 
-                // believe this'll improve performance of file:// code sources 
-
-                //
-                // Don't have to evaluate both the boolean-s each time.
-                // It's better to evaluate them directly under if() statement.
-                // 
-                // boolean thisIsLocalHost = thisHost.length() == 0 || "localhost".equals(thisHost);
-                // boolean thatIsLocalHost = thatHost.length() == 0 || "localhost".equals(thatHost);
-                // 
-                // if( !(thisIsLocalHost && thatIsLocalHost) &&
-                // !thisHost.equals(thatHost)) {
-
-                if( !( ( thisHost.length() == 0
-                         || "localhost".equals( thisHost ) )
-                       && ( thatHost.length() == 0 || "localhost".equals( thatHost ) ) )
-                    && !thisHost.equals( thatHost ) )
-                {
-
-                    // Do wildcard matching here to replace SocketPermission functionality.
-                    // This section was copied from Apache Harmony SocketPermission
-                    boolean hostNameMatches = false;
-                    boolean isPartialWild = ( thisHost.charAt( 0 ) == '*' );
-                    if( isPartialWild )
-                    {
-                        boolean isWild = ( thisHost.length() == 1 );
-                        if( isWild )
-                        {
-                            hostNameMatches = true;
-                        }
-                        else
-                        {
-                            // Check if thisHost matches the end of thatHost after the wildcard
-                            int length = thisHost.length() - 1;
-                            hostNameMatches = thatHost.regionMatches( thatHost.length() - length, thisHost, 1, length );
-                        }
-                    }
-                    if( !hostNameMatches )
-                    {
-                        return false; // else continue.
-                    }
-                    
-                    /* Don't want to try resolving URIGrant, it either has a
-                     * matching host or it doesn't.
-                     * 
-                     * The following section is for resolving hosts, it is
-                     * not relevant here, but has been preserved for information
-                     * purposes only.
-                     * 
-                     * Not only is it expensive to perform DNS resolution, hence
-                     * the creation of URIGrant, but a CodeSource.implies
-                     * may also require another SocketPermission which may 
-                     * cause the policy to get stuck in an endless loop, since it
-                     * doesn't perform the implies in priviledged mode, it might
-                     * also allow an attacker to substitute one codebase for
-                     * another using a dns cache poisioning attack.  In any case
-                     * the DNS cannot be assumed trustworthy enough to supply
-                     * the policy with information at this level. The implications
-                     * are greater than the threat posed by SocketPermission
-                     * which simply allows a network connection, as this may
-                     * apply to any Permission, even AllPermission.
-                     * 
-                     * Typically the URI of the codebase will be a match for
-                     * the codebase annotation string that is stored as a URL
-                     * in CodeSource, then converted to a URI for comparison.
-                     */
-
-                    // Obvious, but very slow way....
-                    // 
-                    // SocketPermission thisPerm = new SocketPermission(
-                    //          this.location.getHost(), "resolve");
-                    // SocketPermission thatPerm = new SocketPermission(
-                    //          cs.location.getHost(), "resolve");
-                    // if (!thisPerm.implies(thatPerm)) { 
-                    //      return false;
-                    // }
-                    //
-                    // let's cache it: 
-
-//                    if (this.sp == null) {
-//                        this.sp = new SocketPermission(thisHost, "resolve");
-//                    }
-//
-//                    if (cs.sp == null) {
-//                        cs.sp = new SocketPermission(thatHost, "resolve");
-//                    } 
-//
-//                    if (!this.sp.implies(cs.sp)) {
-//                        return false;
-//                    }
-
-                } // if( ! this.location.getHost().equals(cs.location.getHost())
-            } // if (this.location.getHost() != null)
-
-            //javadoc:3.5
-            if( grant.getPort() != -1 )
-            {
-                if( grant.getPort() != implied.getPort() )
-                {
-                    return false;
-                }
-            }
-
-            //javadoc:3.6
-            // compatbility with URL.getFile
-            String thisFile = grant.getPath();
-            String thatFile = implied.getPath();
-            if( thatFile == null || thisFile == null )
-            {
-                return false;
-            }
-            if( thisFile.endsWith( "/-" ) )
-            { //javadoc:3.6."/-"
-                if( !thatFile.startsWith( thisFile.substring( 0, thisFile.length() - 2 ) ) )
-                {
-                    return false;
-                }
-            }
-            else if( thisFile.endsWith( "/*" ) )
-            { //javadoc:3.6."/*"
-                if( !thatFile.startsWith( thisFile.substring( 0, thisFile.length() - 2 ) ) )
-                {
-                    return false;
-                }
-                // no further separators(s) allowed
-                if( thatFile.indexOf( "/", thisFile.length() - 1 ) != -1 )
-                {
-                    return false;
-                }
-            }
-            else
-            {
-                // javadoc:3.6."/"
-                if( !thisFile.equals( thatFile ) )
-                {
-                    if( !thisFile.endsWith( "/" ) )
-                    {
-                        if( !thatFile.equals( thisFile + "/" ) )
-                        {
-                            return false;
-                        }
-                    }
-                    else
-                    {
-                        return false;
-                    }
-                }
-            }
+    /**
+     * Returns the port of a URI, including ports of registry based authorities.
+     *
+     * @return the port or -1 if undefined.
+     */
+    static int portOf( URI uri )
+    {
+        if( uri.getHost() != null )
+        {
+            return uri.getPort();
+        }
+        String authority = uri.getAuthority();
+        if( authority == null )
+        {
+            return -1;
+        }
+        int colon = portSeparator( authority );
+        if( colon < 0 || colon == authority.length() - 1 )
+        {
+            return -1;
+        }
+        try
+        {
+            return Integer.parseInt( authority.substring( colon + 1 ) );
+        }
+        catch( NumberFormatException ex )
+        {
+            return -1;
+        }
+    }
 
-            //javadoc:3.7
-            // A URL Anchor is a URI Fragment.
-            if( grant.getFragment() != null )
+    // Index of the colon separating a numeric port, or -1.
+    private static int portSeparator( String authority )
+    {
+        int colon = authority.lastIndexOf( ':' );
+        if( colon < 0 || colon < authority.lastIndexOf( ']' ) || colon < authority.lastIndexOf( '@' ) )
+        {
+            return -1;
+        }
+        for( int i = colon + 1, l = authority.length(); i < l; i++ )
+        {
+            char c = authority.charAt( i );
+            if( c < '0' || c > '9' )
             {
-                if( !grant.getFragment().equals( implied.getFragment() ) )
-                {
-                    return false;
-                }
+                return -1;
             }
-            // ok, every check was made, and they all were successful. 
-            // it's ok to return true.
-        } // if this.location != null
+        }
+        return colon;
+    }
 
-        // javadoc: a note about CodeSource with null location and null Certs 
-        // is applicable here 
-        return true;
+    /**
+     * @return the normalised locations of this grant, which may contain null.
+     */
+    Collection<URI> getLocations()
+    {
+        return locations;
     }
 
     @Override
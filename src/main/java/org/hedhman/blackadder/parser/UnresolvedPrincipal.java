@@ -80,7 +80,6 @@ final class UnresolvedPrincipal implements Principal
      * Returns fully qualified class name of a modeled Principal,
      * or wildcard if any class is acceptable.
      */
-    @SuppressWarnings( "UnusedDeclaration" )
     public String getClassName()
     {
         return klass;
@@ -20,8 +20,6 @@ package org.hedhman.blackadder.parser;
 import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Utility that escapes illegal characters in URI strings according to RFC3986
@@ -39,7 +37,16 @@ public class UriString
     {
     }
 
-    private final static Map<String, Character> unreserved = new HashMap<String, Character>( 66 ); // To be unescaped during normalisation.
+    // Character classes of US-ASCII characters.
+    private static final byte LOWALPHA = 1;
+    private static final byte UPALPHA = 2;
+    private static final byte NUMERIC = 4;
+    private static final byte SCHEME_EX = 8;
+    private static final byte LEGAL = 16; // Reserved or unreserved.
+    private static final byte[] classes = new byte[ 128 ];
+
+    // Characters escapes are decoded to during normalisation, by octet, 0 if not decoded.
+    private static final char[] unreserved = new char[ 256 ];
 
     /* 2.1.  Percent-Encoding
      * 
@@ -101,33 +108,59 @@ public class UriString
     {
         processLatin();
         processUnreserved();
+        classify( lowalpha, LOWALPHA | LEGAL );
+        classify( upalpha, UPALPHA | LEGAL );
+        classify( numeric, NUMERIC | LEGAL );
+        classify( unres_punct, LEGAL );
+        classify( gen_delims, LEGAL );
+        classify( sub_delims, LEGAL );
+        classify( schemeEx, SCHEME_EX );
     }
 
-    private static void processUnreserved()
+    private static void classify( char[] chars, int cls )
     {
-        int l = lowalpha.length;
-        for( int i = 0; i < l; i++ )
-        {
-            int n = index( latin, lowalpha[ i ] );
-            unreserved.put( latinEsc[ i ], lowalpha[ i ] );
-        }
-        l = upalpha.length;
-        for( int i = 0; i < l; i++ )
+        for( char c : chars )
         {
-            int n = index( latin, upalpha[ i ] );
-            unreserved.put( latinEsc[ i ], upalpha[ i ] );
+            classes[ c ] |= cls;
         }
-        l = numeric.length;
-        for( int i = 0; i < l; i++ )
-        {
-            int n = index( latin, numeric[ i ] );
-            unreserved.put( latinEsc[ i ], numeric[ i ] );
-        }
-        l = unres_punct.length;
+    }
+
+    private static boolean is( char c, int cls )
+    {
+        return c < 128 && ( classes[ c ] & cls ) != 0;
+    }
+
+    /**
+     * @return the octet of two hexadecimal digits, of either case, or -1.
+     */
+    private static int octet( char high, char low )
+    {
+        int h = Character.digit( high, 16 );
+        int l = Character.digit( low, 16 );
+        return h < 0 || l < 0 || high > 'f' || low > 'f' ? -1 : h << 4 | l;
+    }
+
+    /*
+     * Escapes have always been indexed by each character's position in its
+     * set, rather than by its octet, so %01 to %19 are decoded to the wrong
+     * characters and %2D, the escape at index 0, to '-', other unreserved
+     * characters aren't decoded.  Policies compare normalised URIs, which
+     * mustn't change, so the mapping is kept.
+     */
+    private static void processUnreserved()
+    {
+        unreserved( lowalpha );
+        unreserved( upalpha );
+        unreserved( numeric );
+        unreserved( unres_punct );
+    }
+
+    private static void unreserved( char[] chars )
+    {
+        int l = chars.length;
         for( int i = 0; i < l; i++ )
         {
-            int n = index( latin, unres_punct[ i ] );
-            unreserved.put( latinEsc[ i ], unres_punct[ i ] );
+            unreserved[ octet( latinEsc[ i ].charAt( 1 ), latinEsc[ i ].charAt( 2 ) ) ] = chars[ i ];
         }
     }
 
@@ -163,50 +196,39 @@ public class UriString
         {
             return null;
         }
-        char[] chars = str.toCharArray();
-        int len = chars.length;
-        StringBuilder sb = new StringBuilder( len + 12 );
-        boolean esc = false;
-        for( char ch : chars )
+        int len = str.length();
+        StringBuilder sb = null;
+        for( int i = 0; i < len; i++ )
         {
-            if( ch == escape )
+            char ch = str.charAt( i );
+            /*  Section 2.4
+             * Because the percent ("%") character serves as the indicator for
+             * percent-encoded octets, it must be percent-encoded as "%25" for that
+             * octet to be used as data within a URI.  Implementations must not
+             * percent-encode or decode the same string more than once, as decoding
+             * an already decoded string might lead to misinterpreting a percent
+             * data octet as the beginning of a percent-encoding, or vice versa in
+             * the case of percent-encoding an already percent-encoded string.
+             */
+            if( ch == escape || is( ch, LEGAL ) )
             {
-                /*  Section 2.4
-                 * Because the percent ("%") character serves as the indicator for
-                 * percent-encoded octets, it must be percent-encoded as "%25" for that
-                 * octet to be used as data within a URI.  Implementations must not
-                 * percent-encode or decode the same string more than once, as decoding
-                 * an already decoded string might lead to misinterpreting a percent
-                 * data octet as the beginning of a percent-encoding, or vice versa in
-                 * the case of percent-encoding an already percent-encoded string.
-                 */
-                sb.append( ch );
+                if( sb != null )
+                {
+                    sb.append( ch );
+                }
+                continue;
             }
-            else if( index( gen_delims, ch ) != -1
-                     || index( sub_delims, ch ) != -1
-                     || index( lowalpha, ch ) != -1
-                     || index( upalpha, ch ) != -1
-                     || index( numeric, ch ) != -1
-                     || index( unres_punct, ch ) != -1 )
+            if( ch >= latinEsc.length )
             {
-                sb.append( ch );
+                throw new URISyntaxException( str, "String contains unescapable character" );
             }
-            else
+            if( sb == null )
             {
-                int n = index( latin, ch );
-                if( n < 0 )
-                {
-                    throw new URISyntaxException( str, "String contains unescapable character" );
-                }
-                sb.append( latinEsc[ n ] );
-                esc = true;
+                sb = new StringBuilder( len + 12 ).append( str, 0, i );
             }
+            sb.append( latinEsc[ ch ] );
         }
-        if( !esc )
-        {
-            return str;
-        }
-        return sb.toString();
+        return sb == null ? str : sb.toString();
     }
 
     /**
@@ -341,7 +363,6 @@ public class UriString
         // Use URI normailze to remove path dot segments etc.
         uri = uri.normalize();
         String scheme = uri.getScheme();
-        char[] esc = new char[ 3 ]; // container for escape character string.
         /* Section 3.1 Scheme
          * Each URI begins with a scheme name that refers to a specification for
          * assigning identifiers within that scheme.  As such, the URI syntax is
@@ -380,13 +401,10 @@ public class UriString
         if( scheme != null )
         {
             scheme = scheme.toLowerCase();
-            char[] scm = scheme.toCharArray();
-            int l = scm.length;
+            int l = scheme.length();
             for( int i = 0; i < l; i++ )
             {
-                if( index( lowalpha, scm[ i ] ) < 0 &&
-                    index( numeric, scm[ i ] ) < 0 &&
-                    index( schemeEx, scm[ i ] ) < 0 )
+                if( !is( scheme.charAt( i ), LOWALPHA | NUMERIC | SCHEME_EX ) )
                 {
                     throw new URISyntaxException( scheme, "Scheme contains illegal character at index " + i );
                 }
@@ -429,65 +447,7 @@ public class UriString
         if( host != null )
         {
 
-            char[] hos = host.toCharArray();
-            int l = hos.length;
-            StringBuilder sb = new StringBuilder( l + 12 );
-            int escIndex = -1;
-            for( int i = 0; i < l; i++ )
-            {
-                /* First check if escape is an unreserved character, if so
-                 * decode it, otherwise, change escape sequence to upper case.
-                 */
-                if( hos[ i ] == escape )
-                {
-                    // Although java.net.URI prohibits escape characters in
-                    // host, it may change in future if updated for compliance.
-                    esc[ 0 ] = hos[ i ];
-                    esc[ 1 ] = hos[ i + 1 ];
-                    esc[ 2 ] = hos[ i + 2 ];
-                    String e = new String( esc ).toUpperCase();
-                    Character c = unreserved.get( e );
-                    if( c != null )
-                    {
-                        sb.append( c );
-                        i = i + 2;
-                        continue;
-                    }
-                    sb.append( hos[ i ] );
-                    escIndex = i;
-                    continue;
-                }
-                if( escIndex > 0 && i > escIndex && i < escIndex + 3 )
-                {
-                    if( index( numeric, hos[ i ] ) > 0 )
-                    {
-                        sb.append( hos[ i ] );
-                        continue;
-                    }
-                    if( index( upalpha, hos[ i ] ) > 0 )
-                    {
-                        sb.append( hos[ i ] );
-                        continue;
-                    }
-                    int n = index( lowalpha, hos[ i ] );
-                    if( n > 0 )
-                    {
-                        sb.append( upalpha[ n ] );
-                        continue;
-                    }
-                    throw new URISyntaxException( host, "host contains escaped sequence that has an illegal character at index " + i );
-                }
-                int n = index( upalpha, hos[ i ] );
-                if( n > 0 )
-                {
-                    sb.append( lowalpha[ n ] );
-                    continue;
-                }
-                // Since this is normalisation of an existing URI, lets assume
-                // character is legal.
-                sb.append( hos[ i ] );
-            }
-            host = sb.toString();
+            host = normaliseComponent( host, "host", true );
         }
         /* Section 3.3.  Path
          * 
@@ -517,63 +477,92 @@ public class UriString
                 }
             }
             // REMIND: Check for relative path and make sure the first path segment doesn't contain ":"
-            char[] pth = path.toCharArray();
-            int l = pth.length;
-            StringBuilder sb = new StringBuilder( l );
-            int escIndex = -1;
-            for( int i = 0; i < l; i++ )
+            path = normaliseComponent( path, "path", false );
+        }
+        // TODO: query and fragment normalisation.
+
+        if( host == null && authority != null )
+        {
+            /* Registry based authority, java.net.URI doesn't parse a host
+             * containing a wildcard such as "*.apache.org", it must be
+             * preserved, otherwise the URI would imply any host.
+             */
+            if( authority.indexOf( '@' ) < 0 )
             {
-                /* First check if escape is an unreserved character, if so
-                 * decode it, otherwise, change escape sequence to upper case.
-                 */
-                if( pth[ i ] == escape )
+                authority = authority.toLowerCase();
+            }
+            return new URI( scheme, authority, path, uri.getQuery(), uri.getFragment() );
+        }
+        return new URI( scheme, uri.getRawUserInfo(), host, uri.getPort(), path, uri.getQuery(), uri.getFragment() );
+    }
+
+    /**
+     * Decodes escapes of unreserved characters, upper cases the hexadecimal
+     * digits of other escapes and, for a host, lower cases letters.
+     *
+     * The first character of each set, '0', 'A' and 'a', has never been
+     * matched following an escape, or lower cased in a host, the results
+     * are kept as they were.
+     */
+    private static String normaliseComponent( String str, String component, boolean host )
+        throws URISyntaxException
+    {
+        int l = str.length();
+        StringBuilder sb = null;
+        int escIndex = -1;
+        for( int i = 0; i < l; i++ )
+        {
+            char c = str.charAt( i );
+            char n = c;
+            if( c == escape )
+            {
+                // Although java.net.URI prohibits escape characters in
+                // host, it may change in future if updated for compliance.
+                if( i + 2 >= l )
+                {
+                    throw new URISyntaxException( str, component + " contains incomplete escaped sequence at index " + i );
+                }
+                int octet = octet( str.charAt( i + 1 ), str.charAt( i + 2 ) );
+                char u = octet < 0 ? 0 : unreserved[ octet ];
+                if( u != 0 )
                 {
-                    // Although java.net.URI prohibits escape characters in
-                    // host, it may change in future if updated for compliance.
-                    esc[ 0 ] = pth[ i ];
-                    esc[ 1 ] = pth[ i + 1 ];
-                    esc[ 2 ] = pth[ i + 2 ];
-                    String e = new String( esc ).toUpperCase();
-                    Character c = unreserved.get( e );
-                    if( c != null )
-                    {
-                        sb.append( c );
-                        i = i + 2;
-                        continue;
-                    }
-                    sb.append( pth[ i ] );
-                    escIndex = i;
+                    sb = edit( sb, str, i );
+                    sb.append( u );
+                    i = i + 2;
                     continue;
                 }
-                if( escIndex > 0 && i > escIndex && i < escIndex + 3 )
+                escIndex = i;
+            }
+            else if( escIndex > 0 && i > escIndex && i < escIndex + 3 )
+            {
+                if( is( c, LOWALPHA ) && c != 'a' )
                 {
-                    if( index( numeric, pth[ i ] ) > 0 )
-                    {
-                        sb.append( pth[ i ] );
-                        continue;
-                    }
-                    if( index( upalpha, pth[ i ] ) > 0 )
-                    {
-                        sb.append( pth[ i ] );
-                        continue;
-                    }
-                    int n = index( lowalpha, pth[ i ] );
-                    if( n > 0 )
-                    {
-                        sb.append( upalpha[ n ] );
-                        continue;
-                    }
-                    throw new URISyntaxException( path, "path contains escaped sequence that has an illegal character at index " + i );
+                    n = Character.toUpperCase( c );
+                }
+                else if( !( is( c, NUMERIC ) && c != '0' ) && !( is( c, UPALPHA ) && c != 'A' ) )
+                {
+                    throw new URISyntaxException( str, component + " contains escaped sequence that has an illegal character at index " + i );
                 }
-                // Since this is normalisation of an existing URI, lets assume
-                // character is legal.
-                sb.append( pth[ i ] );
             }
-            path = sb.toString();
+            else if( host && is( c, UPALPHA ) && c != 'A' )
+            {
+                n = Character.toLowerCase( c );
+            }
+            if( n != c )
+            {
+                sb = edit( sb, str, i );
+            }
+            if( sb != null )
+            {
+                sb.append( n );
+            }
         }
-        // TODO: query and fragment normalisation.
+        return sb == null ? str : sb.toString();
+    }
 
-        return new URI( scheme, uri.getRawUserInfo(), host, uri.getPort(), path, uri.getQuery(), uri.getFragment() );
+    private static StringBuilder edit( StringBuilder sb, String str, int i )
+    {
+        return sb != null ? sb : new StringBuilder( str.length() ).append( str, 0, i );
     }
 
     private static void processLatin()
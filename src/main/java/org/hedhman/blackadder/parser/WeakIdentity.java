@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.hedhman.blackadder.parser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Weak identity key, referents are compared by reference.  A key created
+ * without a queue is only for lookups.
+ */
+final class WeakIdentity extends WeakReference<Object>
+{
+    private final int hashCode;
+
+    WeakIdentity( Object referent, ReferenceQueue<Object> queue )
+    {
+        super( referent, queue );
+        hashCode = System.identityHashCode( referent );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if( o == this )
+        {
+            return true;
+        }
+        if( !( o instanceof WeakIdentity ) )
+        {
+            return false;
+        }
+        Object referent = get();
+        return referent != null && referent == ( (WeakIdentity) o ).get();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+}
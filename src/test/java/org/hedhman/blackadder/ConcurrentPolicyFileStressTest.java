@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.File;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls implies, getPermissions and getPermissionGrants from many threads,
+ * while the policy file is rewritten and refreshed, checking every decision
+ * is that of a policy version published during the call, and no older than
+ * any version the same thread has already observed.
+ *
+ * Version g of the policy grants the domain "always" and "gen.g" only, so
+ * each decision reveals the versions it may have been made against.
+ * Throughput and latency quantiles are reported for each number of threads;
+ * the duration of each run, in milliseconds, may be set with the
+ * org.hedhman.blackadder.stress.millis system property.
+ */
+public class ConcurrentPolicyFileStressTest
+{
+    private static final long MILLIS = Long.getLong( "org.hedhman.blackadder.stress.millis", 250L );
+
+    private static final RuntimePermission ALWAYS = new RuntimePermission( "always" );
+
+    @Test
+    public void testDecisionsConsistentWithRefresh()
+        throws Throwable
+    {
+        stress( null );
+    }
+
+    @Test
+    public void testCachedDecisionsConsistentWithRefresh()
+        throws Throwable
+    {
+        stress( "1024" );
+    }
+
+    private static void stress( String decisionCacheSize )
+        throws Throwable
+    {
+        int most = Math.max( 4, 2 * Runtime.getRuntime().availableProcessors() );
+        System.out.println( "Decision cache: " + ( decisionCacheSize != null ? decisionCacheSize : "off" ) );
+        System.out.println( "threads      ops/s   p50 ns   p99 ns p99.9 ns  versions" );
+        for( int threads = 1; threads <= most; threads <<= 1 )
+        {
+            Run run = new Run( threads, decisionCacheSize );
+            run.execute();
+            assertTrue( run.failures.toString(), run.failures.isEmpty() );
+            System.out.println( String.format( "%7d %10d %8d %8d %8d %9d", threads,
+                                               run.latency.count() * 1000L / MILLIS,
+                                               run.latency.quantile( 0.5 ),
+                                               run.latency.quantile( 0.99 ),
+                                               run.latency.quantile( 0.999 ),
+                                               run.completed ) );
+        }
+    }
+
+    private static String version( int g )
+    {
+        return "grant codebase \"file:/opt/app/-\" {\n"
+               + " permission java.lang.RuntimePermission \"always\";\n"
+               + " permission java.lang.RuntimePermission \"gen." + g + "\";\n"
+               + "};\n";
+    }
+
+    private static final class Run
+    {
+        private final int threads;
+        private final String decisionCacheSize;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        private final ProtectionDomain domain;
+        private File file;
+        private ConcurrentPolicyFile policy;
+        // Versions written to the file, and whose refresh has returned.
+        private volatile int started;
+        private volatile int completed;
+        private volatile boolean stop;
+
+        private Run( int threads, String decisionCacheSize )
+            throws Exception
+        {
+            this.threads = threads;
+            this.decisionCacheSize = decisionCacheSize;
+            domain = new ProtectionDomain(
+                new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        }
+
+        private void execute()
+            throws Exception
+        {
+            file = ConcurrentPolicyFileTest.writePolicy( null, version( 0 ) );
+            // Refresh reads the policy locations again, so they must remain set.
+            String[] keys = { "java.security.policy", ConcurrentPolicyFile.DECISION_CACHE_SIZE };
+            String[] old = { System.getProperty( keys[ 0 ] ), System.getProperty( keys[ 1 ] ) };
+            System.setProperty( keys[ 0 ], "=" + file.getAbsolutePath() );
+            if( decisionCacheSize != null )
+            {
+                System.setProperty( keys[ 1 ], decisionCacheSize );
+            }
+            try
+            {
+                policy = new ConcurrentPolicyFile();
+                race();
+            }
+            finally
+            {
+                for( int i = 0; i < keys.length; i++ )
+                {
+                    if( old[ i ] == null )
+                    {
+                        System.clearProperty( keys[ i ] );
+                    }
+                    else
+                    {
+                        System.setProperty( keys[ i ], old[ i ] );
+                    }
+                }
+            }
+        }
+
+        private void race()
+            throws InterruptedException
+        {
+            List<Thread> all = new ArrayList<Thread>();
+            final CountDownLatch go = new CountDownLatch( 1 );
+            all.add( new Thread( "writer" )
+            {
+                public void run()
+                {
+                    await( go );
+                    write();
+                }
+            } );
+            all.add( new Thread( "refresher" )
+            {
+                public void run()
+                {
+                    await( go );
+                    while( !stop )
+                    {
+                        policy.refresh();
+                    }
+                }
+            } );
+            for( int i = 0; i < threads; i++ )
+            {
+                final long seed = i;
+                all.add( new Thread( "reader-" + i )
+                {
+                    public void run()
+                    {
+                        await( go );
+                        read( new Random( seed ) );
+                    }
+                } );
+            }
+            for( Thread thread : all )
+            {
+                thread.setDaemon( true );
+                thread.start();
+            }
+            go.countDown();
+            Thread.sleep( MILLIS );
+            stop = true;
+            for( Thread thread : all )
+            {
+                thread.join();
+            }
+        }
+
+        private void await( CountDownLatch go )
+        {
+            try
+            {
+                go.await();
+            }
+            catch( InterruptedException e )
+            {
+                stop = true;
+            }
+        }
+
+        private void write()
+        {
+            File next = new File( file.getPath() + ".next" );
+            next.deleteOnExit();
+            try
+            {
+                while( !stop )
+                {
+                    int g = started + 1;
+                    // Replace the file whole, as refreshes may read it at any moment.
+                    ConcurrentPolicyFileTest.writePolicy( next, version( g ) );
+                    // The other refresher may load it as soon as it's renamed.
+                    started = g;
+                    if( !next.renameTo( file ) )
+                    {
+                        failures.add( "Couldn't replace " + file );
+                        return;
+                    }
+                    policy.refresh();
+                    completed = g;
+                }
+            }
+            catch( Exception e )
+            {
+                failures.add( e.toString() );
+            }
+        }
+
+        private void read( Random random )
+        {
+            int seen = 0;
+            for( int i = 0; !stop && failures.isEmpty(); i++ )
+            {
+                int lo = Math.max( completed, seen );
+                switch( i % 3 )
+                {
+                case 0:
+                    seen = checkImplies( random, lo, seen );
+                    break;
+                case 1:
+                    seen = checkVersion( "getPermissions", getPermissions( lo ), lo );
+                    break;
+                default:
+                    seen = checkVersion( "getPermissionGrants", getPermissionGrants(), lo );
+                }
+            }
+        }
+
+        private int checkImplies( Random random, int lo, int seen )
+        {
+            int hi = started + 1;
+            int g = Math.max( 0, lo - 1 + random.nextInt( hi - lo + 2 ) );
+            RuntimePermission permission = new RuntimePermission( "gen." + g );
+            long start = System.nanoTime();
+            boolean always = policy.implies( domain, ALWAYS );
+            boolean implied = policy.implies( domain, permission );
+            latency.record( ( System.nanoTime() - start ) / 2 );
+            int last = started;
+            if( !always )
+            {
+                failures.add( "\"always\" not implied" );
+            }
+            if( implied && ( g < lo || g > last ) )
+            {
+                failures.add( "gen." + g + " implied, outside versions " + lo + " to " + last );
+            }
+            if( !implied && g == lo && lo == last )
+            {
+                failures.add( "gen." + g + " not implied by the only version " + g );
+            }
+            return implied ? Math.max( seen, g ) : seen;
+        }
+
+        /**
+         * Checks permissions are those of exactly one version, from lo to
+         * the version started when they were obtained.
+         *
+         * @return the version.
+         */
+        private int checkVersion( String operation, Collection<Permission> permissions, int lo )
+        {
+            int last = started;
+            int version = -1;
+            boolean always = false;
+            for( Permission p : permissions )
+            {
+                String name = p.getName();
+                if( name.equals( "always" ) )
+                {
+                    always = true;
+                }
+                else if( version >= 0 )
+                {
+                    failures.add( operation + " of more than one version: gen." + version + " and " + name );
+                }
+                else
+                {
+                    version = Integer.parseInt( name.substring( "gen.".length() ) );
+                }
+            }
+            if( !always || version < lo || version > last )
+            {
+                failures.add( operation + " " + permissions + " outside versions " + lo + " to " + last );
+            }
+            return Math.max( version, lo );
+        }
+
+        /**
+         * @return the Permission's of the domain named "always" or "gen.g",
+         * for versions g from a little before lo to one more than started.
+         */
+        private Collection<Permission> getPermissions( int lo )
+        {
+            long start = System.nanoTime();
+            PermissionCollection pc = policy.getPermissions( domain );
+            latency.record( System.nanoTime() - start );
+            int hi = started + 1;
+            List<Permission> result = new ArrayList<Permission>();
+            if( pc.implies( ALWAYS ) )
+            {
+                result.add( ALWAYS );
+            }
+            for( int g = Math.max( 0, lo - 8 ); g <= hi; g++ )
+            {
+                RuntimePermission p = new RuntimePermission( "gen." + g );
+                if( pc.implies( p ) )
+                {
+                    result.add( p );
+                }
+            }
+            return result;
+        }
+
+        private Collection<Permission> getPermissionGrants()
+        {
+            long start = System.nanoTime();
+            Collection<PermissionGrant> grants = policy.getPermissionGrants( domain );
+            latency.record( System.nanoTime() - start );
+            List<Permission> result = new ArrayList<Permission>();
+            for( PermissionGrant grant : grants )
+            {
+                for( Permission p : grant.getPermissions() )
+                {
+                    // Ignore the policy's grants to all code.
+                    if( p instanceof RuntimePermission )
+                    {
+                        result.add( p );
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
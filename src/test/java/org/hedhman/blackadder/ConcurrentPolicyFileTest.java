@@ -1,12 +1,34 @@
 package org.hedhman.blackadder;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilePermission;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.security.AllPermission;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.ProtectionDomain;
 import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PropertyPermission;
 import java.util.Properties;
+import java.util.Set;
+import javax.management.ObjectName;
+import org.hedhman.blackadder.parser.DefaultPolicyParser;
+import org.hedhman.blackadder.parser.PermissionGrant;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class ConcurrentPolicyFileTest
 {
@@ -155,4 +177,643 @@ public class ConcurrentPolicyFileTest
             }
         }
     }
+
+    /**
+     * Tests that implies only consults Permission's of the class being checked,
+     * including UnresolvedPermission's and static Permission's of that class.
+     */
+    @Test
+    public void testImpliesIndexedByPermissionClass()
+        throws Throwable
+    {
+        ConcurrentPolicyFile policy = newPolicy(
+            "grant codebase \"file:/opt/app/-\" {\n"
+            + " permission java.io.FilePermission \"/tmp/-\", \"read\";\n"
+            + " permission java.lang.RuntimePermission \"exitVM\";\n"
+            + " permission java.net.SocketPermission \"localhost:1024-\", \"listen\";\n"
+            + "};\n"
+            + "grant codebase \"file:/opt/app/-\" {\n"
+            + " permission java.io.FilePermission \"/tmp/-\", \"write\";\n"
+            + " permission org.hedhman.blackadder.NotYetLoadedPermission \"foo\";\n"
+            + "};\n"
+            + "grant codebase \"file:/opt/other/-\" {\n"
+            + " permission java.lang.RuntimePermission \"setIO\";\n"
+            + " permission java.util.PropertyPermission \"java.*\", \"read\";\n"
+            + "};\n" );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        assertTrue( policy.implies( app, new FilePermission( "/tmp/foo", "read" ) ) );
+        // Implied by merging Permission's from two grants.
+        assertTrue( policy.implies( app, new FilePermission( "/tmp/foo", "read,write" ) ) );
+        assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+        assertFalse( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+        assertFalse( policy.implies( app, new FilePermission( "/etc/passwd", "read" ) ) );
+        assertFalse( policy.implies( app, new PropertyPermission( "user.home", "read" ) ) );
+
+        PermissionCollection staticPerms = new Permissions();
+        staticPerms.add( new FilePermission( "/tmp/-", "execute" ) );
+        staticPerms.add( new PropertyPermission( "user.home", "read" ) );
+        ProtectionDomain withStatic = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), staticPerms );
+        assertTrue( policy.implies( withStatic, new FilePermission( "/tmp/foo", "read,execute" ) ) );
+        assertTrue( policy.implies( withStatic, new PropertyPermission( "user.home", "read" ) ) );
+        assertFalse( policy.implies( withStatic, new PropertyPermission( "user.home", "write" ) ) );
+
+        PermissionCollection all = new Permissions();
+        all.add( new AllPermission() );
+        ProtectionDomain privileged = new ProtectionDomain( null, all );
+        assertTrue( policy.implies( privileged, new RuntimePermission( "setIO" ) ) );
+    }
+
+    /**
+     * Tests the optional decision cache is consulted, and invalidated by refresh.
+     */
+    @Test
+    public void testDecisionCache()
+        throws Throwable
+    {
+        final String KEY = "java.security.policy";
+        String old = System.getProperty( KEY );
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        System.setProperty( KEY, "=" + tmp.getAbsolutePath() );
+        System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, "100" );
+        try
+        {
+            ConcurrentPolicyFile policy = new ConcurrentPolicyFile();
+            ProtectionDomain app = new ProtectionDomain(
+                new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+            assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+            assertEquals( 0L, policy.getDecisionCacheHits() );
+            assertEquals( 1L, policy.getDecisionCacheMisses() );
+            assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+            assertFalse( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+            assertFalse( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+            assertEquals( 2L, policy.getDecisionCacheHits() );
+            assertEquals( 2L, policy.getDecisionCacheMisses() );
+
+            writePolicy( tmp, "grant codebase \"file:/opt/app/-\" {\n"
+                              + " permission java.lang.RuntimePermission \"setIO\";\n"
+                              + "};\n" );
+            policy.refresh();
+            assertFalse( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+            assertTrue( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+            assertEquals( 2L, policy.getDecisionCacheHits() );
+            assertEquals( 4L, policy.getDecisionCacheMisses() );
+        }
+        finally
+        {
+            System.clearProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+            if( old == null )
+            {
+                System.clearProperty( KEY );
+            }
+            else
+            {
+                System.setProperty( KEY, old );
+            }
+        }
+    }
+
+    @Test
+    public void testRefreshKeepsUnchangedGrants()
+        throws Throwable
+    {
+        final String KEY = "java.security.policy";
+        String old = System.getProperty( KEY );
+        String appGrant = "grant codebase \"file:/opt/app/-\" {\n"
+                          + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                          + "};\n";
+        File tmp = writePolicy( null, appGrant
+                                      + "grant codebase \"file:/opt/other/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"setIO\";\n"
+                                      + "};\n" );
+        System.setProperty( KEY, "=" + tmp.getAbsolutePath() );
+        System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, "100" );
+        try
+        {
+            ConcurrentPolicyFile policy = new ConcurrentPolicyFile();
+            ProtectionDomain app = new ProtectionDomain(
+                new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+            ProtectionDomain other = new ProtectionDomain(
+                new CodeSource( new URL( "file:/opt/other/lib/other.jar" ), (Certificate[]) null ), null );
+            assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+            assertTrue( policy.implies( other, new RuntimePermission( "setIO" ) ) );
+            PermissionGrant before = policy.getPermissionGrants( app ).iterator().next();
+            assertEquals( 2L, policy.getDecisionCacheMisses() );
+
+            writePolicy( tmp, appGrant
+                              + "grant codebase \"file:/opt/other/-\" {\n"
+                              + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                              + "};\n" );
+            policy.refresh();
+            assertSame( before, policy.getPermissionGrants( app ).iterator().next() );
+            assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+            assertEquals( 1L, policy.getDecisionCacheHits() );
+            assertFalse( policy.implies( other, new RuntimePermission( "setIO" ) ) );
+            assertTrue( policy.implies( other, new RuntimePermission( "exitVM" ) ) );
+            assertEquals( 1L, policy.getDecisionCacheHits() );
+            assertEquals( 4L, policy.getDecisionCacheMisses() );
+
+            policy.refresh(); // Unchanged.
+            assertTrue( policy.implies( other, new RuntimePermission( "exitVM" ) ) );
+            assertEquals( 2L, policy.getDecisionCacheHits() );
+        }
+        finally
+        {
+            System.clearProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+            if( old == null )
+            {
+                System.clearProperty( KEY );
+            }
+            else
+            {
+                System.setProperty( KEY, old );
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotEpoch()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        PolicySnapshot pinned = policy.getSnapshot();
+        assertEquals( pinned.getEpoch(), policy.getEpoch() );
+        policy.reload( Collections.singleton( tmp.toURI().toURL() ) ); // Unchanged.
+        assertSame( pinned, policy.getSnapshot() );
+
+        writePolicy( tmp, "grant codebase \"file:/opt/app/-\" {\n"
+                          + " permission java.lang.RuntimePermission \"setIO\";\n"
+                          + "};\n" );
+        policy.reload( Collections.singleton( tmp.toURI().toURL() ) );
+        assertTrue( policy.getEpoch() > pinned.getEpoch() );
+        assertTrue( pinned.implies( app, new RuntimePermission( "exitVM" ) ) );
+        assertFalse( pinned.implies( app, new RuntimePermission( "setIO" ) ) );
+        assertFalse( policy.getSnapshot().implies( app, new RuntimePermission( "exitVM" ) ) );
+        assertTrue( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+    }
+
+    @Test
+    public void testBatchImplies()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + " permission java.io.FilePermission \"/tmp/-\", \"read\";\n"
+                                      + "};\n"
+                                      + "grant {\n"
+                                      + " permission java.io.FilePermission \"/tmp/-\", \"write\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        Permissions statics = new Permissions();
+        statics.add( new PropertyPermission( "user.home", "read" ) );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), statics );
+        ProtectionDomain other = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/other/lib/other.jar" ), (Certificate[]) null ), null );
+        Permission[] permissions = {
+            new RuntimePermission( "exitVM" ),
+            new RuntimePermission( "setIO" ),
+            new FilePermission( "/tmp/x", "read,write" ),
+            new FilePermission( "/tmp/x", "write" ),
+            new FilePermission( "/etc/passwd", "read" ),
+            new PropertyPermission( "user.home", "read" ),
+            new RuntimePermission( "exitVM" )
+        };
+        for( ProtectionDomain domain : new ProtectionDomain[]{ app, other, null } )
+        {
+            boolean[] batch = policy.implies( domain, permissions );
+            assertEquals( permissions.length, batch.length );
+            for( int i = 0; i < permissions.length; i++ )
+            {
+                assertEquals( domain + " " + permissions[ i ], policy.implies( domain, permissions[ i ] ), batch[ i ] );
+            }
+        }
+        assertTrue( policy.implies( app, permissions )[ 2 ] );
+        assertFalse( policy.implies( other, permissions )[ 2 ] );
+    }
+
+    /**
+     * Tests the collections returned by getPermissions(ProtectionDomain) are
+     * new and mutable, as Policy.getPermissions specifies.
+     */
+    @Test
+    public void testGetPermissionsIsMutable()
+        throws Throwable
+    {
+        ConcurrentPolicyFile policy = newPolicy( "grant codebase \"file:/opt/app/-\" {\n"
+                                                 + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                                 + "};\n" );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        PermissionCollection pc = policy.getPermissions( app );
+        assertTrue( pc.implies( new RuntimePermission( "exitVM" ) ) );
+        pc.add( new RuntimePermission( "setIO" ) );
+        assertTrue( pc.implies( new RuntimePermission( "setIO" ) ) );
+        assertFalse( policy.getPermissions( app ).implies( new RuntimePermission( "setIO" ) ) );
+    }
+
+    /**
+     * Repeated instances in a batch each get their own decision, whether
+     * cached or not, with a cache that holds one decision at a time.
+     */
+    @Test
+    public void testBatchImpliesRepeatedInstances()
+        throws Throwable
+    {
+        String old = System.getProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+        System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, "1" );
+        ConcurrentPolicyFile policy;
+        try
+        {
+            policy = newPolicy( "grant codebase \"file:/opt/app/-\" {\n"
+                                + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                + "};\n" );
+        }
+        finally
+        {
+            if( old == null )
+            {
+                System.clearProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+            }
+            else
+            {
+                System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, old );
+            }
+        }
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        Permission granted = new RuntimePermission( "exitVM" );
+        Permission denied = new RuntimePermission( "setIO" );
+        Permission[] permissions = { granted, granted, denied, granted, denied, denied, granted };
+        boolean[] expected = { true, true, false, true, false, false, true };
+        for( int i = 0; i < 3; i++ )
+        {
+            assertTrue( Arrays.equals( expected, policy.implies( app, permissions ) ) );
+            assertTrue( policy.implies( app, granted ) );
+            assertFalse( policy.implies( app, denied ) );
+        }
+        assertTrue( policy.getDecisionCacheHits() > 0 );
+    }
+
+    @Test
+    public void testContextImplies()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + " permission java.lang.RuntimePermission \"setIO\";\n"
+                                      + "};\n"
+                                      + "grant codebase \"file:/opt/lib/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        Permissions statics = new Permissions();
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), (Certificate[]) null ), statics, null, null );
+        ProtectionDomain sameApp = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), (Certificate[]) null ), statics, null, null );
+        ProtectionDomain lib = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/lib/lib.jar" ), (Certificate[]) null ), statics, null, null );
+        assertTrue( DistinctDomains.isEquivalent( app, sameApp ) );
+        assertFalse( DistinctDomains.isEquivalent( app, lib ) );
+        assertFalse( DistinctDomains.isEquivalent( app, new ProtectionDomain( app.getCodeSource(), new Permissions() ) ) );
+        ProtectionDomain[] context = { app, null, lib, sameApp, app, lib };
+        assertTrue( policy.implies( context, new RuntimePermission( "exitVM" ) ) );
+        assertFalse( policy.implies( context, new RuntimePermission( "setIO" ) ) );
+        assertTrue( policy.implies( new ProtectionDomain[]{ app, sameApp, null }, new RuntimePermission( "setIO" ) ) );
+        assertTrue( policy.implies( new ProtectionDomain[ 0 ], new RuntimePermission( "setIO" ) ) );
+        PolicySnapshot snapshot = policy.getSnapshot();
+        assertTrue( snapshot.implies( context, new RuntimePermission( "exitVM" ) ) );
+        assertFalse( snapshot.implies( context, new RuntimePermission( "setIO" ) ) );
+    }
+
+    @Test
+    public void testMetrics()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        PolicyMetrics metrics = policy.recordMetrics();
+        assertSame( metrics, policy.recordMetrics() );
+        CodeSource cs = new CodeSource( new URL( "file:/opt/app/app.jar" ), (Certificate[]) null );
+        ProtectionDomain app = new ProtectionDomain( cs, null );
+        for( int i = 0; i < 10; i++ )
+        {
+            policy.implies( app, new RuntimePermission( "exitVM" ) );
+        }
+        policy.getPermissions( app );
+        policy.getPermissions( cs );
+        policy.getPermissionGrants( app );
+        policy.refresh();
+        assertEquals( 10, metrics.getImpliesCount() );
+        assertEquals( 1, metrics.getDomainPermissionsCount() );
+        assertEquals( 1, metrics.getCodeSourcePermissionsCount() );
+        assertEquals( 1, metrics.getPermissionGrantsCount() );
+        assertEquals( 1, metrics.getRefreshCount() );
+        assertEquals( 1, metrics.getGrantCount() );
+        assertTrue( metrics.getImpliesMeanNanos() > 0 );
+        assertTrue( metrics.getImpliesP99Nanos() > 0 );
+        long[] histogram = metrics.getImpliesHistogram();
+        assertEquals( metrics.getHistogramUpperBoundsNanos().length, histogram.length );
+        long sum = 0;
+        for( long n : histogram )
+        {
+            sum += n;
+        }
+        assertEquals( 10, sum );
+        metrics.register();
+        ObjectName name = metrics.getName();
+        metrics.register();
+        assertEquals( name, metrics.getName() );
+        Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(
+            new ObjectName( "org.hedhman.blackadder:type=ConcurrentPolicyFile,*" ), null );
+        assertTrue( names.contains( name ) );
+        PolicyMetrics other = newPolicy( tmp ).recordMetrics();
+        other.register();
+        assertFalse( name.equals( other.getName() ) );
+        metrics.unregister();
+        other.unregister();
+        assertNull( metrics.getName() );
+        assertFalse( ManagementFactory.getPlatformMBeanServer().isRegistered( name ) );
+    }
+
+    /**
+     * Tests the trace recorded for an implies event describes the evaluation
+     * that made the decision.
+     */
+    @Test
+    public void testImpliesTrace()
+        throws Throwable
+    {
+        PolicySnapshot snapshot = newPolicy( "grant codebase \"file:/opt/app/-\" {\n"
+                                             + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                             + "};\n"
+                                             + "grant codebase \"file:/opt/all/-\" {\n"
+                                             + " permission java.security.AllPermission;\n"
+                                             + "};\n" ).getSnapshot();
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        ProtectionDomain all = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/all/lib/all.jar" ), (Certificate[]) null ), null );
+        PolicyEvents.Trace trace = new PolicyEvents.Trace();
+        assertTrue( snapshot.implies( app, new RuntimePermission( "exitVM" ), trace ) );
+        assertEquals( 1, trace.grantsScanned );
+        assertFalse( trace.allPermission );
+        trace = new PolicyEvents.Trace();
+        assertTrue( snapshot.implies( all, new RuntimePermission( "exitVM" ), trace ) );
+        assertEquals( 0, trace.grantsScanned );
+        assertTrue( trace.allPermission );
+        assertFalse( trace.cached );
+    }
+
+    @Test
+    public void testFlightRecorderEventsOnlyWhileRecording()
+        throws Throwable
+    {
+        PolicyEvents events = PolicyEvents.get();
+        if( events == null )
+        {
+            return; // No Flight Recorder on this platform.
+        }
+        assertFalse( events.isRecording() );
+        assertFalse( events.sampleGrantMatch() );
+        Class<?> recordingClass = Class.forName( "jdk.jfr.Recording" );
+        Object recording = recordingClass.getDeclaredConstructor().newInstance();
+        recordingClass.getMethod( "start" ).invoke( recording );
+        try
+        {
+            assertTrue( events.isRecording() );
+        }
+        finally
+        {
+            recordingClass.getMethod( "close" ).invoke( recording );
+        }
+        assertFalse( events.isRecording() );
+    }
+
+    @Test
+    public void testWatchReloadsChangedFile()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        policy.startWatching( 50 );
+        try
+        {
+            writePolicy( tmp, "grant codebase \"file:/opt/app/-\" {\n"
+                              + " permission java.lang.RuntimePermission \"setIO\";\n"
+                              + "};\n" );
+            RuntimePermission setIO = new RuntimePermission( "setIO" );
+            long deadline = System.currentTimeMillis() + 30000;
+            while( !policy.implies( app, setIO ) && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 20 );
+            }
+            assertTrue( policy.implies( app, setIO ) );
+            assertFalse( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+        }
+        finally
+        {
+            policy.stopWatching();
+        }
+    }
+
+    @Test
+    public void testReloadKeepsGrantsOfUnparseableFile()
+        throws Throwable
+    {
+        File tmp = writePolicy( null, "grant codebase \"file:/opt/app/-\" {\n"
+                                      + " permission java.lang.RuntimePermission \"exitVM\";\n"
+                                      + "};\n" );
+        ConcurrentPolicyFile policy = newPolicy( tmp );
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        writePolicy( tmp, "grant codebase \"file:/opt/app/-\" {\n"
+                          + " permission java.lang.RuntimePermission \"setIO\"\n" );
+        URL location = tmp.toURI().toURL();
+        URL[] locations = policy.reload( Collections.singleton( location ) );
+        assertEquals( 1, locations.length );
+        assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+        writePolicy( tmp, "grant codebase \"file:/opt/app/-\" {\n"
+                          + " permission java.lang.RuntimePermission \"setIO\";\n"
+                          + "};\n" );
+        policy.reload( Collections.singleton( new URL( "file:/not/a/policy" ) ) );
+        assertTrue( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+        policy.reload( Collections.singleton( location ) );
+        assertFalse( policy.implies( app, new RuntimePermission( "exitVM" ) ) );
+        assertTrue( policy.implies( app, new RuntimePermission( "setIO" ) ) );
+    }
+
+    @Test
+    public void testImpliesDoesNotAllocate()
+        throws Throwable
+    {
+        assertImpliesDoesNotAllocate( null );
+    }
+
+    @Test
+    public void testCachedImpliesDoesNotAllocate()
+        throws Throwable
+    {
+        assertImpliesDoesNotAllocate( "1024" );
+    }
+
+    private static void assertImpliesDoesNotAllocate( String decisionCacheSize )
+        throws Throwable
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !( bean instanceof com.sun.management.ThreadMXBean ) )
+        {
+            return; // Allocation can't be measured on this platform.
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if( !threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled() )
+        {
+            return;
+        }
+        String old = System.getProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+        if( decisionCacheSize != null )
+        {
+            System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, decisionCacheSize );
+        }
+        ConcurrentPolicyFile policy;
+        try
+        {
+            policy = newPolicy(
+                "grant codebase \"file:/opt/app/-\" {\n"
+                + " permission java.lang.RuntimePermission \"getClassLoader\";\n"
+                + " permission java.util.PropertyPermission \"user.home\", \"read\";\n"
+                + "};\n"
+                + "grant {\n"
+                + " permission java.lang.RuntimePermission \"setIO\";\n"
+                + " permission java.util.PropertyPermission \"java.*\", \"read\";\n"
+                + "};\n" );
+        }
+        finally
+        {
+            if( old == null )
+            {
+                System.clearProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE );
+            }
+            else
+            {
+                System.setProperty( ConcurrentPolicyFile.DECISION_CACHE_SIZE, old );
+            }
+        }
+        ProtectionDomain app = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/lib/app.jar" ), (Certificate[]) null ), null );
+        RuntimePermission getClassLoader = new RuntimePermission( "getClassLoader" );
+        PropertyPermission userHome = new PropertyPermission( "user.home", "read" );
+        RuntimePermission setIO = new RuntimePermission( "setIO" );
+        PropertyPermission javaVersion = new PropertyPermission( "java.version", "read" );
+        int checks = 100000;
+        for( int i = 0; i < checks; i++ )
+        {
+            assertTrue( policy.implies( app, getClassLoader ) );
+            assertTrue( policy.implies( app, userHome ) );
+            assertTrue( policy.implies( app, setIO ) );
+            assertTrue( policy.implies( app, javaVersion ) );
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( threadId );
+        boolean result = true;
+        for( int i = 0; i < checks; i++ )
+        {
+            result &= policy.implies( app, getClassLoader );
+            result &= policy.implies( app, userHome );
+            result &= policy.implies( app, setIO );
+            result &= policy.implies( app, javaVersion );
+        }
+        long allocated = threads.getThreadAllocatedBytes( threadId ) - before;
+        assertTrue( result );
+        // Allow for the measurement itself, but not for a single object per check.
+        assertTrue( "allocated " + allocated + " bytes", allocated < checks );
+        assertEquals( decisionCacheSize != null, policy.getDecisionCacheHits() > 0 );
+    }
+
+    /**
+     * A generated policy of production size, mixing codebase, signedBy and
+     * principal grants with expansions and keystore aliases, grants each
+     * Workload its Permission and no other grant's.
+     */
+    @Test
+    public void testGeneratedPolicy()
+        throws Exception
+    {
+        int grants = 5000;
+        PolicyGenerator.Generated generated =
+            PolicyGenerator.generate( null, 42L, new PolicyGenerator.Profile().grants( grants ), 500 );
+        assertEquals( grants, new DefaultPolicyParser().parse( generated.getPolicy().toURI().toURL() ).size() );
+        ConcurrentPolicyFile policy = newPolicy( generated.getPolicy() );
+        for( PolicyGenerator.Workload workload : generated.getWorkloads() )
+        {
+            ProtectionDomain domain = workload.getDomain();
+            assertTrue( workload.getGranted().toString(), policy.implies( domain, workload.getGranted() ) );
+            assertFalse( policy.implies( domain, workload.getDenied() ) );
+        }
+    }
+
+    /**
+     * Creates a ConcurrentPolicyFile from the given policy file content,
+     * ignoring all other configured policy locations.
+     */
+    static ConcurrentPolicyFile newPolicy( String content )
+        throws Exception
+    {
+        return newPolicy( writePolicy( null, content ) );
+    }
+
+    /**
+     * Writes policy file content to the given file, or a new temporary file if null.
+     */
+    static File writePolicy( File file, String content )
+        throws Exception
+    {
+        if( file == null )
+        {
+            file = File.createTempFile( "blackadder", ".policy" );
+            file.deleteOnExit();
+        }
+        FileWriter out = new FileWriter( file );
+        out.write( content );
+        out.close();
+        return file;
+    }
+
+    static ConcurrentPolicyFile newPolicy( File policyFile )
+        throws Exception
+    {
+        final String KEY = "java.security.policy";
+        String old = System.getProperty( KEY );
+        System.setProperty( KEY, "=" + policyFile.getAbsolutePath() );
+        try
+        {
+            return new ConcurrentPolicyFile();
+        }
+        finally
+        {
+            if( old == null )
+            {
+                System.clearProperty( KEY );
+            }
+            else
+            {
+                System.setProperty( KEY, old );
+            }
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.FilePermission;
+import java.net.NetPermission;
+import java.net.SocketPermission;
+import java.security.AllPermission;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.SecurityPermission;
+import java.security.UnresolvedPermission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PropertyPermission;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImmutablePermissionCollectionTest
+{
+    private static final Permission[] GRANTED = {
+        new RuntimePermission( "exitVM" ),
+        new RuntimePermission( "accessClassInPackage.sun.*" ),
+        new RuntimePermission( "loadLibrary.a.b.*" ),
+        new RuntimePermission( "setIO" ),
+        new NetPermission( "*" ),
+        new PropertyPermission( "user.home", "read" ),
+        new PropertyPermission( "user.*", "write" ),
+        new PropertyPermission( "java.*", "read" ),
+        new PropertyPermission( "os.", "read,write" ),
+        new FilePermission( "/opt/app/-", "read" ),
+        new FilePermission( "/opt/app/data/*", "write" ),
+        new FilePermission( "/opt/app/data/*", "delete" ),
+        new FilePermission( "/tmp/x", "execute,readlink" ),
+        new SocketPermission( "127.0.0.1:1024-", "connect" ),
+        new SocketPermission( "127.0.0.1:8080", "listen" ),
+        new SocketPermission( "*.example.com:443", "connect" ),
+        new SocketPermission( "10.0.0.1", "accept" ),
+        new UnresolvedPermission( "java.security.SecurityPermission", "getPolicy", null, null )
+    };
+
+    private static final Permission[] CHECKED = {
+        new RuntimePermission( "exitVM" ),
+        new RuntimePermission( "exitVM.1" ),
+        new RuntimePermission( "exitVM.*" ),
+        new RuntimePermission( "accessClassInPackage.sun.misc" ),
+        new RuntimePermission( "accessClassInPackage.sun." ),
+        new RuntimePermission( "accessClassInPackage.sun" ),
+        new RuntimePermission( "accessClassInPackage.*" ),
+        new RuntimePermission( "loadLibrary.a.b.c.*" ),
+        new RuntimePermission( "loadLibrary.a.b." ),
+        new RuntimePermission( "loadLibrary.a.bc" ),
+        new RuntimePermission( "setIO" ),
+        new RuntimePermission( "setIO.x" ),
+        new RuntimePermission( "*" ),
+        new NetPermission( "setDefaultAuthenticator" ),
+        new PropertyPermission( "user.home", "read" ),
+        new PropertyPermission( "user.home", "read,write" ),
+        new PropertyPermission( "user.dir", "read,write" ),
+        new PropertyPermission( "user.", "write" ),
+        new PropertyPermission( "java.version", "read" ),
+        new PropertyPermission( "java.version", "write" ),
+        new PropertyPermission( "java.", "read" ),
+        new PropertyPermission( "java.*", "read" ),
+        new PropertyPermission( "os.", "write" ),
+        new PropertyPermission( "os.name", "read" ),
+        new FilePermission( "/opt/app/lib/a.jar", "read" ),
+        new FilePermission( "/opt/app/data/f", "read,write,delete" ),
+        new FilePermission( "/opt/app/data/f", "read,write,delete,execute" ),
+        new FilePermission( "/opt/app/data/sub/f", "write" ),
+        new FilePermission( "/tmp/x", "execute" ),
+        new FilePermission( "/tmp/x", "readlink,execute" ),
+        new FilePermission( "/tmp/y", "execute" ),
+        new SocketPermission( "127.0.0.1:8080", "connect,listen" ),
+        new SocketPermission( "127.0.0.1:8081", "connect,listen" ),
+        new SocketPermission( "127.0.0.1:80", "connect" ),
+        new SocketPermission( "127.0.0.1", "resolve" ),
+        new SocketPermission( "www.example.com:443", "connect" ),
+        new SocketPermission( "www.example.com:80", "connect" ),
+        new SocketPermission( "10.0.0.1:99", "accept" ),
+        new SocketPermission( "10.0.0.2:99", "accept" ),
+        new SecurityPermission( "getPolicy" ),
+        new SecurityPermission( "setPolicy" )
+    };
+
+    @Test
+    public void testImpliesLikePermissions()
+    {
+        List<Permission> granted = Arrays.asList( GRANTED );
+        for( int i = 0; i < 4; i++ )
+        {
+            PermissionCollection expected = permissions( granted );
+            PermissionCollection actual = new ImmutablePermissionCollection( granted );
+            for( Permission p : CHECKED )
+            {
+                assertEquals( granted + " implies " + p, expected.implies( p ), actual.implies( p ) );
+            }
+            Collections.reverse( granted );
+            if( i == 1 )
+            {
+                Collections.shuffle( granted );
+            }
+        }
+    }
+
+    @Test
+    public void testAllPermission()
+    {
+        List<Permission> granted = Arrays.<Permission>asList( new RuntimePermission( "setIO" ), new AllPermission() );
+        PermissionCollection pc = new ImmutablePermissionCollection( granted );
+        for( Permission p : CHECKED )
+        {
+            assertTrue( pc.implies( p ) );
+        }
+    }
+
+    @Test
+    public void testReadOnly()
+    {
+        List<Permission> granted = Arrays.asList( GRANTED );
+        PermissionCollection pc = new ImmutablePermissionCollection( granted );
+        assertTrue( pc.isReadOnly() );
+        assertEquals( granted, Collections.list( pc.elements() ) );
+        try
+        {
+            pc.add( new RuntimePermission( "exitVM" ) );
+            fail( "added to a read-only collection" );
+        }
+        catch( SecurityException expected )
+        {
+        }
+        assertFalse( pc.implies( new RuntimePermission( "getClassLoader" ) ) );
+    }
+
+    private static PermissionCollection permissions( List<Permission> granted )
+    {
+        PermissionCollection pc = new Permissions();
+        for( Permission p : granted )
+        {
+            pc.add( p );
+        }
+        return pc;
+    }
+}
@@ -0,0 +1,658 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Permission;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import javax.security.auth.Subject;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Writes synthetic policy files, with a keystore for their signedBy and
+ * principal aliases, and domains the policy grants Permission's to, for
+ * testing and benchmarking policies of production sizes.
+ *
+ * The same seed and Profile always generate the same policy.  Grant k
+ * mixes, as the Profile says, a codebase of one of several forms, including
+ * wildcard hosts and ${java.home}, a signedBy of one or two keystore aliases,
+ * and an X500Principal by name or by keystore alias.  Each grant has a
+ * RuntimePermission "getenv.VARk" granted by no other grant, followed by
+ * File, Property, Socket and PrivateCredential Permission's, some with ${}
+ * and ${{}} expansions.  Socket Permission's are to loopback addresses, so
+ * no name is resolved.
+ *
+ * Run with arguments: directory seed grants [workloads], to write
+ * policy-seed.policy and policy-seed.jks to the directory.
+ */
+public final class PolicyGenerator
+{
+    /**
+     * Keystore aliases of the certificates, each of CN=alias, O=Blackadder Test.
+     */
+    public static final String[] SIGNERS = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+
+    private static final String X500 = "javax.security.auth.x500.X500Principal";
+
+    // Self signed EC certificates, the JDK has no public API to create them.
+    private static final String[] CERTIFICATES = {
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbzCCARSgAwIBAgIJALkjSS7ntNR0MAoGCCqGSM49BAMCMCoxGDAWBgNVBAoT\n"
+        + "D0JsYWNrYWRkZXIgVGVzdDEOMAwGA1UEAxMFYWxpY2UwIBcNMjYxMDE2MDM1ODMz\n"
+        + "WhgPMjEyNjA5MjIwMzU4MzNaMCoxGDAWBgNVBAoTD0JsYWNrYWRkZXIgVGVzdDEO\n"
+        + "MAwGA1UEAxMFYWxpY2UwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAARoulfWOyrC\n"
+        + "hrKt8oweG3vO3dIJFcONure4YDOZYIJjtI+aSkazY7iQO55dJ8nW0LPc35Pj0aee\n"
+        + "gWl8gv5+nrl+oyEwHzAdBgNVHQ4EFgQUdas0ZsXwEle/Zge2hjTB4zpsgLowCgYI\n"
+        + "KoZIzj0EAwIDSQAwRgIhAM1O4MPnsvU6VU2Ebm4iakXWMEH6Mel7tDyhQr8I072M\n"
+        + "AiEAtEZnBLV+y5ChoUEw8n5lD7wwXdf3y4KTnpxB6TAl+Zg=\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBaTCCARCgAwIBAgIJAIyqhOdzYJyHMAoGCCqGSM49BAMCMCgxGDAWBgNVBAoT\n"
+        + "D0JsYWNrYWRkZXIgVGVzdDEMMAoGA1UEAxMDYm9iMCAXDTI2MTAxNjAzNTgzNVoY\n"
+        + "DzIxMjYwOTIyMDM1ODM1WjAoMRgwFgYDVQQKEw9CbGFja2FkZGVyIFRlc3QxDDAK\n"
+        + "BgNVBAMTA2JvYjBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABFW7wrqJDnRJBP3d\n"
+        + "pLp9g7NbQq1wHqwoaGK26iTlPcjiyfu8sWT2dAOeju0IxYNCsZJHNq0RdYjN2Mbt\n"
+        + "TaDJQq6jITAfMB0GA1UdDgQWBBSQ9tW73vjWlpZU9DWZqid+3EdqeTAKBggqhkjO\n"
+        + "PQQDAgNHADBEAiAb6A449p8A3ryB8mDY296QU2T8bCee4oIeQ8Bp+5UpswIgGwNG\n"
+        + "Rzex7VzrtagafaLQOlBvmtzMN2ugrqHJRYwEATw=\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbTCCARSgAwIBAgIJAIMNoyHvxdkrMAoGCCqGSM49BAMCMCoxGDAWBgNVBAoT\n"
+        + "D0JsYWNrYWRkZXIgVGVzdDEOMAwGA1UEAxMFY2Fyb2wwIBcNMjYxMDE2MDM1ODM3\n"
+        + "WhgPMjEyNjA5MjIwMzU4MzdaMCoxGDAWBgNVBAoTD0JsYWNrYWRkZXIgVGVzdDEO\n"
+        + "MAwGA1UEAxMFY2Fyb2wwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAATrypKTuGz+\n"
+        + "GjaHXi2Np5ktZbj/4+01F58+EtPYvF1z6sIC4aO74689LMWf1kxxbQgfWANH/RJr\n"
+        + "wDoJ3YpEJmzIoyEwHzAdBgNVHQ4EFgQUf9cAHGCrsV0cnSy6R3gFvYxIXy0wCgYI\n"
+        + "KoZIzj0EAwIDRwAwRAIgW6h3hp+P+IWwwHUeuWddroBmjivFWdPRCDPwvfxmoIkC\n"
+        + "ICfhFctOY5q1d3b3HhRMJn+RF8nza/hEjLCfO2uRhtHK\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbDCCARKgAwIBAgIJAIO69kwY9YK9MAoGCCqGSM49BAMCMCkxGDAWBgNVBAoT\n"
+        + "D0JsYWNrYWRkZXIgVGVzdDENMAsGA1UEAxMEZGF2ZTAgFw0yNjEwMTYwMzU4Mzla\n"
+        + "GA8yMTI2MDkyMjAzNTgzOVowKTEYMBYGA1UEChMPQmxhY2thZGRlciBUZXN0MQ0w\n"
+        + "CwYDVQQDEwRkYXZlMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEZ3V/sTtLKUn4\n"
+        + "Pa6MlWxpEKWlhkpIgp6d+mZAlNlWKgfnYzg65sUbtSw+t8g/a53CLgzMnKAYG4d1\n"
+        + "PTR83TRRK6MhMB8wHQYDVR0OBBYEFIIJdPrc+4hW6m5UTx64Pe8IMMz9MAoGCCqG\n"
+        + "SM49BAMCA0gAMEUCIAkim6dXBZL/mJDM71VJtWiEp3EQfbhty0nQ0pCNLgbFAiEA\n"
+        + "iD9ky12kzp1U75v3LHPcjmbvtnM1VzdG3N5LVZZPhh8=\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBazCCARGgAwIBAgIIenO5nKnX5mMwCgYIKoZIzj0EAwIwKTEYMBYGA1UEChMP\n"
+        + "QmxhY2thZGRlciBUZXN0MQ0wCwYDVQQDEwRlcmluMCAXDTI2MTAxNjAzNTg0MVoY\n"
+        + "DzIxMjYwOTIyMDM1ODQxWjApMRgwFgYDVQQKEw9CbGFja2FkZGVyIFRlc3QxDTAL\n"
+        + "BgNVBAMTBGVyaW4wWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAATvQRVUkv6yB+ZN\n"
+        + "PQ1P1ZtEs/ZSljEhceVCQaRkS7lJMacztXG0XTdYl0woASb4DwqhXd5KhokxvoWN\n"
+        + "uZi4JrTMoyEwHzAdBgNVHQ4EFgQUhDrHNs3RXmRYt80aXrgWTG7upQUwCgYIKoZI\n"
+        + "zj0EAwIDSAAwRQIgP2/wjpJys8h6ABTzLOi2r4KxybAx0Fqcx9pkMG/SwYYCIQD0\n"
+        + "QUI4tZ4BE0O+fVHQ3d4IYjvP3AkIVAqpG5Q4HNfplw==\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbTCCAROgAwIBAgIIVvkaYt3e294wCgYIKoZIzj0EAwIwKjEYMBYGA1UEChMP\n"
+        + "QmxhY2thZGRlciBUZXN0MQ4wDAYDVQQDEwVmcmFuazAgFw0yNjEwMTYwMzU4NDJa\n"
+        + "GA8yMTI2MDkyMjAzNTg0MlowKjEYMBYGA1UEChMPQmxhY2thZGRlciBUZXN0MQ4w\n"
+        + "DAYDVQQDEwVmcmFuazBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABOYGzr+1x+3A\n"
+        + "WycWztSWB/3vW7ZKEs9kRzjT/a4i4DPy1ItYMmffhKfRBRipGVa8D3oUJO5SGqLg\n"
+        + "MchcCVtX03yjITAfMB0GA1UdDgQWBBQxK48XepNn+ljNvISU6HkNhmh3dTAKBggq\n"
+        + "hkjOPQQDAgNIADBFAiEAn15plxzd8yYA41EBn5FgBulW+gAFciduUJWtLxuiUGsC\n"
+        + "IETpEujVDF0EbGpA07I50AZ4KAkP0Blgoaga2w6Z6n8M\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbzCCARSgAwIBAgIJAJdPQuTRjO/EMAoGCCqGSM49BAMCMCoxGDAWBgNVBAoT\n"
+        + "D0JsYWNrYWRkZXIgVGVzdDEOMAwGA1UEAxMFZ3JhY2UwIBcNMjYxMDE2MDM1ODQ0\n"
+        + "WhgPMjEyNjA5MjIwMzU4NDRaMCoxGDAWBgNVBAoTD0JsYWNrYWRkZXIgVGVzdDEO\n"
+        + "MAwGA1UEAxMFZ3JhY2UwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAATNR5tipoYN\n"
+        + "zKkIfCmkma2NtBKox4yplYSTbyEjJTcuplpvLvxHihuGOHEc5Uc84hIokqay9zId\n"
+        + "fDdhjVJ/Zz09oyEwHzAdBgNVHQ4EFgQULfY9TSA1pT5ecETAA3ACz0bOn08wCgYI\n"
+        + "KoZIzj0EAwIDSQAwRgIhAM1CEEEpvCPaNStJjBwwIMXmfEyCrYuSl5KNP2yRL1lo\n"
+        + "AiEAwEBKcr1XaVkg8Qli1bGfIFJjGmj0tYN8IkbKFgvb5iM=\n"
+        + "-----END CERTIFICATE-----\n",
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBbTCCAROgAwIBAgIIcC7IziE0E4swCgYIKoZIzj0EAwIwKjEYMBYGA1UEChMP\n"
+        + "QmxhY2thZGRlciBUZXN0MQ4wDAYDVQQDEwVoZWlkaTAgFw0yNjEwMTYwMzU4NDZa\n"
+        + "GA8yMTI2MDkyMjAzNTg0NlowKjEYMBYGA1UEChMPQmxhY2thZGRlciBUZXN0MQ4w\n"
+        + "DAYDVQQDEwVoZWlkaTBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABEk9wJgXrXLC\n"
+        + "S9M9N1K5BG8srucZzZW2skMM5hfVpfNdf1rntlgz6DhDwyQ+5Uhk16rObAoTH4u2\n"
+        + "7nNybmzCRjajITAfMB0GA1UdDgQWBBQZT4PAYTkhjW+HD53yM85oi9ZbszAKBggq\n"
+        + "hkjOPQQDAgNIADBFAiBWB0GDTieu4hkaSfM7Afl6A5OD8re7hgciMUymrTqs7wIh\n"
+        + "AJ7KdtvMOFwqMe5yB6pd/uEDdeLTMeO62nL6e6FrtM23\n"
+        + "-----END CERTIFICATE-----\n"
+    };
+
+    private PolicyGenerator()
+    {
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        if( args.length < 3 )
+        {
+            System.err.println( "Usage: PolicyGenerator directory seed grants [workloads]" );
+            System.exit( 1 );
+        }
+        Profile profile = new Profile().grants( Integer.parseInt( args[ 2 ] ) );
+        int workloads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 0;
+        Generated generated = generate( new File( args[ 0 ] ), Long.parseLong( args[ 1 ] ), profile, workloads );
+        System.out.println( generated.getPolicy() );
+        System.out.println( generated.getKeystore() );
+    }
+
+    /**
+     * Writes a policy file and its keystore to a directory.
+     *
+     * @param directory the directory to write to, or null for temporary files deleted on exit.
+     * @param seed      the seed of the generated policy.
+     * @param profile   the shape of the generated policy.
+     * @param workloads the number of Workload's to create, each of a different grant.
+     *
+     * @return the policy file, keystore and Workload's.
+     */
+    public static Generated generate( File directory, long seed, Profile profile, int workloads )
+        throws IOException, GeneralSecurityException
+    {
+        File policy;
+        File keystore;
+        if( directory == null )
+        {
+            policy = File.createTempFile( "policy-" + seed + "-", ".policy" );
+            keystore = new File( policy.getPath().replaceFirst( "\\.policy$", ".jks" ) );
+            policy.deleteOnExit();
+            keystore.deleteOnExit();
+        }
+        else
+        {
+            policy = new File( directory, "policy-" + seed + ".policy" );
+            keystore = new File( directory, "policy-" + seed + ".jks" );
+        }
+        X509Certificate[] certificates = certificates();
+        writeKeystore( keystore, certificates );
+
+        Random random = new Random( seed );
+        Set<Integer> sampled = sample( random, Math.min( workloads, profile.grants ), profile.grants );
+        List<Workload> sample = new ArrayList<Workload>( sampled.size() );
+        Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( policy ), "UTF-8" ) );
+        try
+        {
+            out.write( "keystore \"" + keystore.getName() + "\", \"JKS\";\n\n" );
+            for( int k = 0; k < profile.grants; k++ )
+            {
+                Grant grant = grant( random, profile, k );
+                grant.write( out );
+                if( sampled.contains( k ) )
+                {
+                    sample.add( grant.workload( random, profile, certificates ) );
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return new Generated( policy, keystore, sample );
+    }
+
+    /**
+     * @return the certificates of the SIGNERS, in the same order.
+     */
+    public static X509Certificate[] certificates()
+        throws GeneralSecurityException
+    {
+        CertificateFactory factory = CertificateFactory.getInstance( "X.509" );
+        X509Certificate[] certificates = new X509Certificate[ CERTIFICATES.length ];
+        for( int i = 0; i < CERTIFICATES.length; i++ )
+        {
+            byte[] pem = CERTIFICATES[ i ].getBytes();
+            certificates[ i ] = (X509Certificate) factory.generateCertificate( new ByteArrayInputStream( pem ) );
+        }
+        return certificates;
+    }
+
+    private static void writeKeystore( File file, X509Certificate[] certificates )
+        throws IOException, GeneralSecurityException
+    {
+        KeyStore ks = KeyStore.getInstance( "JKS" );
+        ks.load( null, null );
+        for( int i = 0; i < certificates.length; i++ )
+        {
+            ks.setCertificateEntry( SIGNERS[ i ], certificates[ i ] );
+        }
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            ks.store( out, new char[ 0 ] );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static Set<Integer> sample( Random random, int count, int grants )
+    {
+        Set<Integer> sampled = new LinkedHashSet<Integer>();
+        while( sampled.size() < count )
+        {
+            sampled.add( random.nextInt( grants ) );
+        }
+        return sampled;
+    }
+
+    private static Grant grant( Random random, Profile profile, int k )
+    {
+        Grant grant = new Grant( k );
+        boolean expand = random.nextDouble() < profile.expansions;
+        if( random.nextDouble() < profile.codebases )
+        {
+            grant.codebase( random.nextInt( 6 ), random.nextInt( profile.hosts ), expand );
+        }
+        if( random.nextDouble() < profile.signers )
+        {
+            grant.signer( random.nextInt( SIGNERS.length ) );
+            if( random.nextBoolean() )
+            {
+                grant.signer( random.nextInt( SIGNERS.length ) );
+            }
+        }
+        if( random.nextDouble() < profile.principals )
+        {
+            if( random.nextInt( 4 ) == 0 )
+            {
+                grant.principalAlias( random.nextInt( SIGNERS.length ) );
+            }
+            else
+            {
+                grant.principal( random.nextInt( profile.users ) );
+            }
+        }
+        grant.permissions( random.nextInt( profile.permissions ) + 1, expand );
+        return grant;
+    }
+
+    /**
+     * The shape of a generated policy, fractions are of all grants.
+     */
+    public static final class Profile
+    {
+        private int grants = 10000;
+        private double codebases = 0.9;
+        private double signers = 0.2;
+        private double principals = 0.25;
+        private double expansions = 0.1;
+        private int permissions = 5;
+        private int hosts = 100;
+        private int users = 1000;
+        private int subjectPrincipals = 2;
+
+        /**
+         * The number of grants.
+         */
+        public Profile grants( int grants )
+        {
+            this.grants = grants;
+            return this;
+        }
+
+        /**
+         * The fraction of grants with a codebase.
+         */
+        public Profile codebases( double fraction )
+        {
+            codebases = fraction;
+            return this;
+        }
+
+        /**
+         * The fraction of grants with a signedBy.
+         */
+        public Profile signers( double fraction )
+        {
+            signers = fraction;
+            return this;
+        }
+
+        /**
+         * The fraction of grants with a principal.
+         */
+        public Profile principals( double fraction )
+        {
+            principals = fraction;
+            return this;
+        }
+
+        /**
+         * The fraction of grants with ${} and ${{}} expansions.
+         */
+        public Profile expansions( double fraction )
+        {
+            expansions = fraction;
+            return this;
+        }
+
+        /**
+         * The greatest number of Permission's in a grant, from 1 to 5.
+         */
+        public Profile permissions( int permissions )
+        {
+            this.permissions = Math.max( 1, Math.min( permissions, 5 ) );
+            return this;
+        }
+
+        /**
+         * The number of distinct hosts of http codebases.
+         */
+        public Profile hosts( int hosts )
+        {
+            this.hosts = hosts;
+            return this;
+        }
+
+        /**
+         * The number of distinct X500Principal's CN=userN of principal clauses.
+         */
+        public Profile users( int users )
+        {
+            this.users = users;
+            return this;
+        }
+
+        /**
+         * The number of X500Principal's a Workload's Subject has, besides
+         * those its grant requires.
+         */
+        public Profile subjectPrincipals( int subjectPrincipals )
+        {
+            this.subjectPrincipals = subjectPrincipals;
+            return this;
+        }
+    }
+
+    /**
+     * A generated policy file, its keystore and Workload's.
+     */
+    public static final class Generated
+    {
+        private final File policy;
+        private final File keystore;
+        private final List<Workload> workloads;
+
+        private Generated( File policy, File keystore, List<Workload> workloads )
+        {
+            this.policy = policy;
+            this.keystore = keystore;
+            this.workloads = Collections.unmodifiableList( workloads );
+        }
+
+        public File getPolicy()
+        {
+            return policy;
+        }
+
+        public File getKeystore()
+        {
+            return keystore;
+        }
+
+        public List<Workload> getWorkloads()
+        {
+            return workloads;
+        }
+    }
+
+    /**
+     * A Subject and a domain of a generated grant, as SubjectDomainCombiner
+     * creates for the Subject, with a Permission implied only by that grant,
+     * and one of the same class no grant implies.
+     */
+    public static final class Workload
+    {
+        private final ProtectionDomain domain;
+        private final Subject subject;
+        private final Permission granted;
+        private final Permission denied;
+
+        private Workload( ProtectionDomain domain, Subject subject, Permission granted, Permission denied )
+        {
+            this.domain = domain;
+            this.subject = subject;
+            this.granted = granted;
+            this.denied = denied;
+        }
+
+        public ProtectionDomain getDomain()
+        {
+            return domain;
+        }
+
+        public Subject getSubject()
+        {
+            return subject;
+        }
+
+        public Permission getGranted()
+        {
+            return granted;
+        }
+
+        public Permission getDenied()
+        {
+            return denied;
+        }
+    }
+
+    private static final class Grant
+    {
+        private final int k;
+        private String codebase;
+        private String url;
+        private final List<Integer> signers = new ArrayList<Integer>( 2 );
+        private final List<Integer> aliases = new ArrayList<Integer>( 1 );
+        private final List<Integer> users = new ArrayList<Integer>( 1 );
+        private final List<String> permissions = new ArrayList<String>( 5 );
+
+        private Grant( int k )
+        {
+            this.k = k;
+        }
+
+        private void codebase( int form, int host, boolean expand )
+        {
+            if( expand )
+            {
+                codebase = "file:${java.home}/lib/ext/x" + k + ".jar";
+                url = new File( System.getProperty( "java.home" ) ).toURI() + "lib/ext/x" + k + ".jar";
+                return;
+            }
+            switch( form )
+            {
+            case 0:
+                codebase = "file:/opt/app/lib" + k + "/-";
+                url = "file:/opt/app/lib" + k + "/sub/app.jar";
+                break;
+            case 1:
+                codebase = "file:/opt/app/lib" + k + "/*";
+                url = "file:/opt/app/lib" + k + "/app.jar";
+                break;
+            case 2:
+                codebase = "file:/opt/app/lib" + k + "/app.jar";
+                url = codebase;
+                break;
+            case 3:
+                codebase = "http://host" + host + ".example.com/app" + k + "/-";
+                url = "http://host" + host + ".example.com/app" + k + "/lib/app.jar";
+                break;
+            case 4:
+                codebase = "http://*.example" + host + ".com/app" + k + "/-";
+                url = "http://www.example" + host + ".com/app" + k + "/app.jar";
+                break;
+            default:
+                codebase = "https://repo.example.com:8443/maven/g" + host + "/a" + k + ".jar";
+                url = codebase;
+            }
+        }
+
+        private void signer( int signer )
+        {
+            if( !signers.contains( signer ) )
+            {
+                signers.add( signer );
+            }
+        }
+
+        private void principalAlias( int signer )
+        {
+            aliases.add( signer );
+        }
+
+        private void principal( int user )
+        {
+            users.add( user );
+        }
+
+        private void permissions( int count, boolean expand )
+        {
+            permissions.add( "java.lang.RuntimePermission \"getenv.VAR" + k + "\"" );
+            if( count > 1 )
+            {
+                String dir = expand ? "${user.home}/app" + k : "/var/app" + k;
+                permissions.add( "java.io.FilePermission \"" + dir + "/-\", \"read,write\"" );
+            }
+            if( count > 2 )
+            {
+                permissions.add( "java.util.PropertyPermission \"app" + k + ".*\", \"read\"" );
+            }
+            if( count > 3 )
+            {
+                permissions.add( "java.net.SocketPermission \"127.0.0.1:" + ( 1024 + k % 60000 ) + "\", \"connect\"" );
+            }
+            if( count > 4 )
+            {
+                String owner;
+                if( !expand )
+                {
+                    owner = X500 + " \\\"CN=user" + k + "\\\"";
+                }
+                else if( users.isEmpty() && aliases.isEmpty() )
+                {
+                    owner = "${{alias:" + SIGNERS[ k % SIGNERS.length ] + "}}";
+                }
+                else
+                {
+                    owner = "${{self}}";
+                }
+                permissions.add( "javax.security.auth.PrivateCredentialPermission "
+                                 + "\"javax.security.auth.x500.X500PrivateCredential " + owner + "\", \"read\"" );
+            }
+        }
+
+        private void write( Writer out )
+            throws IOException
+        {
+            StringBuilder sb = new StringBuilder( 256 ).append( "grant" );
+            String separator = " ";
+            if( codebase != null )
+            {
+                sb.append( separator ).append( "codebase \"" ).append( codebase ).append( '"' );
+                separator = ", ";
+            }
+            if( !signers.isEmpty() )
+            {
+                sb.append( separator ).append( "signedBy \"" );
+                for( int i = 0; i < signers.size(); i++ )
+                {
+                    sb.append( i == 0 ? "" : "," ).append( SIGNERS[ signers.get( i ) ] );
+                }
+                sb.append( '"' );
+                separator = ", ";
+            }
+            for( int alias : aliases )
+            {
+                sb.append( separator ).append( "principal \"" ).append( SIGNERS[ alias ] ).append( '"' );
+                separator = ", ";
+            }
+            for( int user : users )
+            {
+                sb.append( separator ).append( "principal " ).append( X500 ).append( " \"CN=user" ).append( user )
+                    .append( '"' );
+                separator = ", ";
+            }
+            sb.append( " {\n" );
+            for( String permission : permissions )
+            {
+                sb.append( "    permission " ).append( permission ).append( ";\n" );
+            }
+            sb.append( "};\n" );
+            out.write( sb.toString() );
+        }
+
+        private Workload workload( Random random, Profile profile, X509Certificate[] certificates )
+            throws IOException
+        {
+            Certificate[] certs = null;
+            if( !signers.isEmpty() )
+            {
+                certs = new Certificate[ signers.size() ];
+                for( int i = 0; i < certs.length; i++ )
+                {
+                    certs[ i ] = certificates[ signers.get( i ) ];
+                }
+            }
+            String location = url != null ? url : "file:/opt/other/lib" + k + "/app.jar";
+            CodeSource cs = new CodeSource( new URL( location ), certs );
+            Subject subject = new Subject();
+            Set<Principal> principals = subject.getPrincipals();
+            for( int alias : aliases )
+            {
+                principals.add( certificates[ alias ].getSubjectX500Principal() );
+            }
+            for( int user : users )
+            {
+                principals.add( new X500Principal( "CN=user" + user ) );
+            }
+            for( int i = 0; i < profile.subjectPrincipals; i++ )
+            {
+                principals.add( new X500Principal( "CN=user" + random.nextInt( profile.users ) ) );
+            }
+            ProtectionDomain domain = new ProtectionDomain( cs, null, null,
+                                                            principals.toArray( new Principal[ principals.size() ] ) );
+            return new Workload( domain, subject, new RuntimePermission( "getenv.VAR" + k ),
+                                 new RuntimePermission( "getenv.OTHER" + k ) );
+        }
+    }
+}
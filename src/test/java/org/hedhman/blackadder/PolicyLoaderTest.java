@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder;
+
+import java.io.File;
+import java.net.URL;
+import java.security.Permission;
+import java.util.Collection;
+import org.hedhman.blackadder.parser.DefaultPolicyParser;
+import org.hedhman.blackadder.parser.PermissionGrant;
+import org.hedhman.blackadder.parser.PolicyParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyLoaderTest
+{
+    @Test
+    public void testResultsInLocationOrder()
+        throws Exception
+    {
+        final PolicyParser parser = new DefaultPolicyParser();
+        PolicyLoader loader = new PolicyLoader( new PolicyParser()
+        {
+            public Collection<PermissionGrant> parse( URL location )
+                throws Exception
+            {
+                if( location.getPath().endsWith( "denied" ) )
+                {
+                    throw new SecurityException( "denied" );
+                }
+                return parser.parse( location );
+            }
+        } );
+        URL[] locations = new URL[ 8 ];
+        for( int i = 0; i < locations.length; i++ )
+        {
+            File file = ConcurrentPolicyFileTest.writePolicy( null, "grant {\n"
+                                                                    + " permission java.lang.RuntimePermission \"p" + i + "\";\n"
+                                                                    + "};\n" );
+            locations[ i ] = file.toURI().toURL();
+        }
+        locations[ 3 ] = new URL( "file:/no/such/policy" );
+        locations[ 5 ] = new URL( "file:/denied" );
+        PolicyLoader.Result[] results = loader.load( locations );
+        assertEquals( locations.length, results.length );
+        for( int i = 0; i < results.length; i++ )
+        {
+            if( i == 3 )
+            {
+                assertNotNull( results[ i ].failure() );
+            }
+            else if( i == 5 )
+            {
+                assertTrue( results[ i ].failure() instanceof SecurityException );
+            }
+            else
+            {
+                assertNull( results[ i ].failure() );
+                assertEquals( 1, results[ i ].grants().size() );
+                PermissionGrant grant = results[ i ].grants().iterator().next();
+                Permission p = grant.getPermissions().iterator().next();
+                assertEquals( "p" + i, p.getName() );
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.BitSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CertificateIndexTest
+{
+    private static final String ALICE =
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBVzCB/aADAgECAgh8vV3MBdsZqjAKBggqhkjOPQQDAjAfMQ0wCwYDVQQKEwRU\n"
+        + "ZXN0MQ4wDAYDVQQDEwVhbGljZTAgFw0yNjEwMTYwMzMyMDZaGA8yMTI2MDkyMjAz\n"
+        + "MzIwNlowHzENMAsGA1UEChMEVGVzdDEOMAwGA1UEAxMFYWxpY2UwWTATBgcqhkjO\n"
+        + "PQIBBggqhkjOPQMBBwNCAAT6zTaAADDxv+N+81YkI7srwpfxLXArC9s5FICjzcGa\n"
+        + "M8WBymAtR2smtxoKnqxMw0/QUWIdeujOyT+YKdfOc9X/oyEwHzAdBgNVHQ4EFgQU\n"
+        + "5jWEYAf+u4jXuvhT5SvIH9Xhv1kwCgYIKoZIzj0EAwIDSQAwRgIhAIB/PuoPgQsU\n"
+        + "Yxp3q8JRKkDBcbBgc8PZDRshq32EYwQaAiEAidzF27r74PJ722dLPgDXssxwogJA\n"
+        + "8WV61a6KiIDk8Tc=\n"
+        + "-----END CERTIFICATE-----\n";
+
+    private static final String BOB =
+        "-----BEGIN CERTIFICATE-----\n"
+        + "MIIBUTCB+aADAgECAghrEJB+yO5rqzAKBggqhkjOPQQDAjAdMQ0wCwYDVQQKEwRU\n"
+        + "ZXN0MQwwCgYDVQQDEwNib2IwIBcNMjYxMDE2MDMzMjA4WhgPMjEyNjA5MjIwMzMy\n"
+        + "MDhaMB0xDTALBgNVBAoTBFRlc3QxDDAKBgNVBAMTA2JvYjBZMBMGByqGSM49AgEG\n"
+        + "CCqGSM49AwEHA0IABOnmvhpi3cCvidAgaj2kR9DuJA8iLrct/oCX+H0UejfbWreO\n"
+        + "wrGNkAoRLMzG3wP2UC0k65hRwgfCZbkBxgMvegmjITAfMB0GA1UdDgQWBBRQohMr\n"
+        + "oH/7A3DTiSeZQBrX4Zc8KzAKBggqhkjOPQQDAgNHADBEAiBgNHPqUDkDju/h3KJs\n"
+        + "880mYdojHg3zhcYn6F9y1q52SQIgXSKKD250R6dos7N20lim2cnTYmjhBxl9BDVm\n"
+        + "fD6oAwU=\n"
+        + "-----END CERTIFICATE-----\n";
+
+    private Certificate alice;
+    private Certificate bob;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        CertificateFactory cf = CertificateFactory.getInstance( "X.509" );
+        alice = cf.generateCertificate( new ByteArrayInputStream( ALICE.getBytes( "US-ASCII" ) ) );
+        bob = cf.generateCertificate( new ByteArrayInputStream( BOB.getBytes( "US-ASCII" ) ) );
+    }
+
+    private static URIGrant grant( Certificate... signers )
+        throws Exception
+    {
+        return new URIGrant( new URI[]{ new URI( "file:/opt/app/-" ) }, signers,
+                             new Principal[ 0 ], new Permission[ 0 ] );
+    }
+
+    private static CodeSource codeSource( Certificate... signers )
+        throws Exception
+    {
+        return new CodeSource( new URL( "file:/opt/app/lib/a.jar" ), signers );
+    }
+
+    @Test
+    public void testSignedByIsEnforced()
+        throws Exception
+    {
+        URIGrant signedByAlice = grant( alice );
+        assertTrue( signedByAlice.implies( codeSource( alice ), null ) );
+        assertTrue( signedByAlice.implies( codeSource( bob, alice ), null ) );
+        assertFalse( signedByAlice.implies( codeSource( bob ), null ) );
+        assertFalse( signedByAlice.implies( codeSource( (Certificate[]) null ), null ) );
+        URIGrant signedByBoth = grant( alice, bob );
+        assertTrue( signedByBoth.implies( codeSource( bob, alice ), null ) );
+        assertFalse( signedByBoth.implies( codeSource( alice ), null ) );
+        // An alias missing from the keystore resolves to a null Certificate.
+        assertFalse( grant( (Certificate) null ).implies( codeSource( alice ), null ) );
+    }
+
+    @Test
+    public void testCandidates()
+        throws Exception
+    {
+        PermissionGrant[] grants = {
+            grant(),
+            grant( alice ),
+            grant( bob ),
+            grant( alice, bob ),
+            grant( (Certificate) null )
+        };
+        CertificateIndex index = new CertificateIndex( grants );
+        CodeSource[] sources = {
+            codeSource( (Certificate[]) null ), codeSource( alice ), codeSource( bob ), codeSource( alice, bob )
+        };
+        for( CodeSource cs : sources )
+        {
+            BitSet candidates = index.candidates( cs );
+            for( int i = 0; i < grants.length; i++ )
+            {
+                if( grants[ i ].implies( cs, null ) )
+                {
+                    assertTrue( candidates.get( i ) );
+                }
+            }
+            assertFalse( candidates.get( 4 ) );
+        }
+        assertEquals( 1, index.candidates( sources[ 0 ] ).cardinality() );
+        assertTrue( index.candidates( sources[ 2 ] ).get( 2 ) );
+        assertFalse( index.candidates( sources[ 2 ] ).get( 1 ) );
+    }
+}
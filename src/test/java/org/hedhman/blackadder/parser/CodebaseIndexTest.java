@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.net.URI;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.util.BitSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CodebaseIndexTest
+{
+    private static final String[] CODEBASES = {
+        "file:/opt/app/-",
+        "file:/opt/app/lib/*",
+        "file:/opt/app/lib/a.jar",
+        "file:/opt/app/bin",
+        "file:/opt/other/",
+        "file:/-",
+        "http://www.apache.org/classes/-",
+        "http://*.apache.org/jars/*",
+        "http://*/jars/x.jar",
+        "http://localhost/local/-",
+        "http://river.apache.org:8080/-",
+        "https://www.apache.org/classes/-",
+        "file:/opt/app/b/-",
+        "http://*.corp.example.com/-",
+        "http://build.corp.example.com/-",
+        "http://*-dev.example.com/-"
+    };
+
+    private static final String[] LOCATIONS = {
+        "file:/opt/app/lib/a.jar",
+        "file:/opt/app/lib/b.jar",
+        "file:/opt/app/lib/sub/c.jar",
+        "file:/opt/app/bin",
+        "file:/opt/app/bin/",
+        "file:/opt/app/bc/d.jar",
+        "file:/opt/other/",
+        "file:/opt/other",
+        "file:/usr/lib/x.jar",
+        "http://www.apache.org/classes/a/b.jar",
+        "http://WWW.Apache.org/classes/a.jar",
+        "http://river.apache.org/jars/x.jar",
+        "http://river.apache.org:8080/jars/x.jar",
+        "http://apache.org/jars/x.jar",
+        "http://example.com/jars/x.jar",
+        "http://localhost/local/l.jar",
+        "http://127.0.0.1/local/l.jar",
+        "https://www.apache.org/classes/a.jar",
+        "ftp://www.apache.org/classes/a.jar",
+        "http://a.corp.example.com/x.jar",
+        "http://x.Build.Corp.example.com/x.jar",
+        "http://build.corp.example.com/x.jar",
+        "http://corp.example.com/x.jar",
+        "http://app-dev.example.com/x.jar",
+        "file://localhost/opt/app/lib/a.jar"
+    };
+
+    private static URIGrant grant( String codebase )
+        throws Exception
+    {
+        return new URIGrant( new URI[]{ new URI( codebase ) }, new Certificate[ 0 ],
+                             new Principal[ 0 ], new Permission[ 0 ] );
+    }
+
+    @Test
+    public void testCandidatesIncludeEveryImplyingGrant()
+        throws Exception
+    {
+        PermissionGrant[] grants = new PermissionGrant[ CODEBASES.length ];
+        for( int i = 0; i < grants.length; i++ )
+        {
+            grants[ i ] = grant( CODEBASES[ i ] );
+        }
+        CodebaseIndex index = new CodebaseIndex( grants );
+        int pruned = 0;
+        for( String location : LOCATIONS )
+        {
+            CodeSource cs = new CodeSource( new URL( location ), (Certificate[]) null );
+            BitSet candidates = index.candidates( cs );
+            for( int i = 0; i < grants.length; i++ )
+            {
+                if( grants[ i ].implies( cs, null ) )
+                {
+                    assertTrue( CODEBASES[ i ] + " implies " + location, candidates.get( i ) );
+                }
+                else if( !candidates.get( i ) )
+                {
+                    pruned++;
+                }
+            }
+        }
+        assertTrue( pruned > LOCATIONS.length * CODEBASES.length / 2 );
+    }
+
+    @Test
+    public void testWildcardHost()
+        throws Exception
+    {
+        PermissionGrant wild = grant( "http://*.apache.org/-" );
+        assertTrue( wild.implies( new CodeSource( new URL( "http://river.apache.org/a.jar" ), (Certificate[]) null ), null ) );
+        assertFalse( wild.implies( new CodeSource( new URL( "http://example.com/a.jar" ), (Certificate[]) null ), null ) );
+        CodebaseIndex index = new CodebaseIndex( new PermissionGrant[]{ wild } );
+        assertEquals( 1, index.candidates( new CodeSource( new URL( "http://river.apache.org/a.jar" ), (Certificate[]) null ) ).cardinality() );
+        assertEquals( 0, index.candidates( new CodeSource( new URL( "http://example.com/a.jar" ), (Certificate[]) null ) ).cardinality() );
+    }
+
+    @Test
+    public void testWildcardHostLabels()
+        throws Exception
+    {
+        CodebaseIndex index = new CodebaseIndex( new PermissionGrant[]{
+            grant( "http://*.corp.example.com/-" ),
+            grant( "http://build.corp.example.com/-" ),
+            grant( "http://*.example.com/-" ),
+            grant( "http://*-dev.example.com/-" )
+        } );
+        assertEquals( "{0, 2}", candidates( index, "http://a.corp.example.com/x.jar" ) );
+        assertEquals( "{0, 1, 2}", candidates( index, "http://build.corp.example.com/x.jar" ) );
+        assertEquals( "{0, 2}", candidates( index, "http://x.build.corp.example.com/x.jar" ) );
+        assertEquals( "{2}", candidates( index, "http://corp.example.com/x.jar" ) );
+        assertEquals( "{2, 3}", candidates( index, "http://app-dev.example.com/x.jar" ) );
+        assertEquals( "{}", candidates( index, "http://example.com/x.jar" ) );
+        assertEquals( "{}", candidates( index, "http://example.org/x.jar" ) );
+    }
+
+    private static String candidates( CodebaseIndex index, String location )
+        throws Exception
+    {
+        return index.candidates( new CodeSource( new URL( location ), (Certificate[]) null ) ).toString();
+    }
+
+    @Test
+    public void testUnindexedGrantsAreAlwaysCandidates()
+        throws Exception
+    {
+        PermissionGrant any = new URIGrant( new URI[ 0 ], new Certificate[ 0 ], new Principal[ 0 ], new Permission[ 0 ] );
+        PermissionGrant app = grant( "file:/opt/app/-" );
+        CodebaseIndex index = new CodebaseIndex( new PermissionGrant[]{ app, any } );
+        BitSet candidates = index.candidates( new CodeSource( new URL( "file:/usr/x.jar" ), (Certificate[]) null ) );
+        assertFalse( candidates.get( 0 ) );
+        assertTrue( candidates.get( 1 ) );
+        candidates = index.candidates( (CodeSource) null );
+        assertFalse( candidates.get( 0 ) );
+        assertTrue( candidates.get( 1 ) );
+    }
+}
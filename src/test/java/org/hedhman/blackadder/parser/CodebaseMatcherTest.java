@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.net.URI;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CodebaseMatcherTest
+{
+    private static final String[] CODEBASES = {
+        "file:/opt/app/-",
+        "file:/opt/app/lib/*",
+        "file:/opt/app/lib/a.jar",
+        "file:/opt/app/bin",
+        "file:/opt/other/",
+        "file:/-",
+        "file:/*",
+        "file://localhost/opt/app/-",
+        "http://www.apache.org/classes/-",
+        "http://*.apache.org/jars/*",
+        "http://*/jars/x.jar",
+        "http://localhost/local/-",
+        "http://river.apache.org:8080/-",
+        "http://river.apache.org/jars/x.jar#frag",
+        "http://user@*.apache.org:80/-",
+        "https://www.apache.org/classes/-"
+    };
+
+    private static final String[] LOCATIONS = {
+        "file:/opt/app/lib/a.jar",
+        "file:/opt/app/lib/sub/c.jar",
+        "file:/opt/app/lib",
+        "file:/opt/app/bin",
+        "file:/opt/app/bin/",
+        "file:/opt/application/x.jar",
+        "file:/opt/other/",
+        "file:/opt/other",
+        "file:/x.jar",
+        "file:///opt/app/a.jar",
+        "file://localhost/opt/app/a.jar",
+        "http://www.apache.org/classes/a/b.jar",
+        "http://river.apache.org/jars/x.jar",
+        "http://river.apache.org/jars/x.jar#frag",
+        "http://river.apache.org:8080/jars/x.jar",
+        "http://river.apache.org:80/jars/x.jar",
+        "http://apache.org/jars/x.jar",
+        "http://example.com/jars/x.jar",
+        "http://localhost/local/l.jar",
+        "http://:80/local/l.jar",
+        "https://www.apache.org/classes/a.jar"
+    };
+
+    @Test
+    public void testMatches()
+        throws Exception
+    {
+        assertMatches( true, "file:/opt/app/-", "file:/opt/app/lib/a.jar" );
+        assertMatches( true, "file:/opt/app/b/-", "file:/opt/app/bc/d.jar" );
+        assertMatches( false, "file:/opt/app/lib/*", "file:/opt/app/lib/sub/c.jar" );
+        assertMatches( true, "file:/opt/app/bin", "file:/opt/app/bin/" );
+        assertMatches( false, "http://www.apache.org/bin/", "http://www.apache.org/bin" );
+        assertMatches( true, "http://*.apache.org/jars/*", "http://river.apache.org/jars/x.jar" );
+        assertMatches( false, "http://*.apache.org/jars/*", "http://apache.org/jars/x.jar" );
+        assertMatches( true, "http://localhost/local/-", "http://:80/local/l.jar" );
+        assertMatches( false, "http://river.apache.org:8080/-", "http://river.apache.org/jars/x.jar" );
+        assertMatches( false, "http://river.apache.org/jars/x.jar#frag", "http://river.apache.org/jars/x.jar" );
+    }
+
+    /**
+     * Compares every codebase and location with the string comparisons
+     * URIGrant used before its locations were compiled.
+     */
+    @Test
+    public void testMatchesAsBefore()
+        throws Exception
+    {
+        for( String codebase : CODEBASES )
+        {
+            URI grant = UriString.normalise( new URI( codebase ) );
+            CodebaseMatcher matcher = new CodebaseMatcher( grant );
+            for( String location : LOCATIONS )
+            {
+                URI implied = UriString.normalise( new URI( location ) );
+                assertEquals( codebase + " " + location, implies( grant, implied ), matcher.matches( implied ) );
+            }
+        }
+    }
+
+    private static void assertMatches( boolean expected, String codebase, String location )
+        throws Exception
+    {
+        URI grant = UriString.normalise( new URI( codebase ) );
+        URI implied = UriString.normalise( new URI( location ) );
+        assertEquals( codebase + " " + location, expected, new CodebaseMatcher( grant ).matches( implied ) );
+    }
+
+    private static boolean implies( URI grant, URI implied )
+    {
+        if( grant.equals( implied ) )
+        {
+            return true;
+        }
+        if( !grant.getScheme().equals( implied.getScheme() ) )
+        {
+            return false;
+        }
+        String thisHost = URIGrant.hostOf( grant );
+        if( thisHost != null )
+        {
+            String thatHost = URIGrant.hostOf( implied );
+            if( thatHost == null )
+            {
+                return false;
+            }
+            if( !( ( thisHost.length() == 0 || "localhost".equals( thisHost ) )
+                   && ( thatHost.length() == 0 || "localhost".equals( thatHost ) ) )
+                && !thisHost.equals( thatHost ) )
+            {
+                if( thisHost.charAt( 0 ) != '*' )
+                {
+                    return false;
+                }
+                int length = thisHost.length() - 1;
+                if( length > 0 && !thatHost.regionMatches( thatHost.length() - length, thisHost, 1, length ) )
+                {
+                    return false;
+                }
+            }
+        }
+        int thisPort = URIGrant.portOf( grant );
+        if( thisPort != -1 && thisPort != URIGrant.portOf( implied ) )
+        {
+            return false;
+        }
+        String thisFile = grant.getPath();
+        String thatFile = implied.getPath();
+        if( thatFile == null || thisFile == null )
+        {
+            return false;
+        }
+        if( thisFile.endsWith( "/-" ) )
+        {
+            if( !thatFile.startsWith( thisFile.substring( 0, thisFile.length() - 2 ) ) )
+            {
+                return false;
+            }
+        }
+        else if( thisFile.endsWith( "/*" ) )
+        {
+            if( !thatFile.startsWith( thisFile.substring( 0, thisFile.length() - 2 ) )
+                || thatFile.indexOf( "/", thisFile.length() - 1 ) != -1 )
+            {
+                return false;
+            }
+        }
+        else if( !thisFile.equals( thatFile )
+                 && ( thisFile.endsWith( "/" ) || !thatFile.equals( thisFile + "/" ) ) )
+        {
+            return false;
+        }
+        return grant.getFragment() == null || grant.getFragment().equals( implied.getFragment() );
+    }
+}
@@ -40,6 +40,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
+import javax.security.auth.PrivateCredentialPermission;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -199,6 +200,34 @@ public class DefaultPolicyParserTest
         }
     }
 
+    /**
+     * Tests ${{self}} expands to each principal of the grant, separated by a
+     * single space, without a trailing one.
+     */
+    @Test
+    public void testExpandSelf()
+        throws Exception
+    {
+        File tmp = File.createTempFile( "blackadder", ".policy" );
+        tmp.deleteOnExit();
+
+        FileWriter out = new FileWriter( tmp );
+        out.write( "grant principal a.b.C \"alice\", principal a.b.D \"bob\" {\n"
+                   + " permission javax.security.auth.PrivateCredentialPermission "
+                   + "\"javax.security.auth.x500.X500PrivateCredential ${{self}}\", \"read\";\n"
+                   + "};\n" );
+        out.flush();
+        out.close();
+
+        Collection<PermissionGrant> entries = new DefaultPolicyParser().parse( tmp.toURI().toURL() );
+        assertThat( entries.size(), equalTo( 1 ) );
+        Collection<Permission> permissions = entries.iterator().next().getPermissions();
+        assertThat( permissions.size(), equalTo( 1 ) );
+        PrivateCredentialPermission expected = new PrivateCredentialPermission(
+            "javax.security.auth.x500.X500PrivateCredential a.b.C \"alice\" a.b.D \"bob\"", "read" );
+        assertThat( permissions.iterator().next(), equalTo( (Permission) expected ) );
+    }
+
     /**
      * Test of segment method, of class DefaultPolicyParser.
      */
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.Permissions;
+import java.security.Principal;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import org.hedhman.blackadder.PolicyGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DomainKeyTest
+{
+    private static CodeSource codeSource( String location )
+        throws Exception
+    {
+        return new CodeSource( new URL( location ), (Certificate[]) null );
+    }
+
+    @Test
+    public void testEquivalentDomainsShareKey()
+        throws Exception
+    {
+        Principal alice = new MyPrincipal( "alice" );
+        Principal bob = new MyPrincipal( "bob" );
+        ProtectionDomain a = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), null, null,
+                                                   new Principal[]{ alice, bob } );
+        ProtectionDomain b = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), null, null,
+                                                   new Principal[]{ new MyPrincipal( "bob" ), new MyPrincipal( "alice" ) } );
+        ProtectionDomain c = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), null, null,
+                                                   new Principal[]{ alice } );
+        DomainKey key = DomainKey.of( a );
+        assertSame( key, DomainKey.of( a ) );
+        assertSame( key, DomainKey.of( b ) );
+        assertNotSame( key, DomainKey.of( c ) );
+        assertSame( key.getCodeSourceKey(), DomainKey.of( c ).getCodeSourceKey() );
+        assertSame( key.getCodeSourceKey(), DomainKey.of( codeSource( "file:/opt/app/app.jar" ) ) );
+        assertEquals( key.getCodeSourceKey().getLocation(), key.getLocation() );
+        assertNotSame( key.getCodeSourceKey(), DomainKey.of( codeSource( "file:/opt/lib/app.jar" ) ) );
+        assertNull( DomainKey.of( (ProtectionDomain) null ) );
+        assertNull( DomainKey.of( (CodeSource) null ) );
+    }
+
+    @Test
+    public void testProtectionDomainGrantImpliesCombinedDomain()
+        throws Exception
+    {
+        ClassLoader loader = new URLClassLoader( new URL[ 0 ] );
+        Permissions statics = new Permissions();
+        ProtectionDomain domain = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), statics, loader, null );
+        PermissionGrant grant = PermissionGrantBuilder.newBuilder()
+            .setDomain( new WeakReference<ProtectionDomain>( domain ) )
+            .context( PermissionGrantBuilder.PROTECTIONDOMAIN )
+            .permissions( new Permission[]{ new RuntimePermission( "exitVM" ) } )
+            .build();
+        assertFalse( DomainKey.isKeyed( grant ) );
+        // As created by a DomainCombiner, with a CodeSource of its own.
+        ProtectionDomain combined = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), statics, loader,
+                                                          new Principal[]{ new MyPrincipal( "alice" ) } );
+        ProtectionDomain other = new ProtectionDomain( codeSource( "file:/opt/lib/lib.jar" ), statics, loader, null );
+        assertTrue( grant.implies( combined ) );
+        assertFalse( grant.implies( other ) );
+    }
+
+    /**
+     * A ProtectionDomainGrant compares the CodeSource of another domain by
+     * its raw location and, if it has certificates, by their order too.
+     */
+    @Test
+    public void testProtectionDomainGrantComparesCodeSourceExactly()
+        throws Exception
+    {
+        ClassLoader loader = new URLClassLoader( new URL[ 0 ] );
+        Certificate[] certs = PolicyGenerator.certificates();
+        ProtectionDomain domain = new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), null, loader, null );
+        PermissionGrant grant = PermissionGrantBuilder.newBuilder()
+            .setDomain( new WeakReference<ProtectionDomain>( domain ) )
+            .context( PermissionGrantBuilder.PROTECTIONDOMAIN )
+            .permissions( new Permission[]{ new RuntimePermission( "exitVM" ) } )
+            .build();
+        assertTrue( grant.implies( new ProtectionDomain( codeSource( "file:/opt/app/app.jar" ), null, loader, null ) ) );
+        assertFalse( grant.implies( new ProtectionDomain( codeSource( "file:/opt/lib/../app/app.jar" ), null, loader,
+                                                          null ) ) );
+        // Without certificates of its own, the grant doesn't check those of the other.
+        assertTrue( grant.implies( new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), certs ), null, loader, null ) ) );
+
+        ProtectionDomain signed = new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), new Certificate[]{ certs[ 0 ], certs[ 1 ] } ),
+            null, loader, null );
+        grant = PermissionGrantBuilder.newBuilder()
+            .setDomain( new WeakReference<ProtectionDomain>( signed ) )
+            .context( PermissionGrantBuilder.PROTECTIONDOMAIN )
+            .permissions( new Permission[]{ new RuntimePermission( "exitVM" ) } )
+            .build();
+        assertTrue( grant.implies( new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), new Certificate[]{ certs[ 0 ], certs[ 1 ] } ),
+            null, loader, null ) ) );
+        assertFalse( grant.implies( new ProtectionDomain(
+            new CodeSource( new URL( "file:/opt/app/app.jar" ), new Certificate[]{ certs[ 1 ], certs[ 0 ] } ),
+            null, loader, null ) ) );
+    }
+
+    @Test
+    public void testOnlyKnownGrantsAreKeyed()
+        throws Exception
+    {
+        Permission[] permissions = { new RuntimePermission( "exitVM" ) };
+        Principal[] principals = { new MyPrincipal( "alice" ) };
+        assertTrue( DomainKey.isKeyed( new PrincipalGrant( principals, permissions ) ) );
+        assertTrue( DomainKey.isKeyed( new CertificateGrant( null, principals, permissions ) ) );
+        assertTrue( DomainKey.isKeyed(
+            new URIGrant( new URI[]{ new URI( "file:/opt/app/-" ) }, null, principals, permissions ) ) );
+        assertFalse( DomainKey.isKeyed( new PrincipalGrant( principals, permissions )
+        {
+        } ) );
+    }
+
+    @Test
+    public void testCodebaseNormalisedOnce()
+        throws Exception
+    {
+        URI uri = DomainKey.normalise( new URL( "http://www.example.com/app/../lib/app.jar" ) );
+        assertEquals( "http://www.example.com/lib/app.jar", uri.toString() );
+        assertSame( uri, DomainKey.normalise( new URL( "http://www.example.com/app/../lib/app.jar" ) ) );
+        assertEquals( uri, DomainKey.normalise( new URL( "http://www.example.com/lib/app.jar" ) ) );
+        assertNull( DomainKey.normalise( null ) );
+    }
+}
@@ -11,11 +11,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.security.Permission;
 import java.security.Principal;
+import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.Arrays;
 import java.util.Collection;
+import javax.security.auth.Subject;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -23,6 +25,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -168,4 +171,56 @@ public class PrincipalGrantTest
         }
         assertEquals( instance, result );
     }
+
+    /**
+     * Test of implies method for a SubjectDomain, whose Subject's Principal's
+     * are snapshot, until they change.
+     */
+    @Test
+    public void testImplies_SubjectDomain()
+    {
+        System.out.println( "implies SubjectDomain" );
+        Subject subject = new Subject();
+        ProtectionDomain pd = new SubjectProtectionDomain( subject );
+        subject.getPrincipals().add( pal1 );
+        assertFalse( instance.implies( pd ) );
+        Principal[] snapshot = PrincipalGrant.getPrincipals( pd );
+        assertSame( snapshot, PrincipalGrant.getPrincipals( pd ) );
+        subject.getPrincipals().add( pal2 );
+        assertTrue( instance.implies( pd ) );
+        assertEquals( 2, PrincipalGrant.getPrincipals( pd ).length );
+
+        SubjectPrincipals.Pin pin = SubjectPrincipals.pin( pd );
+        try
+        {
+            subject.getPrincipals().remove( pal2 );
+            assertTrue( instance.implies( pd ) );
+        }
+        finally
+        {
+            SubjectPrincipals.unpin( pin );
+        }
+        assertFalse( instance.implies( pd ) );
+
+        subject.setReadOnly();
+        snapshot = PrincipalGrant.getPrincipals( pd );
+        assertEquals( 1, snapshot.length );
+        assertSame( snapshot, PrincipalGrant.getPrincipals( pd ) );
+    }
+
+    static class SubjectProtectionDomain extends ProtectionDomain implements SubjectDomain
+    {
+        private final Subject subject;
+
+        SubjectProtectionDomain( Subject subject )
+        {
+            super( null, null, null, null );
+            this.subject = subject;
+        }
+
+        public Subject getSubject()
+        {
+            return subject;
+        }
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hedhman.blackadder.parser;
+
+import java.security.Permission;
+import java.security.Principal;
+import java.util.BitSet;
+import javax.security.auth.x500.X500Principal;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrincipalIndexTest
+{
+    private static final String MY = MyPrincipal.class.getName();
+
+    private static PrincipalGrant grant( Principal... pals )
+    {
+        return new PrincipalGrant( pals, new Permission[ 0 ] );
+    }
+
+    @Test
+    public void testCandidatesIncludeEveryImplyingGrant()
+    {
+        PermissionGrant[] grants = new PermissionGrant[ 200 ];
+        for( int i = 0; i < 100; i++ )
+        {
+            grants[ i ] = grant( new UnresolvedPrincipal( MY, "role" + i ) );
+        }
+        for( int i = 100; i < 200; i++ )
+        {
+            grants[ i ] = grant( new UnresolvedPrincipal( MY, "role" + i ),
+                                 new UnresolvedPrincipal( MY, "role" + ( i - 100 ) ) );
+        }
+        PrincipalIndex index = new PrincipalIndex( grants );
+        Principal[] subject = { new MyPrincipal( "role3" ), new MyPrincipal( "role103" ),
+                                new MyPrincipal( "role150" ) };
+        BitSet candidates = index.candidates( subject );
+        for( int i = 0; i < grants.length; i++ )
+        {
+            if( ( (PrincipalGrant) grants[ i ] ).implies( subject ) )
+            {
+                assertTrue( "grant " + i, candidates.get( i ) );
+            }
+        }
+        assertTrue( candidates.get( 3 ) );
+        assertTrue( candidates.get( 103 ) );
+        assertFalse( ( (PrincipalGrant) grants[ 150 ] ).implies( subject ) );
+        assertTrue( candidates.cardinality() <= 4 );
+    }
+
+    @Test
+    public void testWildcardsAndUnindexed()
+    {
+        PermissionGrant[] grants = {
+            grant(),
+            grant( new UnresolvedPrincipal( MY, UnresolvedPrincipal.WILDCARD ) ),
+            grant( new UnresolvedPrincipal( UnresolvedPrincipal.WILDCARD, UnresolvedPrincipal.WILDCARD ) ),
+            grant( new MyPrincipal( "role1" ) ),
+            grant( new X500Principal( "CN=Duke, O=Sun" ) ),
+            grant( new UnresolvedPrincipal( MY, "other" ) )
+        };
+        PrincipalIndex index = new PrincipalIndex( grants );
+        BitSet candidates = index.candidates( (Principal[]) null );
+        assertEquals( "0, 3", candidates.toString().replaceAll( "[{}]", "" ) );
+        candidates = index.candidates( new Principal[]{ new MyPrincipal( "role1" ) } );
+        assertEquals( "0, 1, 2, 3", candidates.toString().replaceAll( "[{}]", "" ) );
+        candidates = index.candidates( new Principal[]{ new X500Principal( "cn=duke,o=sun" ) } );
+        assertEquals( "0, 2, 3, 4", candidates.toString().replaceAll( "[{}]", "" ) );
+    }
+}
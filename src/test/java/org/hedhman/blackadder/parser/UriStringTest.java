@@ -19,6 +19,7 @@ package org.hedhman.blackadder.parser;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Random;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -103,4 +104,167 @@ public class UriStringTest {
         String result = UriString.fixWindowsURI(uri);
         assertEquals(expResult, result);
     }
+
+    /**
+     * Normalised forms, as produced before normalisation was table driven,
+     * including its quirks: hosts aren't always wholly lower cased, empty
+     * authorities and path segments collapse, and escaped '/' is decoded.
+     */
+    private static final String[][] NORMALISED = {
+        { "HTTP://river.apache.ORG/foo%7ebar/file%3clib", "http://river.apache.org/foo~bar/file%3Clib" },
+        { "FiLe:/Upper/CASE", "file:/Upper/CASE" },
+        { "file:///x", "file:/x" },
+        { "x+y-z.1:/rel", "x+y-z.1:/rel" },
+        { "http://Example.ORG", "http://example.org" },
+        { "http://AAA.b.Com:8080/x", "http://AAA.b.com:8080/x" },
+        { "http://User@Host.A.b/x", "http://User@host.A.b/x" },
+        { "http://a%25b/x", "http://a%25b/x" },
+        { "http://A%2541/x", "http://a%2541/x" },
+        { "http://[::A]:99/x", "http://[::A]:99/x" },
+        { "http://Reg_Name/x", "http://reg_name/x" },
+        { "http:////x", "http:/x" },
+        { "http://h///x", "http://h/x" },
+        { "http://h/x?Q%25aa#F", "http://h/x?Q%25aa#F" },
+        { "http://h/x?q%7e#f%7e", "http://h/x?q~#f~" },
+        { "http://h/%25%2541", "http://h/%25%2541" },
+        { "http://h/a%20b/%E2%82%AC", "http://h/a%20b/\u20ac" },
+        { "http://h/%7e%41%61%2d%2e%5f%30", "http://h/~Aa-._0" },
+        { "http://h/%2F%2f", "http://h///" },
+        { "http://h/%41%00", "http://h/A%00" },
+        { "http://h/%0a", "http://h/%0A" },
+        { "/relative%25bb", "/relative%25BB" },
+        { "rel/path", "rel/path" },
+    };
+
+    /**
+     * Messages of the URISyntaxException thrown instead of normalising, an
+     * incomplete escape used to throw ArrayIndexOutOfBoundsException.
+     */
+    private static final String[][] REJECTED = {
+        { "http://h/%25", "path contains incomplete escaped sequence at index 1: /%" },
+        { "http://h/%255", "path contains incomplete escaped sequence at index 1: /%5" },
+        { "http://h/x%25%25", "path contains incomplete escaped sequence at index 2: /x%%" },
+        { "mailto:Someone@Example.COM", "Expected scheme-specific part at index 7: mailto:" },
+        { "urn:isbn:096139210x", "Expected scheme-specific part at index 4: urn:" },
+    };
+
+    private static final String HEX = "0123456789abcdefABCDEFgG";
+
+    /**
+     * Normalisation of "http://h/p%25" + row + column + "q", which has the
+     * path "/p%" + row + column + "q", for each pair of HEX characters.  Each
+     * character is the one the escape was decoded to, or '%' if it was left
+     * escaped, upper cased, or '&lt;' or '&gt;' if it was rejected as having
+     * an illegal character at index 3 or 4.  The table of escapes decoded
+     * isn't that of RFC 3986, "%01" is decoded to '.' for example.
+     */
+    private static final String[] ESCAPED_PAIRS = {
+        "<._~456789KLMNOPKLMNOP<<", // 0
+        "QRSTUVWXYZ>%%%%%>%%%%%%%", // 1
+        ">%%%%%%%%%>%%-%%>%%-%%%%", // 2
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 3
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 4
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 5
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 6
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 7
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 8
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // 9
+        "<<<<<<<<<<<<<<<<<<<<<<<<", // a
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // b
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // c
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // d
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // e
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // f
+        "<<<<<<<<<<<<<<<<<<<<<<<<", // A
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // B
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // C
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // D
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // E
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // F
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // g
+        ">%%%%%%%%%>%%%%%>%%%%%%%", // G
+    };
+
+    /**
+     * Characters below 256 that escapeIllegalCharacters leaves alone, the
+     * others are escaped as '%' and two upper case hex digits, but for '\0',
+     * which is escaped as "%2D".
+     */
+    private static final String LEGAL =
+        "!#$%&'()*+,-./0123456789:;=?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[]_abcdefghijklmnopqrstuvwxyz~";
+
+    @Test
+    public void testNormalisationGolden() throws URISyntaxException {
+        System.out.println("URI Normalisation compared with golden values");
+        for (String[] golden : NORMALISED) {
+            assertEquals(golden[0], golden[1], UriString.normalisation(new URI(golden[0])).toString());
+        }
+        for (String[] golden : REJECTED) {
+            try {
+                UriString.normalisation(new URI(golden[0]));
+                fail(golden[0]);
+            } catch (URISyntaxException e) {
+                assertEquals(golden[0], golden[1], e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testEscapedPairsGolden() throws URISyntaxException {
+        System.out.println("URI Normalisation of escaped pairs compared with golden values");
+        for (int i = 0; i < HEX.length(); i++) {
+            for (int j = 0; j < HEX.length(); j++) {
+                String pair = "" + HEX.charAt(i) + HEX.charAt(j);
+                URI uri = new URI("http://h/p%25" + pair + "q");
+                char expected = ESCAPED_PAIRS[i].charAt(j);
+                String result;
+                try {
+                    result = UriString.normalisation(uri).toString();
+                } catch (URISyntaxException e) {
+                    result = e.getMessage();
+                }
+                if (expected == '%') {
+                    assertEquals(pair, "http://h/p%25" + pair.toUpperCase() + "q", result);
+                } else if (expected == '<' || expected == '>') {
+                    assertEquals(pair, "path contains escaped sequence that has an illegal character at index "
+                                       + (expected == '<' ? 3 : 4) + ": /p%" + pair + "q", result);
+                } else {
+                    assertEquals(pair, "http://h/p" + expected + "q", result);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEscapeGolden() throws URISyntaxException {
+        System.out.println("escapeIllegalCharacters compared with golden values");
+        for (char c = 0; c < 256; c++) {
+            assertEquals("a" + escaped(c) + "b", UriString.escapeIllegalCharacters("a" + c + "b"));
+        }
+        String plain = "file:/c:/Program%20Files/java";
+        assertSame(plain, UriString.escapeIllegalCharacters(plain));
+        try {
+            UriString.escapeIllegalCharacters("\u20ac");
+            fail("Escaped character above 255");
+        } catch (URISyntaxException e) {
+            assertEquals("\u20ac", e.getInput());
+        }
+        Random random = new Random(5062);
+        for (int i = 0; i < 5000; i++) {
+            char[] chars = new char[random.nextInt(16)];
+            StringBuilder expected = new StringBuilder();
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) random.nextInt(256);
+                expected.append(escaped(chars[j]));
+            }
+            assertEquals(expected.toString(), UriString.escapeIllegalCharacters(new String(chars)));
+        }
+    }
+
+    private static String escaped(char c) {
+        if (LEGAL.indexOf(c) >= 0) {
+            return String.valueOf(c);
+        }
+        return c == 0 ? "%2D" : String.format("%%%02X", (int) c);
+    }
 }